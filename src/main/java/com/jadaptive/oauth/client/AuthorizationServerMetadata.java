@@ -0,0 +1,45 @@
+package com.jadaptive.oauth.client;
+
+import java.net.URI;
+import java.util.Optional;
+
+import jakarta.json.JsonObject;
+
+/**
+ * Authorization server metadata, as published at a well-known location by
+ * servers supporting RFC 8414 or OpenID Connect Discovery.
+ *
+ * @param json metadata document
+ */
+public final record AuthorizationServerMetadata(JsonObject json) {
+
+	public String issuer() {
+		return json.getString("issuer", null);
+	}
+
+	public Optional<URI> tokenEndpoint() {
+		return endpoint("token_endpoint");
+	}
+
+	public Optional<URI> deviceAuthorizationEndpoint() {
+		return endpoint("device_authorization_endpoint");
+	}
+
+	public Optional<URI> revocationEndpoint() {
+		return endpoint("revocation_endpoint");
+	}
+
+	public Optional<URI> jwksUri() {
+		return endpoint("jwks_uri");
+	}
+
+	/**
+	 * Get any endpoint or other URI valued member of the metadata.
+	 *
+	 * @param name member name
+	 * @return URI
+	 */
+	public Optional<URI> endpoint(String name) {
+		return Optional.ofNullable(json.getString(name, null)).map(URI::create);
+	}
+}
@@ -0,0 +1,218 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops {@link Http} calling an endpoint that is failing. Each endpoint, that
+ * is each issuer and path, has its own circuit. After a number of consecutive
+ * failures the circuit opens, and requests fail at once with a
+ * {@link CircuitOpenException} instead of waiting for a connect timeout.
+ * <p>
+ * Once the open period has passed, a single request is let through as a
+ * probe while others continue to fail fast. If the probe succeeds the circuit
+ * closes, otherwise it opens again. Recovery therefore does not release every
+ * waiting caller on the server at once.
+ * <p>
+ * Connection failures, timeouts and {@code 5xx} responses count as failures.
+ * Other responses, including OAuth errors, show the server is up.
+ * {@link TokenManager} and {@link ClientCredentialsClient} keep serving a
+ * token that is still valid while its endpoint's circuit is open.
+ */
+public final class CircuitBreaker {
+
+	static Logger log = System.getLogger(CircuitBreaker.class.getName());
+
+	public final static class Builder {
+		private int failureThreshold = 5;
+		private Duration openDuration = Duration.ofSeconds(30);
+
+		/**
+		 * Number of consecutive failures that open a circuit.
+		 *
+		 * @param failureThreshold failures
+		 * @return this for chaining
+		 */
+		public Builder withFailureThreshold(int failureThreshold) {
+			if (failureThreshold < 1) {
+				throw new IllegalArgumentException("Threshold must be at least 1.");
+			}
+			this.failureThreshold = failureThreshold;
+			return this;
+		}
+
+		/**
+		 * How long a circuit stays open before a probe is sent.
+		 *
+		 * @param openDuration open duration
+		 * @return this for chaining
+		 */
+		public Builder withOpenDuration(Duration openDuration) {
+			this.openDuration = openDuration;
+			return this;
+		}
+
+		public CircuitBreaker build() {
+			return new CircuitBreaker(this);
+		}
+	}
+
+	/**
+	 * Counters describing the breaker's activity.
+	 *
+	 * @param failures requests that failed
+	 * @param rejected requests refused while a circuit was open
+	 * @param opened times a circuit opened
+	 */
+	public final static record Stats(long failures, long rejected, long opened) {
+	}
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final static class Circuit {
+		private final URI endpoint;
+		private State state = State.CLOSED;
+		private int failures;
+		private long openUntil;
+
+		private Circuit(URI endpoint) {
+			this.endpoint = endpoint;
+		}
+	}
+
+	/**
+	 * One request let through a circuit, whose outcome must be reported once.
+	 */
+	final static class Call {
+
+		final static Call NONE = new Call(null, null, false);
+
+		private final CircuitBreaker breaker;
+		private final Circuit circuit;
+		private final boolean probe;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		private Call(CircuitBreaker breaker, Circuit circuit, boolean probe) {
+			this.breaker = breaker;
+			this.circuit = circuit;
+			this.probe = probe;
+		}
+
+		/**
+		 * Report the outcome. Exactly one of the response or failure is given.
+		 *
+		 * @param response response
+		 * @param failure failure
+		 */
+		void complete(HttpResponse<?> response, Throwable failure) {
+			if (breaker != null && done.compareAndSet(false, true)) {
+				breaker.completed(this, response, failure);
+			}
+		}
+
+		/**
+		 * Report that the request was never sent, or its outcome is unknown.
+		 * Does nothing if an outcome was already reported.
+		 */
+		void abandon() {
+			complete(null, null);
+		}
+	}
+
+	private final int failureThreshold;
+	private final long openDuration;
+	private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder opened = new LongAdder();
+
+	private CircuitBreaker(Builder bldr) {
+		this.failureThreshold = bldr.failureThreshold;
+		this.openDuration = bldr.openDuration.toMillis();
+	}
+
+	public Stats stats() {
+		return new Stats(failures.sum(), rejected.sum(), opened.sum());
+	}
+
+	/**
+	 * Let a request through the circuit for its endpoint.
+	 *
+	 * @param target request URI
+	 * @return call, to report the outcome to
+	 * @throws CircuitOpenException if the circuit is open
+	 */
+	Call acquire(URI target) throws CircuitOpenException {
+		var endpoint = URI.create(target.getScheme().toLowerCase(Locale.ROOT) + "://"
+				+ target.getRawAuthority().toLowerCase(Locale.ROOT) + (target.getRawPath() == null ? "" : target.getRawPath()));
+		var circuit = circuits.computeIfAbsent(endpoint.toString(), k -> new Circuit(endpoint));
+		synchronized (circuit) {
+			switch (circuit.state) {
+			case CLOSED:
+				return new Call(this, circuit, false);
+			case OPEN:
+				if (System.currentTimeMillis() >= circuit.openUntil) {
+					log.log(Level.INFO, "Probing {0}", endpoint);
+					circuit.state = State.HALF_OPEN;
+					return new Call(this, circuit, true);
+				}
+				rejected.increment();
+				throw new CircuitOpenException(endpoint, Instant.ofEpochMilli(circuit.openUntil));
+			default:
+				/* A probe is in flight */
+				rejected.increment();
+				throw new CircuitOpenException(endpoint, Instant.now());
+			}
+		}
+	}
+
+	private void completed(Call call, HttpResponse<?> response, Throwable failure) {
+		var circuit = call.circuit;
+		var cause = failure == null ? null : Futures.unwrap(failure);
+		var failed = response == null ? cause instanceof IOException : response.statusCode() >= 500;
+		var succeeded = response != null && !failed;
+		if (failed) {
+			failures.increment();
+		}
+		synchronized (circuit) {
+			if (circuit.state == State.CLOSED) {
+				if (succeeded) {
+					circuit.failures = 0;
+				} else if (failed && ++circuit.failures >= failureThreshold) {
+					open(circuit);
+				}
+			} else if (call.probe && circuit.state == State.HALF_OPEN) {
+				if (succeeded) {
+					log.log(Level.INFO, "Closing circuit for {0}", circuit.endpoint);
+					circuit.state = State.CLOSED;
+					circuit.failures = 0;
+				} else if (failed) {
+					open(circuit);
+				} else {
+					/* Neither, for example cancelled, so let the next request probe */
+					circuit.state = State.OPEN;
+				}
+			}
+			/* Otherwise a request admitted before the circuit opened, which changes nothing */
+		}
+	}
+
+	private void open(Circuit circuit) {
+		log.log(Level.WARNING, "Opening circuit for {0} for {1}ms", circuit.endpoint, openDuration);
+		circuit.state = State.OPEN;
+		circuit.openUntil = System.currentTimeMillis() + openDuration;
+		opened.increment();
+	}
+}
@@ -0,0 +1,35 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
+
+/**
+ * Thrown without contacting the server when a {@link CircuitBreaker} has seen
+ * an endpoint fail repeatedly and is not yet ready to try it again.
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenException extends IOException {
+	private final URI endpoint;
+	private final Instant retryAt;
+
+	public CircuitOpenException(URI endpoint, Instant retryAt) {
+		super("Circuit open for " + endpoint + " until " + retryAt + ".");
+		this.endpoint = endpoint;
+		this.retryAt = retryAt;
+	}
+
+	public URI getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Get when the endpoint will next be tried. A probe may already be in
+	 * flight, in which case this is now.
+	 *
+	 * @return retry time
+	 */
+	public Instant getRetryAt() {
+		return retryAt;
+	}
+}
@@ -0,0 +1,68 @@
+package com.jadaptive.oauth.client;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+/**
+ * Authenticates a client to the authorization server's endpoints, see RFC
+ * 6749 section 2.3. Implementations must be safe for use by multiple threads.
+ *
+ * @see PrivateKeyJwt
+ */
+public interface ClientAuthentication {
+
+	/**
+	 * Add authentication to a request.
+	 *
+	 * @param endpoint endpoint the request is sent to
+	 * @param headers request headers to add to
+	 * @param form form parameters to add to
+	 */
+	void authenticate(URI endpoint, List<NameValuePair> headers, List<NameValuePair> form);
+
+	/**
+	 * Identify a public client, which has no credentials, by its client ID.
+	 *
+	 * @param clientId client ID
+	 * @return authentication
+	 */
+	static ClientAuthentication none(String clientId) {
+		return (endpoint, headers, form) -> form.add(new NameValuePair("client_id", clientId));
+	}
+
+	/**
+	 * Send a client secret with HTTP Basic authentication.
+	 *
+	 * @param clientId client ID
+	 * @param clientSecret client secret
+	 * @return authentication
+	 */
+	static ClientAuthentication clientSecretBasic(String clientId, String clientSecret) {
+		/* RFC 6749 2.3.1 requires the credentials to be form encoded first */
+		var credentials = URLEncoder.encode(clientId, StandardCharsets.UTF_8) + ":"
+				+ URLEncoder.encode(clientSecret, StandardCharsets.UTF_8);
+		var header = new NameValuePair("Authorization",
+				"Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+		return (endpoint, headers, form) -> headers.add(header);
+	}
+
+	/**
+	 * Send a client secret in the request body. RFC 6749 only recommends this
+	 * for servers that cannot accept HTTP Basic authentication.
+	 *
+	 * @param clientId client ID
+	 * @param clientSecret client secret
+	 * @return authentication
+	 */
+	static ClientAuthentication clientSecretPost(String clientId, String clientSecret) {
+		return (endpoint, headers, form) -> {
+			form.add(new NameValuePair("client_id", clientId));
+			form.add(new NameValuePair("client_secret", clientSecret));
+		};
+	}
+}
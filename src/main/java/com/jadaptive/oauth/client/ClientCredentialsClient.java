@@ -0,0 +1,315 @@
+package com.jadaptive.oauth.client;
+
+import static com.jadaptive.oauth.client.JsonUtil.parseJSON;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URI;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+/**
+ * Obtains tokens using the OAuth 2.0 Client Credentials Grant (RFC 6749
+ * section 4.4), for service to service calls where no user is involved.
+ * <p>
+ * The client caches its token, so a single instance should be shared by all
+ * threads that act as the same client. {@link #token()} returns the cached
+ * token while it is valid. Once the token is within the lead time of its
+ * expiry, the next call starts a new token request in the background and
+ * still returns the cached token, so callers only ever wait when there is no
+ * valid token at all. Concurrent requests for a new token share a single call
+ * to the token endpoint.
+ */
+public final class ClientCredentialsClient implements TokenSource {
+
+	static Logger log = System.getLogger(ClientCredentialsClient.class.getName());
+
+	public final static class Builder {
+		private Optional<Supplier<Http>> httpProvider = Optional.empty();
+		private Optional<String> clientId = Optional.empty();
+		private Optional<String> clientSecret = Optional.empty();
+		private boolean clientSecretPost = false;
+		private Optional<ClientAuthentication> clientAuthentication = Optional.empty();
+		private Optional<String> scope = Optional.empty();
+		private boolean dpop = false;
+		private Optional<KeyPair> keyPair = Optional.empty();
+		private Duration leadTime = Duration.ofSeconds(60);
+		private Optional<Consumer<BearerToken>> onTokenIssued = Optional.empty();
+		private Optional<ServerMetadataCache> metadataCache = Optional.empty();
+
+		public Builder withHttp(Http http) {
+			return withHttp(() -> http);
+		}
+
+		public Builder withHttp(Supplier<Http> httpProvider) {
+			this.httpProvider = Optional.of(httpProvider);
+			return this;
+		}
+
+		public Builder withClientId(String clientId) {
+			this.clientId = Optional.of(clientId);
+			return this;
+		}
+
+		public Builder withClientSecret(String clientSecret) {
+			this.clientSecret = Optional.of(clientSecret);
+			return this;
+		}
+
+		/**
+		 * Send the client credentials in the request body rather than with HTTP
+		 * Basic authentication. RFC 6749 only recommends this for servers that
+		 * cannot accept Basic authentication.
+		 *
+		 * @param clientSecretPost send credentials in the body
+		 * @return this for chaining
+		 */
+		public Builder withClientSecretPost(boolean clientSecretPost) {
+			this.clientSecretPost = clientSecretPost;
+			return this;
+		}
+
+		/**
+		 * How the client authenticates to the token endpoint, for example with
+		 * {@link PrivateKeyJwt}. Takes the place of a client ID and secret.
+		 *
+		 * @param clientAuthentication client authentication
+		 * @return this for chaining
+		 */
+		public Builder withClientAuthentication(ClientAuthentication clientAuthentication) {
+			this.clientAuthentication = Optional.of(clientAuthentication);
+			return this;
+		}
+
+		public Builder withScope(String scope) {
+			this.scope = Optional.of(scope);
+			return this;
+		}
+
+		public Builder withDPoP(boolean dpop) {
+			this.dpop = dpop;
+			return this;
+		}
+
+		public Builder withPrivateKey(String keyContent) throws Exception {
+			return withDPoPKeyPair(DPoPProofFactory.loadKeyPair(keyContent));
+		}
+
+		public Builder withPrivateKey(java.nio.file.Path keyPath) throws Exception {
+			return withDPoPKeyPair(DPoPProofFactory.loadKeyPair(keyPath));
+		}
+
+		public Builder withDPoPKeyPair(KeyPair keyPair) {
+			this.keyPair = Optional.of(keyPair);
+			return this;
+		}
+
+		/**
+		 * How long before a token expires a new one is requested. Never more than
+		 * half of the token's lifetime.
+		 *
+		 * @param leadTime lead time
+		 * @return this for chaining
+		 */
+		public Builder withLeadTime(Duration leadTime) {
+			this.leadTime = leadTime;
+			return this;
+		}
+
+		/**
+		 * Locate the token endpoint using the server's published metadata
+		 * (RFC 8414), held in the shared {@link ServerMetadataCache#getDefault()}.
+		 * Without discovery, {@code /oauth2/token} is used.
+		 *
+		 * @param discovery use discovery
+		 * @return this for chaining
+		 */
+		public Builder withDiscovery(boolean discovery) {
+			this.metadataCache = discovery ? Optional.of(ServerMetadataCache.getDefault()) : Optional.empty();
+			return this;
+		}
+
+		/**
+		 * Use discovery, with metadata held in the given cache.
+		 *
+		 * @param metadataCache metadata cache
+		 * @return this for chaining
+		 */
+		public Builder withMetadataCache(ServerMetadataCache metadataCache) {
+			this.metadataCache = Optional.of(metadataCache);
+			return this;
+		}
+
+		public Builder onTokenIssued(Consumer<BearerToken> onTokenIssued) {
+			this.onTokenIssued = Optional.of(onTokenIssued);
+			return this;
+		}
+
+		public ClientCredentialsClient build() {
+			return new ClientCredentialsClient(this);
+		}
+	}
+
+	private final Supplier<Http> httpProvider;
+	private final Optional<String> scope;
+	private final Optional<KeyPair> dpopKeyPair;
+	private final long leadTime;
+	private final Optional<Consumer<BearerToken>> onTokenIssued;
+	private final ClientAuthentication clientAuthentication;
+	private final List<NameValuePair> form;
+	private final Endpoints endpoints;
+	private final AtomicReference<BearerToken> token = new AtomicReference<>();
+	private final SingleFlight<String, BearerToken> flights = new SingleFlight<>();
+	private final AtomicReference<Prepared> prepared = new AtomicReference<>();
+
+	private record Prepared(Http http, URI endpoint, Http.Template template) {
+	}
+
+	private ClientCredentialsClient(Builder bldr) {
+		this.httpProvider = bldr.httpProvider.orElseThrow(() -> new IllegalStateException("No HTTP provider provided"));
+		this.clientAuthentication = bldr.clientAuthentication.orElseGet(() -> {
+			var clientId = bldr.clientId.orElseThrow(() -> new IllegalStateException("No client ID provided"));
+			var clientSecret = bldr.clientSecret.orElseThrow(() -> new IllegalStateException("No client secret provided"));
+			return bldr.clientSecretPost ? ClientAuthentication.clientSecretPost(clientId, clientSecret)
+					: ClientAuthentication.clientSecretBasic(clientId, clientSecret);
+		});
+		if (bldr.dpop && bldr.keyPair.isEmpty()) {
+			throw new IllegalStateException("DPoP requires a key pair");
+		}
+		this.scope = bldr.scope;
+		this.dpopKeyPair = bldr.dpop ? bldr.keyPair : Optional.empty();
+		this.leadTime = bldr.leadTime.toMillis();
+		this.onTokenIssued = bldr.onTokenIssued;
+		this.endpoints = new Endpoints(bldr.metadataCache);
+
+		var form = new ArrayList<NameValuePair>();
+		form.add(new NameValuePair("grant_type", "client_credentials"));
+		bldr.scope.ifPresent(s -> form.add(new NameValuePair("scope", s)));
+		this.form = List.copyOf(form);
+	}
+
+	/**
+	 * Get a valid token, only blocking if there is no valid cached token.
+	 *
+	 * @return token
+	 * @throws IOException on error
+	 * @throws ResponseException on error response from server
+	 */
+	public BearerToken token() throws IOException, ResponseException {
+		return Futures.await(tokenAsync());
+	}
+
+	public CompletableFuture<BearerToken> tokenAsync() {
+		var current = token.get();
+		if (current != null && !current.isExpired()) {
+			if (renewalDue(current)) {
+				/* Renew in the background, the current token is still good */
+				authorizeAsync().whenComplete((next, ex) -> {
+					if (Futures.unwrap(ex) instanceof CircuitOpenException coe) {
+						/* Fails fast while the server is known to be down, so just keep the current token */
+						log.log(Level.DEBUG, "Token endpoint unavailable, keeping current token. {0}", coe.getMessage());
+					} else if (ex != null) {
+						log.log(Level.WARNING, "Failed to renew token ahead of expiry.", ex);
+					}
+				});
+			}
+			return CompletableFuture.completedFuture(current);
+		}
+		return authorizeAsync();
+	}
+
+	/**
+	 * Discard the cached token, for example after a resource server rejected
+	 * it. The next call to {@link #token()} will obtain a new one.
+	 */
+	public void invalidate() {
+		token.set(null);
+	}
+
+	/**
+	 * Request a new token from the server, regardless of any cached token.
+	 *
+	 * @return future token
+	 */
+	@Override
+	public CompletableFuture<BearerToken> authorizeAsync() {
+		return flights.runAsync("token", this::requestToken);
+	}
+
+	/**
+	 * A client can always obtain a new token with its credentials, so this just
+	 * requests a new token.
+	 */
+	@Override
+	public CompletableFuture<BearerToken> refreshAsync(BearerToken token) {
+		return authorizeAsync();
+	}
+
+	@Override
+	public boolean isNonInteractive() {
+		return true;
+	}
+
+	private CompletableFuture<BearerToken> requestToken() {
+		var http = httpProvider.get();
+		return endpoints.token(http).thenCompose(endpoint -> requestToken(http, endpoint));
+	}
+
+	private CompletableFuture<BearerToken> requestToken(Http http, URI endpoint) {
+		var requestHeaders = new ArrayList<NameValuePair>(2);
+		var requestForm = new ArrayList<NameValuePair>(form);
+		clientAuthentication.authenticate(endpoint, requestHeaders, requestForm);
+		var htu = endpoint.toString();
+		/* A new token can always be requested, so a failed request is safe to repeat */
+		return template(http, endpoint).postAsync(() -> {
+				var headers = new ArrayList<NameValuePair>(requestHeaders);
+				/* A DPoP proof may only be used once, so every attempt gets its own */
+				dpopKeyPair.ifPresent(kp -> headers.add(new NameValuePair("DPoP", DPoPProofFactory.generateProof("POST", htu, kp))));
+				return headers.toArray(new NameValuePair[0]);
+			}, Http.encodeForm(requestForm.toArray(new NameValuePair[0])), true).thenApply(json -> {
+				var issued = new BearerToken(parseJSON(json));
+				if (issued.error() != null || issued.access_token() == null) {
+					throw new CompletionException(new ResponseException(issued.toJsonObject(), null));
+				}
+				if (issued.scope() == null && scope.isPresent()) {
+					/* An omitted scope is the scope that was requested (RFC 6749 5.1) */
+					issued = issued.withScope(scope.get());
+				}
+				token.set(issued);
+				log.log(Level.DEBUG, "Issued client credentials token, expires in {0}s", issued.expires_in());
+				var finalIssued = issued;
+				onTokenIssued.ifPresent(handler -> handler.accept(finalIssued));
+				return issued;
+			});
+	}
+
+	private Http.Template template(Http http, URI endpoint) {
+		var current = prepared.get();
+		if (current == null || current.http() != http || !current.endpoint().equals(endpoint)) {
+			current = new Prepared(http, endpoint, http.template(endpoint.toString(), Http.APPLICATION_X_WWW_FORM_URLENCODED));
+			prepared.set(current);
+		}
+		return current.template();
+	}
+
+	private boolean renewalDue(BearerToken current) {
+		if (current.expires_in() <= 0) {
+			return true;
+		}
+		/* Never renew earlier than half way through the tokens lifetime */
+		var lead = Math.min(leadTime, current.expires_in() * 500);
+		return (current.issued_at() + current.expires_in()) * 1000 - lead <= System.currentTimeMillis();
+	}
+}
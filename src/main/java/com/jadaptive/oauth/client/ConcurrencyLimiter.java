@@ -0,0 +1,201 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of requests {@link Http} has in flight to each host, so a
+ * burst of calls cannot exhaust the connections or the server's patience.
+ * Requests over the limit wait in a queue, and are admitted in order as
+ * earlier requests complete.
+ * <p>
+ * There are two lanes. Token endpoint traffic, such as refreshes and device
+ * code polls made by {@link OAuthClient} and {@link ClientCredentialsClient},
+ * uses the priority lane. It is always admitted ahead of queued bulk traffic,
+ * may use slots held back from bulk traffic, and is never rejected because
+ * the bulk queue is full. This keeps token refreshes prompt when the API
+ * calls that depend on them saturate a host.
+ * <p>
+ * A permit is held for each attempt, so a request waiting to be retried does
+ * not occupy a slot.
+ */
+public final class ConcurrencyLimiter {
+
+	static Logger log = System.getLogger(ConcurrencyLimiter.class.getName());
+
+	public final static class Builder {
+		private int maxConcurrent = 16;
+		private int priorityReserve = 1;
+		private int maxQueued = 1000;
+
+		/**
+		 * Maximum requests in flight to each host, in both lanes.
+		 *
+		 * @param maxConcurrent maximum concurrent requests
+		 * @return this for chaining
+		 */
+		public Builder withMaxConcurrent(int maxConcurrent) {
+			if (maxConcurrent < 1) {
+				throw new IllegalArgumentException("Must allow at least one request.");
+			}
+			this.maxConcurrent = maxConcurrent;
+			return this;
+		}
+
+		/**
+		 * Number of slots per host only the priority lane may use, so token
+		 * traffic need not wait for a bulk request to finish.
+		 *
+		 * @param priorityReserve reserved slots
+		 * @return this for chaining
+		 */
+		public Builder withPriorityReserve(int priorityReserve) {
+			if (priorityReserve < 0) {
+				throw new IllegalArgumentException("Reserve may not be negative.");
+			}
+			this.priorityReserve = priorityReserve;
+			return this;
+		}
+
+		/**
+		 * Maximum bulk requests waiting for each host. Further requests fail
+		 * at once with an {@link IOException}.
+		 *
+		 * @param maxQueued maximum queued requests
+		 * @return this for chaining
+		 */
+		public Builder withMaxQueued(int maxQueued) {
+			if (maxQueued < 0) {
+				throw new IllegalArgumentException("Queue size may not be negative.");
+			}
+			this.maxQueued = maxQueued;
+			return this;
+		}
+
+		public ConcurrencyLimiter build() {
+			if (priorityReserve >= maxConcurrent) {
+				throw new IllegalStateException("The priority reserve must leave at least one slot for bulk requests.");
+			}
+			return new ConcurrencyLimiter(this);
+		}
+	}
+
+	/**
+	 * Counters describing how requests were admitted.
+	 *
+	 * @param admitted requests admitted, including those that queued first
+	 * @param queued requests that had to wait for a slot
+	 * @param rejected bulk requests refused because the queue was full
+	 */
+	public final static record Stats(long admitted, long queued, long rejected) {
+	}
+
+	/**
+	 * Permission to send one request, released when the response has been
+	 * read.
+	 */
+	final static class Permit {
+
+		final static Permit NONE = new Permit(null, null);
+
+		private final ConcurrencyLimiter limiter;
+		private final Host host;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(ConcurrencyLimiter limiter, Host host) {
+			this.limiter = limiter;
+			this.host = host;
+		}
+
+		void release() {
+			if (host != null && released.compareAndSet(false, true)) {
+				limiter.release(host);
+			}
+		}
+	}
+
+	private final static class Host {
+		private final ArrayDeque<CompletableFuture<Permit>> priority = new ArrayDeque<>();
+		private final ArrayDeque<CompletableFuture<Permit>> bulk = new ArrayDeque<>();
+		private int active;
+	}
+
+	private final int maxConcurrent;
+	private final int bulkLimit;
+	private final int maxQueued;
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	private ConcurrencyLimiter(Builder bldr) {
+		this.maxConcurrent = bldr.maxConcurrent;
+		this.bulkLimit = bldr.maxConcurrent - bldr.priorityReserve;
+		this.maxQueued = bldr.maxQueued;
+	}
+
+	public Stats stats() {
+		return new Stats(admitted.sum(), queued.sum(), rejected.sum());
+	}
+
+	/**
+	 * Get a permit to send a request. The future completes when a slot is
+	 * free. A caller that gives up waiting should cancel it.
+	 *
+	 * @param target request URI
+	 * @param priority use the priority lane
+	 * @return future permit
+	 */
+	CompletableFuture<Permit> acquire(URI target, boolean priority) {
+		var name = target.getAuthority() == null ? "" : target.getAuthority().toLowerCase(Locale.ROOT);
+		var host = hosts.computeIfAbsent(name, k -> new Host());
+		synchronized (host) {
+			if (host.active < (priority ? maxConcurrent : bulkLimit)) {
+				host.active++;
+				admitted.increment();
+				return CompletableFuture.completedFuture(new Permit(this, host));
+			}
+			if (!priority && host.bulk.size() >= maxQueued) {
+				rejected.increment();
+				return CompletableFuture.failedFuture(new IOException("Too many requests queued for " + name + "."));
+			}
+			var waiter = new CompletableFuture<Permit>();
+			(priority ? host.priority : host.bulk).add(waiter);
+			queued.increment();
+			log.log(Level.DEBUG, "Queued {0} request for {1}, {2} in flight", priority ? "priority" : "bulk", name, host.active);
+			return waiter;
+		}
+	}
+
+	private void release(Host host) {
+		while (true) {
+			CompletableFuture<Permit> next;
+			synchronized (host) {
+				host.active--;
+				next = host.priority.poll();
+				if (next == null && host.active < bulkLimit) {
+					next = host.bulk.poll();
+				}
+				if (next == null) {
+					return;
+				}
+				host.active++;
+			}
+			/* Completed outside the lock, as the waiter's request is sent from here */
+			if (next.complete(new Permit(this, host))) {
+				admitted.increment();
+				return;
+			}
+			/* The waiter was cancelled, so pass the slot on */
+		}
+	}
+}
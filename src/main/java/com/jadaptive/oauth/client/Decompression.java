@@ -0,0 +1,319 @@
+package com.jadaptive.oauth.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads response bodies sent with a {@code gzip} or {@code deflate}
+ * {@code Content-Encoding}. Each compressed buffer is inflated and decoded to
+ * characters as it arrives, and released, so neither the whole compressed
+ * body nor the whole decompressed body is ever held as bytes.
+ */
+final class Decompression {
+
+	final static String ACCEPT_ENCODING = "gzip, deflate";
+
+	private Decompression() {
+	}
+
+	/**
+	 * Get a handler that decodes the body to a string, decompressing it first
+	 * if required. Bodies without a {@code Content-Encoding} are read as with
+	 * {@link java.net.http.HttpResponse.BodyHandlers#ofString()}.
+	 *
+	 * @return body handler
+	 */
+	static BodyHandler<String> ofString() {
+		return info -> {
+			var charset = charset(info.headers());
+			var encoding = info.headers().firstValue("Content-Encoding").map(e -> e.trim().toLowerCase(Locale.ROOT))
+					.orElse("identity");
+			return switch (encoding) {
+			case "gzip", "x-gzip" -> new Inflating(true, charset, null);
+			case "deflate" -> new Inflating(false, charset, null);
+			case "identity", "" -> BodySubscribers.ofString(charset);
+			default -> new Inflating(false, charset, new IOException("Unsupported content encoding " + encoding + "."));
+			};
+		};
+	}
+
+	private static Charset charset(HttpHeaders headers) {
+		var ctype = headers.firstValue("Content-Type").orElse("");
+		for (var param : ctype.split(";")) {
+			var idx = param.indexOf('=');
+			if (idx != -1 && param.substring(0, idx).trim().equalsIgnoreCase("charset")) {
+				try {
+					return Charset.forName(param.substring(idx + 1).trim().replace("\"", ""));
+				} catch (IllegalArgumentException iae) {
+					break;
+				}
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+
+	private final static class Inflating implements BodySubscriber<String> {
+
+		private enum State {
+			HEADER, BODY, TRAILER, DONE
+		}
+
+		private final static byte[] EMPTY = new byte[0];
+
+		private final CompletableFuture<String> body = new CompletableFuture<>();
+		private final boolean gzip;
+		private final CharsetDecoder decoder;
+		private final IOException unsupported;
+		private final ByteBuffer out = ByteBuffer.allocate(8192);
+		private final CharBuffer chars = CharBuffer.allocate(8192);
+		private final StringBuilder text = new StringBuilder();
+		private final CRC32 crc = new CRC32();
+		private final byte[] trailer = new byte[8];
+
+		private Flow.Subscription subscription;
+		private Inflater inflater;
+		private State state = State.HEADER;
+		/* Start of a header split across buffers */
+		private byte[] pending = EMPTY;
+		private int trailerLength;
+
+		private Inflating(boolean gzip, Charset charset, IOException unsupported) {
+			this.gzip = gzip;
+			this.unsupported = unsupported;
+			this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		@Override
+		public CompletionStage<String> getBody() {
+			return body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (unsupported == null) {
+				subscription.request(1);
+			} else {
+				subscription.cancel();
+				body.completeExceptionally(unsupported);
+			}
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> items) {
+			if (body.isDone()) {
+				return;
+			}
+			try {
+				for (var item : items) {
+					feed(item);
+				}
+				subscription.request(1);
+			} catch (IOException ioe) {
+				subscription.cancel();
+				fail(ioe);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			fail(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			if (body.isDone()) {
+				return;
+			}
+			try {
+				/* An empty body, as with a 304, is allowed */
+				if (state == State.BODY || state == State.TRAILER || pending.length > 0) {
+					throw new EOFException("Unexpected end of compressed response.");
+				}
+				decode(true);
+				chars.clear();
+				decoder.flush(chars);
+				chars.flip();
+				text.append(chars);
+				end();
+				body.complete(text.toString());
+			} catch (IOException ioe) {
+				fail(ioe);
+			}
+		}
+
+		private void fail(Throwable throwable) {
+			end();
+			body.completeExceptionally(throwable);
+		}
+
+		private void end() {
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+
+		private void feed(ByteBuffer in) throws IOException {
+			while (in.hasRemaining()) {
+				switch (state) {
+				case HEADER -> header(in);
+				case BODY -> inflate(in);
+				case TRAILER -> trailer(in);
+				case DONE -> in.position(in.limit());
+				}
+			}
+		}
+
+		private void header(ByteBuffer in) throws IOException {
+			var offset = pending.length;
+			pending = Arrays.copyOf(pending, offset + in.remaining());
+			in.get(pending, offset, pending.length - offset);
+
+			int length;
+			boolean nowrap;
+			if (gzip) {
+				length = gzipHeaderLength(pending);
+				nowrap = true;
+			} else if (pending.length < 2) {
+				length = -1;
+				nowrap = false;
+			} else {
+				/* Servers send deflate both with and without the zlib wrapper */
+				length = 0;
+				nowrap = (pending[0] & 0x0f) != 8 || (((pending[0] & 0xff) << 8) | (pending[1] & 0xff)) % 31 != 0;
+			}
+			if (length < 0) {
+				return;
+			}
+
+			if (inflater == null) {
+				inflater = new Inflater(nowrap);
+			} else {
+				inflater.reset();
+			}
+			crc.reset();
+			state = State.BODY;
+			var rest = ByteBuffer.wrap(pending, length, pending.length - length);
+			pending = EMPTY;
+			feed(rest);
+		}
+
+		private void inflate(ByteBuffer in) throws IOException {
+			inflater.setInput(in);
+			try {
+				while (true) {
+					var n = inflater.inflate(out.array(), out.position(), out.remaining());
+					if (gzip) {
+						crc.update(out.array(), out.position(), n);
+					}
+					out.position(out.position() + n);
+					decode(false);
+					if (inflater.finished()) {
+						state = gzip ? State.TRAILER : State.DONE;
+						return;
+					}
+					if (n == 0) {
+						if (inflater.needsDictionary()) {
+							throw new ZipException("Preset dictionaries are not supported.");
+						}
+						if (inflater.needsInput()) {
+							return;
+						}
+					}
+				}
+			} catch (DataFormatException dfe) {
+				throw new ZipException(dfe.getMessage());
+			}
+		}
+
+		private void trailer(ByteBuffer in) throws IOException {
+			var count = Math.min(trailer.length - trailerLength, in.remaining());
+			in.get(trailer, trailerLength, count);
+			trailerLength += count;
+			if (trailerLength == trailer.length) {
+				if (intLE(trailer, 0) != (int) crc.getValue() || intLE(trailer, 4) != (int) inflater.getBytesWritten()) {
+					throw new ZipException("Corrupt GZIP trailer.");
+				}
+				/* Another member may follow */
+				trailerLength = 0;
+				state = State.HEADER;
+			}
+		}
+
+		private void decode(boolean endOfInput) {
+			out.flip();
+			CoderResult result;
+			do {
+				result = decoder.decode(out, chars, endOfInput);
+				chars.flip();
+				text.append(chars);
+				chars.clear();
+			} while (result.isOverflow());
+			out.compact();
+		}
+
+		private static int gzipHeaderLength(byte[] header) throws ZipException {
+			var len = header.length;
+			if (len < 10) {
+				return -1;
+			}
+			if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b) {
+				throw new ZipException("Not in GZIP format.");
+			}
+			if (header[2] != 8) {
+				throw new ZipException("Unsupported GZIP compression method.");
+			}
+			var flags = header[3];
+			var pos = 10;
+			if ((flags & 4) != 0) {
+				/* FEXTRA */
+				if (len < pos + 2) {
+					return -1;
+				}
+				pos += 2 + ((header[pos] & 0xff) | ((header[pos + 1] & 0xff) << 8));
+			}
+			for (var flag : new int[] { 8, 16 }) {
+				/* FNAME and FCOMMENT, both zero terminated */
+				if ((flags & flag) != 0) {
+					do {
+						if (pos >= len) {
+							return -1;
+						}
+					} while (header[pos++] != 0);
+				}
+			}
+			if ((flags & 2) != 0) {
+				/* FHCRC */
+				pos += 2;
+			}
+			return pos <= len ? pos : -1;
+		}
+
+		private static int intLE(byte[] b, int off) {
+			return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+		}
+	}
+}
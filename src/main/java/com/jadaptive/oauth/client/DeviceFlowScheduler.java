@@ -0,0 +1,350 @@
+package com.jadaptive.oauth.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+import com.jadaptive.oauth.client.OAuth2Objects.DeviceCode;
+
+/**
+ * Owns all pending device authorizations and polls the token endpoint for
+ * them. Pending flows wait in a single delay queue, and due polls are sent from
+ * a small fixed pool of threads, with a limit on the number of polls in flight
+ * to any one issuer. Thousands of concurrent device flows therefore need only
+ * a handful of threads, and produce a predictable load on the token endpoint.
+ * <p>
+ * One instance may be shared by any number of {@link OAuthClient}s, see
+ * {@link OAuthClient.Builder#withDeviceFlowScheduler(DeviceFlowScheduler)}.
+ */
+public final class DeviceFlowScheduler implements Closeable {
+
+	static Logger log = System.getLogger(DeviceFlowScheduler.class.getName());
+
+	public final static class Builder {
+		private int threads = 2;
+		private int maxConcurrentPollsPerIssuer = 32;
+		private long issuerBusyDelay = 100;
+		private PollingPolicy pollingPolicy = PollingPolicy.getDefault();
+
+		/**
+		 * Number of threads used to send polls. Polls are sent asynchronously, so
+		 * these threads only prepare requests.
+		 *
+		 * @param threads threads
+		 * @return this for chaining
+		 */
+		public Builder withThreads(int threads) {
+			if (threads < 1) {
+				throw new IllegalArgumentException("Must have at least one thread.");
+			}
+			this.threads = threads;
+			return this;
+		}
+
+		public Builder withMaxConcurrentPollsPerIssuer(int maxConcurrentPollsPerIssuer) {
+			if (maxConcurrentPollsPerIssuer < 1) {
+				throw new IllegalArgumentException("Must allow at least one poll.");
+			}
+			this.maxConcurrentPollsPerIssuer = maxConcurrentPollsPerIssuer;
+			return this;
+		}
+
+		public Builder withPollingPolicy(PollingPolicy pollingPolicy) {
+			this.pollingPolicy = pollingPolicy;
+			return this;
+		}
+
+		public DeviceFlowScheduler build() {
+			return new DeviceFlowScheduler(this);
+		}
+	}
+
+	private final static class Default {
+		private final static DeviceFlowScheduler INSTANCE = new Builder().build();
+	}
+
+	/**
+	 * Get the scheduler shared by the whole JVM, which is used by any
+	 * {@link OAuthClient} not given its own.
+	 *
+	 * @return default scheduler
+	 */
+	public static DeviceFlowScheduler getDefault() {
+		return Default.INSTANCE;
+	}
+
+	private final class Pending implements Delayed {
+		private final URI issuer;
+		private final DeviceCode device;
+		private final Function<DeviceCode, CompletableFuture<BearerToken>> poll;
+		private final CompletableFuture<BearerToken> result;
+		private final long deadline;
+		private long interval;
+		private int failures;
+		private long due;
+
+		private Pending(URI issuer, DeviceCode device, Function<DeviceCode, CompletableFuture<BearerToken>> poll,
+				long interval, long deadline) {
+			this.issuer = issuer;
+			this.device = device;
+			this.poll = poll;
+			this.interval = interval;
+			this.deadline = deadline;
+			this.result = new CompletableFuture<>();
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(due, ((Pending) o).due);
+		}
+	}
+
+	private final DelayQueue<Pending> queue = new DelayQueue<>();
+	private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URI, Integer> inflight = new ConcurrentHashMap<>();
+	private final ExecutorService pollers;
+	private final Thread dispatcher;
+	private final int maxConcurrentPollsPerIssuer;
+	private final long issuerBusyDelay;
+	private final PollingPolicy pollingPolicy;
+
+	private volatile boolean closed;
+
+	private DeviceFlowScheduler(Builder bldr) {
+		this.maxConcurrentPollsPerIssuer = bldr.maxConcurrentPollsPerIssuer;
+		this.issuerBusyDelay = TimeUnit.MILLISECONDS.toNanos(bldr.issuerBusyDelay);
+		this.pollingPolicy = bldr.pollingPolicy;
+		var threadNo = new AtomicInteger();
+		this.pollers = Executors.newFixedThreadPool(bldr.threads, r -> {
+			var t = new Thread(r, "DeviceFlowPoller-" + threadNo.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.dispatcher = new Thread(this::dispatch, "DeviceFlowScheduler");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Start polling for a device authorization. Like every later poll, the
+	 * first waits for the interval (RFC 8628 3.5), as the user cannot have
+	 * approved the request any sooner. Polls are timed by the
+	 * {@link PollingPolicy}. The returned future completes with the issued token, or exceptionally with an
+	 * {@link AuthorizationTimeoutException} if authorization is denied or the
+	 * device code expires. Cancelling the future stops polling.
+	 *
+	 * @param issuer issuer the token endpoint belongs to
+	 * @param device device code
+	 * @param poll sends a single poll, completing with the token endpoint
+	 *             response
+	 * @return future token
+	 */
+	public CompletableFuture<BearerToken> submit(URI issuer, DeviceCode device,
+			Function<DeviceCode, CompletableFuture<BearerToken>> poll) {
+		if (closed) {
+			return CompletableFuture.failedFuture(new IllegalStateException("Scheduler is closed."));
+		}
+		var now = System.nanoTime();
+		var interval = pollingPolicy.initialInterval(device.interval());
+		var entry = new Pending(issuer, device, poll, interval, now + TimeUnit.SECONDS.toNanos(device.expires_in()));
+		pending.put(device.device_code(), entry);
+		entry.result.whenComplete((token, ex) -> {
+			pending.remove(device.device_code(), entry);
+			if (ex instanceof CancellationException) {
+				queue.remove(entry);
+			}
+		});
+		enqueue(entry, now + pollingPolicy.nextDelay(interval, Optional.empty()));
+		return entry.result;
+	}
+
+	/**
+	 * Stop polling for a device authorization.
+	 *
+	 * @param device device code
+	 * @return cancelled
+	 */
+	public boolean cancel(DeviceCode device) {
+		var entry = pending.get(device.device_code());
+		return entry != null && entry.result.cancel(false);
+	}
+
+	/**
+	 * Get the number of device authorizations still awaiting completion.
+	 *
+	 * @return pending
+	 */
+	public int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * Stop polling, cancelling every pending device authorization.
+	 *
+	 * @throws IllegalStateException if this is the {@link #getDefault() default}
+	 *                               scheduler
+	 */
+	@Override
+	public void close() {
+		if (this == getDefault()) {
+			throw new IllegalStateException("The default scheduler is shared, so cannot be closed.");
+		}
+		closed = true;
+		dispatcher.interrupt();
+		pollers.shutdownNow();
+		for (var entry : pending.values()) {
+			entry.result.cancel(false);
+		}
+		queue.clear();
+	}
+
+	/**
+	 * Get the number of issuers with polls in flight.
+	 *
+	 * @return issuers
+	 */
+	int issuers() {
+		return inflight.size();
+	}
+
+	private boolean acquire(URI issuer) {
+		if (inflight.merge(issuer, 1, Integer::sum) > maxConcurrentPollsPerIssuer) {
+			release(issuer);
+			return false;
+		}
+		return true;
+	}
+
+	private void release(URI issuer) {
+		/* Remove the issuer once idle, so the map only holds issuers being polled */
+		inflight.computeIfPresent(issuer, (k, count) -> count == 1 ? null : count - 1);
+	}
+
+	private void enqueue(Pending entry, long due) {
+		/* Never wait beyond the deadline, so expired entries are removed promptly */
+		entry.due = Math.min(due, entry.deadline);
+		queue.offer(entry);
+	}
+
+	private void dispatch() {
+		while (!closed) {
+			Pending entry;
+			try {
+				entry = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (entry.result.isDone()) {
+				continue;
+			}
+			var now = System.nanoTime();
+			if (now - entry.deadline >= 0) {
+				log.log(Level.DEBUG, "Device code {0} expired", entry.device.device_code());
+				entry.result.completeExceptionally(new AuthorizationTimeoutException());
+				continue;
+			}
+			if (!acquire(entry.issuer)) {
+				enqueue(entry, now + issuerBusyDelay);
+				continue;
+			}
+			try {
+				pollers.execute(() -> poll(entry));
+			} catch (RuntimeException e) {
+				release(entry.issuer);
+				entry.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void poll(Pending entry) {
+		CompletableFuture<BearerToken> request;
+		try {
+			request = entry.poll.apply(entry.device);
+		} catch (RuntimeException e) {
+			release(entry.issuer);
+			entry.result.completeExceptionally(e);
+			return;
+		}
+		request.whenComplete((response, ex) -> {
+			release(entry.issuer);
+			if (ex == null) {
+				if (response.error() == null) {
+					entry.result.complete(response);
+				} else {
+					handleError(entry, response.error(), Optional.empty(), null);
+				}
+				return;
+			}
+			var cause = Futures.unwrap(ex);
+			if (cause instanceof ResponseException re) {
+				/* RFC 8628 errors are normally sent with a 400 status */
+				handleError(entry, re.getError(), PollingPolicy.retryAfter(re.getHttpHeaders()), re);
+			} else if (cause instanceof HttpStatusException hse) {
+				if (hse.getStatus() == 429 || hse.getStatus() >= 500) {
+					backoff(entry, PollingPolicy.retryAfter(hse.getHttpHeaders()), hse);
+				} else {
+					entry.result.completeExceptionally(hse);
+				}
+			} else if (cause instanceof IOException ioe) {
+				/* Connection failures and timeouts, RFC 8628 3.5 asks for exponential backoff */
+				backoff(entry, Optional.empty(), ioe);
+			} else {
+				entry.result.completeExceptionally(cause);
+			}
+		});
+	}
+
+	private void handleError(Pending entry, String error, Optional<Duration> retryAfter, Exception cause) {
+		switch (error == null ? "" : error) {
+		case "authorization_pending":
+			entry.failures = 0;
+			enqueue(entry, System.nanoTime() + pollingPolicy.nextDelay(entry.interval, retryAfter));
+			break;
+		case "slow_down":
+			entry.failures = 0;
+			entry.interval = pollingPolicy.slowDown(entry.interval);
+			enqueue(entry, System.nanoTime() + pollingPolicy.nextDelay(entry.interval, retryAfter));
+			break;
+		case "authorization_denied":
+		case "access_denied":
+		case "expired_token":
+			log.log(Level.DEBUG, "Device code {0} failed with {1}", entry.device.device_code(), error);
+			entry.result.completeExceptionally(new AuthorizationTimeoutException());
+			break;
+		default:
+			entry.result.completeExceptionally(cause == null ? new AuthorizationTimeoutException() : cause);
+			break;
+		}
+	}
+
+	private void backoff(Pending entry, Optional<Duration> retryAfter, Exception cause) {
+		var delay = pollingPolicy.backoff(entry.interval, ++entry.failures, retryAfter);
+		if (delay < 0) {
+			entry.result.completeExceptionally(cause);
+		} else {
+			log.log(Level.DEBUG, "Poll for device code {0} failed, retrying in {1}ms", entry.device.device_code(),
+					TimeUnit.NANOSECONDS.toMillis(delay));
+			enqueue(entry, System.nanoTime() + delay);
+		}
+	}
+}
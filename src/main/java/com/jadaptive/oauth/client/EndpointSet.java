@@ -0,0 +1,288 @@
+package com.jadaptive.oauth.client;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The nodes of one server, for example several authorization server nodes
+ * behind the same issuer. Requests to the primary node's origin are spread
+ * over the healthy nodes, preferring the fastest and least busy. A request
+ * that cannot connect is failed over to another node, and a node that
+ * refuses connections is rested for a while. Requests that are safe to repeat
+ * may be hedged, sending a second copy to another node if the first has not
+ * answered within the 95th percentile of recent response times.
+ * <p>
+ * Nodes are assumed to serve the same paths, so only the scheme and authority
+ * of a request are changed.
+ */
+final class EndpointSet {
+
+	static Logger log = System.getLogger(EndpointSet.class.getName());
+
+	/* Used until enough responses have been seen to estimate the 95th percentile */
+	private final static long DEFAULT_HEDGE_DELAY = 1000;
+	private final static int MIN_SAMPLES = 20;
+	private final static long MIN_REST = 1000;
+	private final static long MAX_REST = 30000;
+	/* One choice in this many ignores scores, so estimates for other nodes stay current */
+	private final static int EXPLORE_EVERY = 16;
+
+	private final static class Node {
+		private final URI base;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile double latency;
+		private volatile long restUntil;
+		private int failures;
+
+		private Node(URI base) {
+			this.base = base;
+		}
+
+		private synchronized void succeeded(long millis) {
+			failures = 0;
+			restUntil = 0;
+			/* Exponentially weighted, so a node that slows down is soon avoided */
+			latency = latency == 0 ? millis : latency * 0.7 + millis * 0.3;
+		}
+
+		private synchronized void refused() {
+			failures++;
+			restUntil = System.currentTimeMillis() + Math.min(MAX_REST, MIN_REST << Math.min(failures - 1, 5));
+		}
+
+		private double score() {
+			return Math.max(1, latency) * (inFlight.get() + 1);
+		}
+	}
+
+	/**
+	 * The copies sent for one request. Once closed, any copy still running,
+	 * or sent afterwards by a late hedge or failover, is cancelled.
+	 */
+	private final static class Attempts<T> {
+		private final List<CompletableFuture<HttpResponse<T>>> futures = new ArrayList<>(2);
+		private boolean closed;
+
+		private synchronized void add(CompletableFuture<HttpResponse<T>> future) {
+			if (closed) {
+				future.cancel(true);
+			} else {
+				futures.add(future);
+			}
+		}
+
+		private synchronized void close() {
+			closed = true;
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private final List<Node> nodes;
+	private final URI primary;
+	private final AtomicInteger next = new AtomicInteger();
+	private final long[] samples = new long[128];
+	private int sampleCount;
+
+	EndpointSet(Collection<URI> endpoints) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("At least one endpoint is required.");
+		}
+		var nodes = new ArrayList<Node>();
+		endpoints.forEach(uri -> nodes.add(new Node(uri)));
+		this.nodes = List.copyOf(nodes);
+		this.primary = this.nodes.get(0).base;
+	}
+
+	URI primary() {
+		return primary;
+	}
+
+	/**
+	 * Send a request, choosing the node, failing over and hedging as
+	 * required. Requests to other origins are sent unchanged. Every copy sent
+	 * to a node is created and sent by the sender, so may for example be
+	 * admitted by a limiter separately. The sender's futures must cancel the
+	 * request they send when cancelled, as the slower of two hedged copies is
+	 * cancelled once the other has answered.
+	 *
+	 * @param <T> type of response body
+	 * @param target request URI, on the primary node
+	 * @param requests creates the request, addressed to the primary node
+	 * @param hedge hedging is enabled
+	 * @param repeatable checked before hedging, whether the request may be
+	 *            repeated with no ill effect
+	 * @param sender sends a copy of the request to a URI
+	 * @return future response
+	 */
+	<T> CompletableFuture<HttpResponse<T>> send(URI target, Supplier<HttpRequest> requests, boolean hedge,
+			BooleanSupplier repeatable, BiFunction<URI, Supplier<HttpRequest>, CompletableFuture<HttpResponse<T>>> sender) {
+		if (!sameOrigin(target, primary)) {
+			return sender.apply(target, requests);
+		}
+		var tried = ConcurrentHashMap.<Node>newKeySet();
+		var attempts = new Attempts<T>();
+		var first = failover(target, requests, choose(tried), tried, attempts, sender);
+		if (!hedge || nodes.size() < 2) {
+			return first;
+		}
+
+		var result = new CompletableFuture<HttpResponse<T>>();
+		var outstanding = new AtomicInteger(1);
+		first.whenComplete((response, ex) -> settle(result, outstanding, response, ex));
+
+		var delay = hedgeDelay();
+		CompletableFuture.runAsync(() -> {
+			if (result.isDone() || !repeatable.getAsBoolean()) {
+				return;
+			}
+			var other = choose(tried);
+			if (other == null) {
+				return;
+			}
+			log.log(Level.DEBUG, "No response from {0} after {1}ms, hedging with {2}", target, delay, other.base);
+			outstanding.incrementAndGet();
+			failover(target, requests, other, tried, attempts, sender)
+					.whenComplete((response, ex) -> settle(result, outstanding, response, ex));
+		}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+
+		/* The slower copy is not needed once either answers */
+		result.whenComplete((response, ex) -> attempts.close());
+		return result;
+	}
+
+	/**
+	 * Get the delay before a hedged copy of a request is sent.
+	 *
+	 * @return delay in milliseconds
+	 */
+	synchronized long hedgeDelay() {
+		if (sampleCount < MIN_SAMPLES) {
+			return DEFAULT_HEDGE_DELAY;
+		}
+		var sorted = Arrays.copyOf(samples, Math.min(sampleCount, samples.length));
+		Arrays.sort(sorted);
+		return Math.max(1, sorted[(int) Math.ceil(sorted.length * 0.95) - 1]);
+	}
+
+	private static <T> void settle(CompletableFuture<HttpResponse<T>> result, AtomicInteger outstanding,
+			HttpResponse<T> response, Throwable ex) {
+		if (ex == null) {
+			result.complete(response);
+		} else if (outstanding.decrementAndGet() == 0) {
+			result.completeExceptionally(Futures.unwrap(ex));
+		}
+	}
+
+	private <T> CompletableFuture<HttpResponse<T>> failover(URI target, Supplier<HttpRequest> requests, Node node,
+			Set<Node> tried, Attempts<T> attempts,
+			BiFunction<URI, Supplier<HttpRequest>, CompletableFuture<HttpResponse<T>>> sender) {
+		tried.add(node);
+		var started = System.nanoTime();
+		node.inFlight.incrementAndGet();
+		CompletableFuture<HttpResponse<T>> future;
+		try {
+			future = sender.apply(rebase(target, node), () -> rebase(requests.get(), node));
+		} catch (RuntimeException re) {
+			node.inFlight.decrementAndGet();
+			return CompletableFuture.failedFuture(re);
+		}
+		/* Kept so that it, rather than a dependent stage, is cancelled */
+		attempts.add(future);
+		return future.handle((response, ex) -> {
+			node.inFlight.decrementAndGet();
+			if (ex == null) {
+				var millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+				node.succeeded(millis);
+				sample(millis);
+				return CompletableFuture.completedFuture(response);
+			}
+			var cause = Futures.unwrap(ex);
+			if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException) {
+				/* The request never reached the node, so it may be sent to another whatever its method */
+				node.refused();
+				var other = choose(tried);
+				if (other != null) {
+					log.log(Level.INFO, "Could not connect to {0}, failing over to {1}", node.base, other.base);
+					return failover(target, requests, other, tried, attempts, sender);
+				}
+			}
+			return CompletableFuture.<HttpResponse<T>>failedFuture(cause);
+		}).thenCompose(Function.identity());
+	}
+
+	/**
+	 * Choose the node for a request, avoiding those already tried, or null if
+	 * all have been. Healthy nodes with the lowest latency weighted by their
+	 * requests in flight are preferred, with ties shared in turn. Now and then
+	 * the next healthy node in turn is used regardless, so a node that was
+	 * once slow is not avoided for ever. If all are resting, the one due back
+	 * soonest is used.
+	 */
+	private Node choose(Set<Node> tried) {
+		var now = System.currentTimeMillis();
+		var turn = next.getAndIncrement();
+		var explore = Math.floorMod(turn, EXPLORE_EVERY) == EXPLORE_EVERY - 1;
+		/* Explored nodes take their own turns, or they could fall in step with the ties */
+		var start = Math.floorMod(explore ? turn / EXPLORE_EVERY : turn, nodes.size());
+		Node best = null;
+		Node rested = null;
+		for (var i = 0; i < nodes.size(); i++) {
+			var node = nodes.get((start + i) % nodes.size());
+			if (tried.contains(node)) {
+				continue;
+			}
+			if (node.restUntil > now) {
+				if (rested == null || node.restUntil < rested.restUntil) {
+					rested = node;
+				}
+			} else if (best == null || (!explore && node.score() < best.score())) {
+				best = node;
+			}
+		}
+		return best == null ? rested : best;
+	}
+
+	private synchronized void sample(long millis) {
+		samples[sampleCount++ % samples.length] = millis;
+		if (sampleCount == Integer.MAX_VALUE) {
+			sampleCount = samples.length;
+		}
+	}
+
+	private static URI rebase(URI uri, Node node) {
+		if (sameOrigin(uri, node.base)) {
+			return uri;
+		}
+		return URI.create(node.base.getScheme() + "://" + node.base.getRawAuthority() + uri.getRawPath()
+				+ (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+	}
+
+	private static HttpRequest rebase(HttpRequest request, Node node) {
+		if (sameOrigin(request.uri(), node.base)) {
+			return request;
+		}
+		return HttpRequest.newBuilder(request, (n, v) -> true).uri(rebase(request.uri(), node)).build();
+	}
+
+	private static boolean sameOrigin(URI a, URI b) {
+		return a.getScheme().equalsIgnoreCase(b.getScheme()) && a.getRawAuthority().equalsIgnoreCase(b.getRawAuthority());
+	}
+}
@@ -0,0 +1,39 @@
+package com.jadaptive.oauth.client;
+
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Locates the endpoints of an authorization server, either from its
+ * discovered metadata or, without discovery, at the default paths.
+ */
+final class Endpoints {
+
+	private final static String DEFAULT_TOKEN_PATH = "/oauth2/token";
+	private final static String DEFAULT_DEVICE_PATH = "oauth2/device";
+
+	private final Optional<ServerMetadataCache> metadataCache;
+
+	Endpoints(Optional<ServerMetadataCache> metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
+	CompletableFuture<URI> token(Http http) {
+		return endpoint(http, AuthorizationServerMetadata::tokenEndpoint, DEFAULT_TOKEN_PATH);
+	}
+
+	CompletableFuture<URI> deviceAuthorization(Http http) {
+		return endpoint(http, AuthorizationServerMetadata::deviceAuthorizationEndpoint, DEFAULT_DEVICE_PATH);
+	}
+
+	private CompletableFuture<URI> endpoint(Http http, Function<AuthorizationServerMetadata, Optional<URI>> member,
+			String defaultPath) {
+		if (metadataCache.isEmpty()) {
+			return CompletableFuture.completedFuture(http.getUri().resolve(defaultPath));
+		}
+		return metadataCache.get().getAsync(http)
+				.thenApply(metadata -> member.apply(metadata).orElseGet(() -> http.getUri().resolve(defaultPath)));
+	}
+}
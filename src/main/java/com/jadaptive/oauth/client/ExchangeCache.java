@@ -0,0 +1,91 @@
+package com.jadaptive.oauth.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+/**
+ * Caches tokens obtained by token exchange, keyed by subject token, audience
+ * and scope. Subject tokens are only kept as a hash. Tokens are dropped once
+ * they are about to expire, and the cache is kept to a maximum size.
+ */
+final class ExchangeCache {
+
+	/* Never hand out a token that may expire before it reaches the resource */
+	private final static long MAX_SKEW = 30;
+
+	private record Key(String subject, String audience, String scope) {
+	}
+
+	private final ConcurrentHashMap<Key, BearerToken> tokens = new ConcurrentHashMap<>();
+	private final SingleFlight<Key, BearerToken> flights = new SingleFlight<>();
+	private final int maxEntries;
+
+	ExchangeCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	CompletableFuture<BearerToken> get(String subjectToken, String audience, String scope,
+			Supplier<CompletableFuture<BearerToken>> exchange) {
+		var key = new Key(hash(subjectToken), audience, Scopes.normalize(scope));
+		var cached = tokens.get(key);
+		if (cached != null) {
+			if (usable(cached)) {
+				return CompletableFuture.completedFuture(cached);
+			}
+			tokens.remove(key, cached);
+		}
+		return flights.runAsync(key, () -> exchange.get().thenApply(token -> {
+			if (usable(token)) {
+				tokens.put(key, token);
+				if (tokens.size() > maxEntries) {
+					trim();
+				}
+			}
+			return token;
+		}));
+	}
+
+	int size() {
+		return tokens.size();
+	}
+
+	private synchronized void trim() {
+		tokens.values().removeIf(t -> !usable(t));
+		var excess = tokens.size() - maxEntries;
+		if (excess > 0) {
+			/* Drop the tokens that would have expired first */
+			var entries = new ArrayList<>(tokens.entrySet());
+			entries.sort(Comparator.comparingLong(e -> e.getValue().issued_at() + e.getValue().expires_in()));
+			for (Map.Entry<Key, BearerToken> en : entries.subList(0, excess)) {
+				tokens.remove(en.getKey(), en.getValue());
+			}
+		}
+	}
+
+	private static boolean usable(BearerToken token) {
+		if (token.expires_in() <= 0) {
+			return false;
+		}
+		var skew = Math.min(MAX_SKEW, token.expires_in() / 2);
+		return token.issued_at() + token.expires_in() - skew > System.currentTimeMillis() / 1000;
+	}
+
+	private static String hash(String subjectToken) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(subjectToken.getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package com.jadaptive.oauth.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+
+/**
+ * A {@link TokenStore} that keeps tokens in a single encrypted file. Each
+ * change is appended as its own AES-GCM encrypted record, so storing a token
+ * never rewrites the file. The file is only read once, on first use, after
+ * which all lookups are served from memory. When enough superseded records
+ * have built up, the file is compacted in the background.
+ */
+public final class FileTokenStore implements TokenStore {
+
+	static Logger log = System.getLogger(FileTokenStore.class.getName());
+
+	private final static byte[] MAGIC = "JOTS".getBytes(StandardCharsets.US_ASCII);
+	private final static byte VERSION = 1;
+	private final static int IV_LENGTH = 12;
+	private final static int TAG_LENGTH = 128;
+	private final static int SALT_LENGTH = 16;
+	private final static int PBKDF2_ITERATIONS = 210000;
+	private final static int MAX_RECORD = 1024 * 1024;
+	private final static Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+	public final static class Builder {
+		private Optional<Path> path = Optional.empty();
+		private Optional<SecretKey> key = Optional.empty();
+		private Optional<char[]> password = Optional.empty();
+		private int compactionThreshold = 64;
+		private Optional<Executor> compactor = Optional.empty();
+
+		public Builder withPath(Path path) {
+			this.path = Optional.of(path);
+			return this;
+		}
+
+		/**
+		 * Encrypt the store with an AES key.
+		 *
+		 * @param key key
+		 * @return this for chaining
+		 */
+		public Builder withKey(SecretKey key) {
+			this.key = Optional.of(key);
+			return this;
+		}
+
+		/**
+		 * Encrypt the store with a key derived from a password using PBKDF2. The
+		 * salt is kept in the file header.
+		 *
+		 * @param password password
+		 * @return this for chaining
+		 */
+		public Builder withPassword(char[] password) {
+			this.password = Optional.of(password.clone());
+			return this;
+		}
+
+		/**
+		 * Number of superseded records that may build up in the file before it is
+		 * compacted.
+		 *
+		 * @param compactionThreshold threshold
+		 * @return this for chaining
+		 */
+		public Builder withCompactionThreshold(int compactionThreshold) {
+			this.compactionThreshold = compactionThreshold;
+			return this;
+		}
+
+		public Builder withCompactor(Executor compactor) {
+			this.compactor = Optional.of(compactor);
+			return this;
+		}
+
+		public FileTokenStore build() {
+			return new FileTokenStore(this);
+		}
+	}
+
+	private final static class DefaultCompactor {
+		private final static Executor INSTANCE = Executors.newSingleThreadExecutor(r -> {
+			var t = new Thread(r, "FileTokenStoreCompactor");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private final Path path;
+	private final Optional<SecretKey> fixedKey;
+	private final Optional<char[]> password;
+	private final int compactionThreshold;
+	private final Executor compactor;
+	private final SecureRandom random = new SecureRandom();
+
+	private Map<String, BearerToken> tokens;
+	private byte[] header;
+	private SecretKey key;
+	private int records;
+	private boolean damaged;
+	private boolean compacting;
+
+	private FileTokenStore(Builder bldr) {
+		this.path = bldr.path.orElseThrow(() -> new IllegalStateException("No path provided"));
+		if (bldr.key.isEmpty() && bldr.password.isEmpty()) {
+			throw new IllegalStateException("No key or password provided");
+		}
+		this.fixedKey = bldr.key;
+		this.password = bldr.password;
+		this.compactionThreshold = bldr.compactionThreshold;
+		this.compactor = bldr.compactor.orElse(DefaultCompactor.INSTANCE);
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public synchronized Optional<BearerToken> load(String key) throws IOException {
+		return Optional.ofNullable(tokens().get(key));
+	}
+
+	@Override
+	public synchronized void store(String key, BearerToken token) throws IOException {
+		tokens().put(key, token);
+		append(record(key, token));
+	}
+
+	@Override
+	public synchronized void remove(String key) throws IOException {
+		if (tokens().remove(key) != null) {
+			append(record(key, null));
+		}
+	}
+
+	/**
+	 * Rewrite the file so it only contains the current tokens.
+	 *
+	 * @throws IOException on error
+	 */
+	public synchronized void compact() throws IOException {
+		tokens();
+		var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		/* A file left by an earlier failure may be readable by others, so is never reused */
+		Files.deleteIfExists(tmp);
+		try (var out = create(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			out.write(ByteBuffer.wrap(header));
+			for (var en : tokens.entrySet()) {
+				out.write(ByteBuffer.wrap(encrypt(record(en.getKey(), en.getValue()))));
+			}
+			out.force(true);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		records = tokens.size();
+		damaged = false;
+		log.log(Level.DEBUG, "Compacted token store {0} to {1} records", path, records);
+	}
+
+	private Map<String, BearerToken> tokens() throws IOException {
+		if (tokens == null) {
+			read();
+		}
+		return tokens;
+	}
+
+	private void read() throws IOException {
+		var loaded = new HashMap<String, BearerToken>();
+		var count = 0;
+		if (Files.exists(path)) {
+			var buf = ByteBuffer.wrap(Files.readAllBytes(path));
+			readHeader(buf);
+			while (buf.remaining() >= Integer.BYTES) {
+				var len = buf.getInt();
+				if (len < IV_LENGTH || len > MAX_RECORD || len > buf.remaining()) {
+					log.log(Level.WARNING, "Token store {0} has a truncated record, ignoring the remainder", path);
+					damaged = true;
+					break;
+				}
+				var data = new byte[len];
+				buf.get(data);
+				JsonObject obj;
+				try {
+					obj = decrypt(data);
+				} catch (AEADBadTagException e) {
+					if (count == 0) {
+						throw new IOException("Could not decrypt token store " + path + ", is the key correct?", e);
+					}
+					log.log(Level.WARNING, "Token store {0} has a corrupt record, ignoring the remainder", path);
+					damaged = true;
+					break;
+				}
+				count++;
+				var k = obj.getString("k");
+				if (obj.containsKey("t")) {
+					loaded.put(k, new BearerToken(obj.getJsonObject("t")));
+				} else {
+					loaded.remove(k);
+				}
+			}
+			if (buf.hasRemaining() && !damaged) {
+				log.log(Level.WARNING, "Token store {0} has a truncated record, ignoring the remainder", path);
+				damaged = true;
+			}
+		} else {
+			createHeader();
+		}
+		tokens = loaded;
+		records = count;
+	}
+
+	private void readHeader(ByteBuffer buf) throws IOException {
+		if (buf.remaining() < MAGIC.length + 2) {
+			throw new IOException("Token store " + path + " is not valid.");
+		}
+		var magic = new byte[MAGIC.length];
+		buf.get(magic);
+		if (!Arrays.equals(MAGIC, magic) || buf.get() != VERSION) {
+			throw new IOException("Token store " + path + " is not valid, or is an unsupported version.");
+		}
+		var salt = new byte[buf.get() & 0xff];
+		buf.get(salt);
+		header = Arrays.copyOf(buf.array(), buf.position());
+		key = deriveKey(salt);
+	}
+
+	private void createHeader() throws IOException {
+		var salt = password.isPresent() ? new byte[SALT_LENGTH] : new byte[0];
+		random.nextBytes(salt);
+		var bout = new ByteArrayOutputStream();
+		bout.write(MAGIC);
+		bout.write(VERSION);
+		bout.write(salt.length);
+		bout.write(salt);
+		header = bout.toByteArray();
+		key = deriveKey(salt);
+	}
+
+	private SecretKey deriveKey(byte[] salt) throws IOException {
+		if (fixedKey.isPresent()) {
+			return fixedKey.get();
+		}
+		try {
+			KeySpec spec = new PBEKeySpec(password.get(), salt, PBKDF2_ITERATIONS, 256);
+			var secret = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec);
+			return new SecretKeySpec(secret.getEncoded(), "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to derive token store key.", e);
+		}
+	}
+
+	private JsonObject record(String key, BearerToken token) {
+		var bldr = Json.createObjectBuilder().add("k", key);
+		if (token != null) {
+			bldr.add("t", token.toJsonObject());
+		}
+		return bldr.build();
+	}
+
+	private void append(JsonObject record) throws IOException {
+		if (damaged) {
+			/* Appending after a damaged record would make the new record unreadable */
+			compact();
+		}
+		var data = encrypt(record);
+		var exists = Files.exists(path);
+		try (var out = create(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND)) {
+			if (!exists) {
+				out.write(ByteBuffer.wrap(header));
+			}
+			out.write(ByteBuffer.wrap(data));
+			out.force(false);
+		}
+		records++;
+		if (records - tokens.size() > compactionThreshold && !compacting) {
+			compacting = true;
+			compactor.execute(() -> {
+				synchronized (FileTokenStore.this) {
+					try {
+						compact();
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Failed to compact token store.", e);
+					} finally {
+						compacting = false;
+					}
+				}
+			});
+		}
+	}
+
+	private byte[] encrypt(JsonObject record) throws IOException {
+		try {
+			var iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			/* Bind every record to this file's header */
+			cipher.updateAAD(header);
+			var ciphertext = cipher.doFinal(record.toString().getBytes(StandardCharsets.UTF_8));
+			var bout = new ByteArrayOutputStream(Integer.BYTES + IV_LENGTH + ciphertext.length);
+			var dout = new DataOutputStream(bout);
+			dout.writeInt(IV_LENGTH + ciphertext.length);
+			dout.write(iv);
+			dout.write(ciphertext);
+			return bout.toByteArray();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt token.", e);
+		}
+	}
+
+	private JsonObject decrypt(byte[] data) throws IOException, AEADBadTagException {
+		try {
+			var cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, data, 0, IV_LENGTH));
+			cipher.updateAAD(header);
+			var plaintext = cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH);
+			try (var rdr = Json.createReader(new StringReader(new String(plaintext, StandardCharsets.UTF_8)))) {
+				return rdr.readObject();
+			}
+		} catch (AEADBadTagException e) {
+			throw e;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to decrypt token.", e);
+		}
+	}
+
+	/**
+	 * Open a file, creating it if need be with owner only permissions from the
+	 * start, so no other user can open it before it is restricted.
+	 */
+	private static FileChannel create(Path file, OpenOption... options) throws IOException {
+		var opts = Set.of(options);
+		if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			return FileChannel.open(file, opts, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+		}
+		var channel = FileChannel.open(file, opts);
+		restrict(file);
+		return channel;
+	}
+
+	private static void restrict(Path file) {
+		try {
+			Files.setPosixFilePermissions(file, OWNER_ONLY);
+		} catch (UnsupportedOperationException | IOException e) {
+			/* Not a POSIX file system */
+		}
+	}
+}
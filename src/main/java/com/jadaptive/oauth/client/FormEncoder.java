@@ -0,0 +1,100 @@
+package com.jadaptive.oauth.client;
+
+import java.util.Arrays;
+
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+/**
+ * Encodes {@code application/x-www-form-urlencoded} bodies straight to UTF-8
+ * bytes, with the same output as {@link java.net.URLEncoder}. Each thread
+ * reuses its own buffer, so the only allocation per body is the returned
+ * array.
+ */
+final class FormEncoder {
+
+	private final static byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	/* Buffers that grew this large for one body are not kept */
+	private final static int MAX_RETAINED = 64 * 1024;
+
+	private final static ThreadLocal<FormEncoder> ENCODERS = ThreadLocal.withInitial(FormEncoder::new);
+
+	private byte[] buf = new byte[512];
+	private int len;
+
+	private FormEncoder() {
+	}
+
+	static byte[] encode(NameValuePair... params) {
+		var encoder = ENCODERS.get();
+		encoder.len = 0;
+		for (var param : params) {
+			if (encoder.len > 0) {
+				encoder.put((byte) '&');
+			}
+			encoder.append(param.name());
+			if (param.value() != null) {
+				encoder.put((byte) '=');
+				encoder.append(param.value());
+			}
+		}
+		var encoded = Arrays.copyOf(encoder.buf, encoder.len);
+		if (encoder.buf.length > MAX_RETAINED) {
+			encoder.buf = new byte[512];
+		}
+		return encoded;
+	}
+
+	private void append(String str) {
+		var length = str.length();
+		for (var i = 0; i < length; i++) {
+			var c = str.charAt(i);
+			if (unreserved(c)) {
+				put((byte) c);
+			} else if (c == ' ') {
+				put((byte) '+');
+			} else if (c < 0x80) {
+				escape(c);
+			} else if (c < 0x800) {
+				escape(0xc0 | (c >> 6));
+				escape(0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+				var cp = Character.toCodePoint(c, str.charAt(++i));
+				escape(0xf0 | (cp >> 18));
+				escape(0x80 | ((cp >> 12) & 0x3f));
+				escape(0x80 | ((cp >> 6) & 0x3f));
+				escape(0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				/* Unpaired, replaced as the UTF-8 encoder does */
+				escape('?');
+			} else {
+				escape(0xe0 | (c >> 12));
+				escape(0x80 | ((c >> 6) & 0x3f));
+				escape(0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private static boolean unreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+				|| c == '.' || c == '*';
+	}
+
+	private void escape(int b) {
+		ensure(3);
+		buf[len++] = '%';
+		buf[len++] = HEX[(b >> 4) & 0xf];
+		buf[len++] = HEX[b & 0xf];
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		buf[len++] = b;
+	}
+
+	private void ensure(int extra) {
+		if (len + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+		}
+	}
+}
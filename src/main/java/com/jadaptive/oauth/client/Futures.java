@@ -0,0 +1,49 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+final class Futures {
+
+	private Futures() {
+	}
+
+	static <T> T await(Future<T> future) throws IOException, ResponseException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			/* The future may be shared with other callers, so it is not cancelled */
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.", e);
+		} catch (CancellationException e) {
+			throw new IOException("Cancelled.", e);
+		} catch (ExecutionException e) {
+			throw rethrow(e.getCause());
+		}
+	}
+
+	static Throwable unwrap(Throwable cause) {
+		while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+				&& cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause;
+	}
+
+	static IOException rethrow(Throwable cause) throws ResponseException {
+		cause = unwrap(cause);
+		if (cause instanceof IOException ioe) {
+			return ioe;
+		} else if (cause instanceof ResponseException re) {
+			throw re;
+		} else if (cause instanceof RuntimeException rte) {
+			throw rte;
+		} else if (cause instanceof Error err) {
+			throw err;
+		}
+		return new IOException(cause);
+	}
+}
@@ -4,20 +4,23 @@ import java.io.IOException;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.net.URI;
-import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublisher;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
@@ -29,13 +32,31 @@ public final class Http {
 
 	public final static class Builder {
 		private Optional<URI> uri = Optional.empty();
-		private Optional<Supplier<HttpClient>> clientSupplier = Optional.empty();
+		private Optional<Supplier<HttpTransport>> transportSupplier = Optional.empty();
 		private List<NameValuePair> headers = new ArrayList<>();
+		private boolean http2;
+		private boolean compression;
+		private Optional<RetryPolicy> retryPolicy = Optional.empty();
+		private Optional<HttpCache> cache = Optional.empty();
+		private Optional<ConcurrencyLimiter> limiter = Optional.empty();
+		private Optional<CircuitBreaker> breaker = Optional.empty();
+		private Optional<EndpointSet> endpoints = Optional.empty();
+		private boolean hedging;
+		private Optional<RefreshingAuthorization> authorization = Optional.empty();
 
 		public Builder fromHttp(Http http) {
-			return withUri(http.uri).
-				withClient(http.clientSupplier).
-				withHeaders(http.headers);
+			this.retryPolicy = http.retryPolicy;
+			this.cache = http.cache;
+			this.limiter = http.limiter;
+			this.breaker = http.breaker;
+			this.transportSupplier = Optional.of(http.transportSupplier);
+			this.hedging = http.hedging;
+			this.authorization = http.authorization;
+			withUri(http.uri);
+			this.endpoints = http.endpoints;
+			return withHeaders(http.headers).
+				withHttp2(http.http2).
+				withCompression(http.compression);
 		}
 
 		public Builder withHost(String hostname) {
@@ -73,23 +94,181 @@ public final class Http {
 
 		public Builder withUri(URI uri) {
 			this.uri = Optional.of(uri);
+			this.endpoints = Optional.empty();
+			return this;
+		}
+
+		public Builder withEndpoints(URI... endpoints) {
+			return withEndpoints(Arrays.asList(endpoints));
+		}
+
+		/**
+		 * Spread requests over several nodes of the same server. The first is
+		 * the primary, and becomes this {@link Http}'s URI. Requests to its
+		 * origin are sent to the healthy node with the lowest recent latency
+		 * and load, and fail over to another node if a connection cannot be
+		 * made. Only the scheme and authority are changed, so all nodes must
+		 * serve the same paths, and accept DPoP proofs naming the primary.
+		 * Any {@link ConcurrencyLimiter} admits each copy sent to a node
+		 * separately, while any {@link CircuitBreaker} sees only the outcome
+		 * of the request as a whole.
+		 * <p>
+		 * Copied by {@link #fromHttp(Http)}, so every derived {@link Http}
+		 * shares what is known of the nodes' health.
+		 *
+		 * @param endpoints node URIs, primary first
+		 * @return this for chaining
+		 */
+		public Builder withEndpoints(Collection<URI> endpoints) {
+			var set = new EndpointSet(endpoints);
+			this.uri = Optional.of(set.primary());
+			this.endpoints = Optional.of(set);
+			return this;
+		}
+
+		/**
+		 * With several {@link #withEndpoints(Collection) endpoints}, hedge
+		 * requests that are safe to repeat, such as device code polls, token
+		 * exchanges, client credentials grants and GET requests. If no response
+		 * has arrived within the 95th percentile of recent response times, a
+		 * copy is sent to another node and whichever answers first is used.
+		 * Refresh token grants are never hedged, as a server that rotates
+		 * refresh tokens would revoke the loser's. Copied by
+		 * {@link #fromHttp(Http)}.
+		 *
+		 * @param hedging hedge requests
+		 * @return this for chaining
+		 */
+		public Builder withHedging(boolean hedging) {
+			this.hedging = hedging;
 			return this;
 		}
 
 		public Builder withClient(HttpClient client) {
-			return withClient(() -> client);
+			return withTransport(HttpTransport.of(client));
 		}
 
+		/**
+		 * Use the client shared by everything with the same certificate
+		 * configuration, from {@link HttpClientPool#getDefault()}.
+		 *
+		 * @param certManager certificate manager
+		 * @return this for chaining
+		 */
 		public Builder withDefaultClient(CertManager certManager) {
-			return withClient(() -> {
-		        var bldr =  HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1);
-		        bldr.sslContext(certManager.getSSLContext()).sslParameters(certManager.getSSLParameters());
-		        return bldr.connectTimeout(Duration.ofSeconds(15)).followRedirects(HttpClient.Redirect.NORMAL).build();
-			});
+			return withDefaultClient(certManager, HttpClientPool.getDefault());
+		}
+
+		/**
+		 * Use the client shared by everything with the same certificate
+		 * configuration in a pool.
+		 *
+		 * @param certManager certificate manager
+		 * @param pool pool
+		 * @return this for chaining
+		 */
+		public Builder withDefaultClient(CertManager certManager, HttpClientPool pool) {
+			return withClient(pool.client(certManager));
+		}
+
+		/**
+		 * Request HTTP/2 for {@code https} URIs. The protocol is negotiated with
+		 * ALPN during the TLS handshake, and HTTP/1.1 is used if the server does
+		 * not offer {@code h2}. Once negotiated, concurrent requests to a host are
+		 * multiplexed over a single connection. Plain {@code http} URIs always use
+		 * HTTP/1.1, avoiding the cleartext upgrade some servers mishandle.
+		 * <p>
+		 * Copied by {@link #fromHttp(Http)}, so the {@link Http} passed to token
+		 * handlers and returned by {@link Http#authenticate(String)} inherits it.
+		 *
+		 * @param http2 request HTTP/2
+		 * @return this for chaining
+		 */
+		public Builder withHttp2(boolean http2) {
+			this.http2 = http2;
+			return this;
+		}
+
+		/**
+		 * Ask for compressed responses with {@code Accept-Encoding: gzip, deflate}.
+		 * Compressed bodies are inflated as they arrive, which helps with large
+		 * JSON documents over slow links. Copied by {@link #fromHttp(Http)}.
+		 *
+		 * @param compression request compressed responses
+		 * @return this for chaining
+		 */
+		public Builder withCompression(boolean compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * Retry requests that fail with a transient error, see {@link RetryPolicy}.
+		 * Copied by {@link #fromHttp(Http)}, so one policy and its statistics are
+		 * shared by every {@link Http} derived from this one.
+		 *
+		 * @param retryPolicy retry policy
+		 * @return this for chaining
+		 */
+		public Builder withRetryPolicy(RetryPolicy retryPolicy) {
+			this.retryPolicy = Optional.of(retryPolicy);
+			return this;
+		}
+
+		/**
+		 * Cache the responses to GET requests, see {@link HttpCache}. Copied by
+		 * {@link #fromHttp(Http)}, so authenticated copies share the cache, with
+		 * their entries kept apart by their {@code Authorization} header.
+		 *
+		 * @param cache cache
+		 * @return this for chaining
+		 */
+		public Builder withCache(HttpCache cache) {
+			this.cache = Optional.of(cache);
+			return this;
+		}
+
+		/**
+		 * Limit the requests in flight to each host, see {@link ConcurrencyLimiter}.
+		 * Copied by {@link #fromHttp(Http)}, so API calls made with an
+		 * authenticated copy share the limit with the token requests they
+		 * depend on, which are given priority.
+		 *
+		 * @param limiter limiter
+		 * @return this for chaining
+		 */
+		public Builder withConcurrencyLimiter(ConcurrencyLimiter limiter) {
+			this.limiter = Optional.of(limiter);
+			return this;
+		}
+
+		/**
+		 * Fail fast when an endpoint is known to be down, see
+		 * {@link CircuitBreaker}. Copied by {@link #fromHttp(Http)}.
+		 *
+		 * @param breaker circuit breaker
+		 * @return this for chaining
+		 */
+		public Builder withCircuitBreaker(CircuitBreaker breaker) {
+			this.breaker = Optional.of(breaker);
+			return this;
 		}
 
 		public Builder withClient(Supplier<HttpClient> clientSupplier) {
-			this.clientSupplier = Optional.of(clientSupplier);
+			this.transportSupplier = Optional.of(() -> HttpTransport.of(clientSupplier.get()));
+			return this;
+		}
+
+		/**
+		 * Carry requests over something other than a {@link HttpClient}, for
+		 * example a {@link LoopbackTransport}. Replaces any client, and is copied by
+		 * {@link #fromHttp(Http)}.
+		 *
+		 * @param transport transport
+		 * @return this for chaining
+		 */
+		public Builder withTransport(HttpTransport transport) {
+			this.transportSupplier = Optional.of(() -> transport);
 			return this;
 		}
 
@@ -101,13 +280,31 @@ public final class Http {
 	static Logger log = System.getLogger(Http.class.getName());
 
 	private final URI uri;
-	private final Supplier<HttpClient> clientSupplier;
+	private final Supplier<HttpTransport> transportSupplier;
 	private final List<NameValuePair> headers;
+	private final boolean http2;
+	private final boolean compression;
+	private final Optional<RetryPolicy> retryPolicy;
+	private final Optional<HttpCache> cache;
+	private final Optional<ConcurrencyLimiter> limiter;
+	private final Optional<CircuitBreaker> breaker;
+	private final Optional<EndpointSet> endpoints;
+	private final boolean hedging;
+	private final Optional<RefreshingAuthorization> authorization;
 
 	private Http(Builder bldr) {
 		this.uri = bldr.uri.orElseThrow(() -> new IllegalStateException("No URI supplied."));
-		this.clientSupplier = bldr.clientSupplier.orElseThrow(() -> new IllegalStateException("No client supplied."));
+		this.transportSupplier = bldr.transportSupplier.orElseThrow(() -> new IllegalStateException("No client supplied."));
 		this.headers = Collections.unmodifiableList(new ArrayList<>(bldr.headers));
+		this.http2 = bldr.http2;
+		this.compression = bldr.compression;
+		this.retryPolicy = bldr.retryPolicy;
+		this.cache = bldr.cache;
+		this.limiter = bldr.limiter;
+		this.breaker = bldr.breaker;
+		this.endpoints = bldr.endpoints;
+		this.hedging = bldr.hedging;
+		this.authorization = bldr.authorization;
 	}
 
 	public URI getUri() {
@@ -115,41 +312,40 @@ public final class Http {
 	}
 
 	public String get(String path, NameValuePair... headers) throws IOException, ResponseException {
-		var url = uri.resolve(path);
-		var client = clientSupplier.get();
-
-		try {
-			var bldr = newBuilder(url).header("Content-Type", APPLICATION_X_WWW_FORM_URLENCODED);
-			this.headers.forEach(h -> bldr.header(h.name(), h.value()));
-			for (var hdr : headers) {
-				bldr.header(hdr.name(), hdr.value());
-			}
-			var request = bldr.GET().build();
-
-			log.log(Level.DEBUG, "Executing request " + request.toString());
-
-			var response = client.send(request, HttpResponse.BodyHandlers.ofString());
-			var body = response.body();
-			if (response.statusCode() != 200) {
-				var ctype = response.headers().firstValue("Content-Type").orElse(null);
-				if (APPLICATION_JSON.equals(ctype)) {
-					throw new ResponseException(JsonUtil.parseJSON(body), response.headers());
-				}
-				throw new IOException(body);
-			}
-			return body;
-		} catch (InterruptedException e) {
-			throw new IllegalStateException(e);
+		var request = request(path, headers, APPLICATION_X_WWW_FORM_URLENCODED).GET().build();
+		if (cache.isPresent()) {
+			return Futures.await(cachedAsync(cache.get(), request));
 		}
+		return send(() -> request, false);
 	}
 	
 	public Http authenticate(String authentication) {
-		return new Http.Builder().
+		var bldr = new Http.Builder().
 			fromHttp(this).
 			addHeaders(new NameValuePair[] {
 				new NameValuePair("Authorization", authentication)
-			}).
-			build();
+			});
+		bldr.authorization = Optional.empty();
+		return bldr.build();
+	}
+
+	/**
+	 * Get a copy that authenticates with a credential that can be renewed,
+	 * such as an access token with a refresh token. When a request is
+	 * rejected with a {@code 401} or an {@code invalid_token} error, the
+	 * credential is renewed once, however many requests were rejected, and
+	 * the request is sent again with the new {@code Authorization} header.
+	 * Requests started while the renewal is under way wait for it. If the
+	 * renewal fails, the rejection is returned to the caller.
+	 *
+	 * @param authentication {@code Authorization} header value
+	 * @param renewal supplies a new header value
+	 * @return authenticated copy
+	 */
+	public Http authenticate(String authentication, Supplier<CompletableFuture<String>> renewal) {
+		var bldr = new Http.Builder().fromHttp(this);
+		bldr.authorization = Optional.of(new RefreshingAuthorization(authentication, renewal));
+		return bldr.build();
 	}
 
 	public String postJson(String path, String json)
@@ -164,51 +360,396 @@ public final class Http {
 
 	public String post(String path, NameValuePair[] headers, String contentType, BodyPublisher content)
 			throws IOException, ResponseException {
-		var url = uri.resolve(path);
-		var client = clientSupplier.get();
+		var request = request(path, headers, contentType).POST(content).build();
+		return send(() -> request, false);
+	}
 
-		try {
-			var bldr = newBuilder(url).header("Content-Type", contentType);
-			this.headers.forEach(h -> bldr.header(h.name(), h.value()));
-			for (var hdr : headers) {
-				bldr.header(hdr.name(), hdr.value());
-			}
-			var request = bldr.POST(content).build();
+	/**
+	 * Asynchronous version of {@link #get(String, NameValuePair...)}. The
+	 * calling thread never blocks. A response other than 200 completes the
+	 * future exceptionally with a {@link ResponseException} for a JSON error
+	 * body, or otherwise an {@link HttpStatusException}.
+	 *
+	 * @param path path
+	 * @param headers additional headers
+	 * @return future response body
+	 */
+	public CompletableFuture<String> getAsync(String path, NameValuePair... headers) {
+		var request = request(path, headers, APPLICATION_X_WWW_FORM_URLENCODED).GET().build();
+		if (cache.isPresent()) {
+			return cachedAsync(cache.get(), request);
+		}
+		return sendAsync(request.uri(), () -> request, false, false);
+	}
 
-			log.log(Level.DEBUG, "Executing request " + request.toString());
+	public CompletableFuture<String> postJsonAsync(String path, String json) {
+		return postAsync(path, new NameValuePair[0], APPLICATION_JSON, BodyPublishers.ofString(json));
+	}
+
+	public CompletableFuture<String> postFormAsync(String path, NameValuePair... postVariables) {
+		return postAsync(path, new NameValuePair[0], APPLICATION_X_WWW_FORM_URLENCODED, ofNameValuePairs(postVariables));
+	}
+
+	public CompletableFuture<String> postAsync(String path, NameValuePair[] headers, String contentType, BodyPublisher content) {
+		var request = request(path, headers, contentType).POST(content).build();
+		return sendAsync(request.uri(), () -> request, false, false);
+	}
+
+	/**
+	 * Send a POST request whose headers are created for each attempt, so that
+	 * for example every retry carries a fresh DPoP proof.
+	 *
+	 * @param path path
+	 * @param headers supplies headers for each attempt
+	 * @param contentType content type
+	 * @param content content
+	 * @param safe the request may be repeated after a failure with no ill effect
+	 * @return future response body
+	 */
+	CompletableFuture<String> postAsync(String path, Supplier<NameValuePair[]> headers, String contentType, byte[] content,
+			boolean safe) {
+		return template(path, contentType).postAsync(headers, content, safe);
+	}
+
+	/**
+	 * Prepare a template for repeated requests to one path, for example device
+	 * code polls. The URI is resolved, and the fixed headers are validated,
+	 * only once. Templates are used for token endpoint traffic, so their
+	 * requests take the priority lane of any {@link ConcurrencyLimiter}.
+	 *
+	 * @param path path
+	 * @param contentType content type
+	 * @param headers fixed headers, in addition to this {@link Http}'s own
+	 * @return template
+	 */
+	Template template(String path, String contentType, NameValuePair... headers) {
+		return new Template(uri.resolve(path), request(path, headers, contentType));
+	}
+
+	final class Template {
+		private final URI target;
+		/* Never modified after creation, so may be copied by many threads at once */
+		private final HttpRequest.Builder base;
+
+		private Template(URI target, HttpRequest.Builder base) {
+			this.target = target;
+			this.base = base;
+		}
+
+		CompletableFuture<String> postAsync(Supplier<NameValuePair[]> headers, byte[] content, boolean safe) {
+			return sendAsync(target, () -> {
+				var bldr = base.copy();
+				for (var hdr : headers.get()) {
+					bldr.header(hdr.name(), hdr.value());
+				}
+				return bldr.POST(BodyPublishers.ofByteArray(content)).build();
+			}, safe, true);
+		}
+	}
+
+	/**
+	 * Send a GET request, completing with the response whatever its status, so
+	 * the caller can inspect the status and headers. Used to fetch the server
+	 * metadata token requests depend on, so takes the priority lane.
+	 */
+	CompletableFuture<HttpResponse<String>> getResponseAsync(String path, NameValuePair... headers) {
+		var request = request(path, headers, APPLICATION_X_WWW_FORM_URLENCODED).GET().build();
+		return authorizedAsync(request.uri(), () -> request, false, true);
+	}
 
-			var response = client.send(request, HttpResponse.BodyHandlers.ofString());
-			var body = response.body();
-			if (response.statusCode() != 200) {
-				var ctype = response.headers().firstValue("Content-Type").orElse(null);
-				if (APPLICATION_JSON.equals(ctype)) {
-					throw new ResponseException(JsonUtil.parseJSON(body), response.headers());
+	private HttpRequest.Builder request(String path, NameValuePair[] headers, String contentType) {
+		var bldr = newBuilder(uri.resolve(path)).header("Content-Type", contentType);
+		if (compression) {
+			bldr.header("Accept-Encoding", Decompression.ACCEPT_ENCODING);
+		}
+		this.headers.forEach(h -> bldr.header(h.name(), h.value()));
+		authorization.ifPresent(auth -> bldr.setHeader("Authorization", auth.value()));
+		for (var hdr : headers) {
+			bldr.header(hdr.name(), hdr.value());
+		}
+		return bldr;
+	}
+
+	private String send(Supplier<HttpRequest> requests, boolean safe) throws IOException, ResponseException {
+		if (authorization.isPresent() || endpoints.isPresent()) {
+			/* Renewals, hedges and failovers may be shared or run concurrently, so are awaited asynchronously */
+			return Futures.await(sendAsync(requests.get().uri(), requests, safe, false));
+		}
+		var transport = transportSupplier.get();
+		try {
+			for (var attempt = 1;; attempt++) {
+				var request = requests.get();
+				log.log(Level.DEBUG, "Executing request " + request.toString());
+				HttpResponse<String> response = null;
+				long delay;
+				var call = circuit(request.uri());
+				ConcurrencyLimiter.Permit permit;
+				try {
+					permit = admit(request.uri());
+				} catch (IOException | InterruptedException e) {
+					call.abandon();
+					throw e;
 				}
-				throw new IOException(body);
+				try {
+					response = transport.send(request, bodyHandler());
+					call.complete(response, null);
+					delay = retryPolicy.isEmpty() ? -1 : retryPolicy.get().delay(request.method(), safe, attempt, response, null);
+				} catch (IOException ioe) {
+					call.complete(null, ioe);
+					delay = retryPolicy.isEmpty() ? -1 : retryPolicy.get().delay(request.method(), safe, attempt, null, ioe);
+					if (delay < 0) {
+						throw ioe;
+					}
+				} finally {
+					permit.release();
+					call.abandon();
+				}
+				/* The permit is released first, so a request waiting to be retried does not occupy a slot */
+				if (delay < 0) {
+					return handle(response);
+				}
+				Thread.sleep(delay);
 			}
-			return body;
 		} catch (InterruptedException e) {
-			throw new IllegalStateException(e);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.", e);
 		}
+	}
 
+	private CompletableFuture<String> cachedAsync(HttpCache cache, HttpRequest request) {
+		var stored = cache.lookup(request);
+		if (stored.isPresent() && stored.get().fresh() && !cache.mustRevalidate(request)) {
+			cache.hit();
+			return CompletableFuture.completedFuture(stored.get().body());
+		}
+		var conditional = stored.map(entry -> {
+			var bldr = HttpRequest.newBuilder(request, (n, v) -> true);
+			if (entry.etag() != null) {
+				bldr.header("If-None-Match", entry.etag());
+			}
+			if (entry.lastModified() != null) {
+				bldr.header("If-Modified-Since", entry.lastModified());
+			}
+			return bldr.build();
+		}).orElse(request);
+		return authorizedAsync(conditional.uri(), () -> conditional, false, false).thenApply(response -> {
+			if (response.statusCode() == 304 && stored.isPresent()) {
+				return cache.revalidated(request, stored.get(), response).body();
+			}
+			try {
+				var body = handle(response);
+				cache.store(request, response);
+				return body;
+			} catch (IOException | ResponseException e) {
+				throw new CompletionException(e);
+			}
+		});
 	}
 
-	private HttpRequest.Builder newBuilder(URI url) {
-		return HttpRequest.newBuilder(url);
+	private CompletableFuture<String> sendAsync(URI target, Supplier<HttpRequest> requests, boolean safe, boolean priority) {
+		return authorizedAsync(target, requests, safe, priority).thenApply(response -> {
+			try {
+				return handle(response);
+			} catch (IOException | ResponseException e) {
+				throw new CompletionException(e);
+			}
+		});
 	}
 
-	public static HttpRequest.BodyPublisher ofNameValuePairs(NameValuePair... parms) {
-		var b = new StringBuilder();
-		for (var n : parms) {
-			if (b.length() > 0) {
-				b.append("&");
+	private CompletableFuture<HttpResponse<String>> authorizedAsync(URI target, Supplier<HttpRequest> requests, boolean safe,
+			boolean priority) {
+		if (authorization.isEmpty()) {
+			return exchangeAsync(target, requests, safe, priority, 1);
+		}
+		var auth = authorization.get();
+		return auth.current().thenCompose(value -> exchangeAsync(target, authorized(requests, value), safe, priority, 1)
+				.thenCompose(response -> {
+					if (!RefreshingAuthorization.rejects(response)) {
+						return CompletableFuture.completedFuture(response);
+					}
+					/* The request was refused before being processed, so may be sent again whatever its method */
+					return auth.rejected(value).handle((fresh, ex) -> {
+						if (ex != null) {
+							log.log(Level.WARNING, "Could not renew authorization for {0}", target);
+							log.log(Level.DEBUG, "Renewal failed", ex);
+							return CompletableFuture.completedFuture(response);
+						}
+						return exchangeAsync(target, authorized(requests, fresh), safe, priority, 1);
+					}).thenCompose(Function.identity());
+				}));
+	}
+
+	private static Supplier<HttpRequest> authorized(Supplier<HttpRequest> requests, String value) {
+		return () -> {
+			var request = requests.get();
+			if (request.headers().allValues("Authorization").equals(List.of(value))) {
+				return request;
 			}
-			b.append(URLEncoder.encode(n.name(), StandardCharsets.UTF_8));
-			if (n.value() != null) {
-				b.append('=');
-				b.append(URLEncoder.encode(n.value(), StandardCharsets.UTF_8));
+			return HttpRequest.newBuilder(request, (n, v) -> !n.equalsIgnoreCase("Authorization"))
+					.header("Authorization", value).build();
+		};
+	}
+
+	private CompletableFuture<HttpResponse<String>> exchangeAsync(URI target, Supplier<HttpRequest> requests, boolean safe,
+			boolean priority, int attempt) {
+		CircuitBreaker.Call call;
+		try {
+			call = circuit(target);
+		} catch (CircuitOpenException coe) {
+			return CompletableFuture.failedFuture(coe);
+		}
+		var transport = transportSupplier.get();
+		var built = new AtomicReference<HttpRequest>();
+		Supplier<HttpRequest> recorded = () -> {
+			var request = requests.get();
+			built.compareAndSet(null, request);
+			return request;
+		};
+		CompletableFuture<HttpResponse<String>> future;
+		if (endpoints.isEmpty()) {
+			future = admitted(transport, target, priority, recorded);
+		} else {
+			/* Each copy of a hedged or failed over request is admitted separately */
+			future = endpoints.get().send(target, recorded, hedging,
+					() -> RetryPolicy.repeatable(built.get().method(), safe),
+					(uri, copies) -> admitted(transport, uri, priority, copies));
+		}
+		/* The caller only sees the outcome once the circuit has recorded it */
+		future = future.whenComplete((response, ex) -> {
+			if (built.get() == null) {
+				/* Never sent, for example refused by the limiter */
+				call.abandon();
+			} else {
+				call.complete(response, ex);
 			}
+		});
+		if (retryPolicy.isEmpty()) {
+			return future;
 		}
-		return HttpRequest.BodyPublishers.ofString(b.toString());
+		return future.handle((response, ex) -> {
+			var request = built.get();
+			var delay = request == null ? -1 : retryPolicy.get().delay(request.method(), safe, attempt, response, ex);
+			if (delay < 0) {
+				return ex == null ? CompletableFuture.completedFuture(response)
+						: CompletableFuture.<HttpResponse<String>>failedFuture(Futures.unwrap(ex));
+			}
+			return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+					.thenCompose(v -> exchangeAsync(target, requests, safe, priority, attempt + 1));
+		}).thenCompose(Function.identity());
+	}
+
+	/**
+	 * Wait for any limiter to admit a request, then create and send it. The
+	 * request is only created once admitted, so for example a DPoP proof is
+	 * not stale. Cancelling the returned future gives up the place in the
+	 * queue, or cancels the request if it has been sent.
+	 */
+	private CompletableFuture<HttpResponse<String>> admitted(HttpTransport transport, URI target, boolean priority,
+			Supplier<HttpRequest> requests) {
+		var permits = limiter.isEmpty() ? CompletableFuture.completedFuture(ConcurrencyLimiter.Permit.NONE)
+				: limiter.get().acquire(target, priority);
+		var result = new CompletableFuture<HttpResponse<String>>();
+		permits.whenComplete((permit, ex) -> {
+			if (ex != null) {
+				result.completeExceptionally(Futures.unwrap(ex));
+				return;
+			}
+			if (result.isDone()) {
+				/* Cancelled just as it was admitted */
+				permit.release();
+				return;
+			}
+			HttpRequest request;
+			try {
+				request = requests.get();
+			} catch (RuntimeException re) {
+				permit.release();
+				result.completeExceptionally(re);
+				return;
+			}
+			log.log(Level.DEBUG, "Executing request " + request.toString());
+			var sent = transport.sendAsync(request, bodyHandler());
+			sent.whenComplete((response, failure) -> {
+				permit.release();
+				if (failure == null) {
+					result.complete(response);
+				} else {
+					result.completeExceptionally(Futures.unwrap(failure));
+				}
+			});
+			result.whenComplete((response, failure) -> {
+				if (result.isCancelled()) {
+					sent.cancel(true);
+				}
+			});
+		});
+		result.whenComplete((response, ex) -> {
+			if (result.isCancelled()) {
+				permits.cancel(false);
+			}
+		});
+		return result;
+	}
+
+	private CircuitBreaker.Call circuit(URI target) throws CircuitOpenException {
+		return breaker.isEmpty() ? CircuitBreaker.Call.NONE : breaker.get().acquire(target);
+	}
+
+	private ConcurrencyLimiter.Permit admit(URI target) throws IOException, InterruptedException {
+		if (limiter.isEmpty()) {
+			return ConcurrencyLimiter.Permit.NONE;
+		}
+		var permit = limiter.get().acquire(target, false);
+		try {
+			return permit.get();
+		} catch (InterruptedException ie) {
+			if (!permit.cancel(false) && !permit.isCompletedExceptionally()) {
+				/* Admitted just as we gave up */
+				permit.join().release();
+			}
+			throw ie;
+		} catch (ExecutionException ee) {
+			var cause = Futures.unwrap(ee);
+			throw cause instanceof IOException ioe ? ioe : new IOException(cause);
+		}
+	}
+
+	private HttpResponse.BodyHandler<String> bodyHandler() {
+		return compression ? Decompression.ofString() : HttpResponse.BodyHandlers.ofString();
+	}
+
+	private String handle(HttpResponse<String> response) throws IOException, ResponseException {
+		var body = response.body();
+		if (response.statusCode() != 200) {
+			var ctype = response.headers().firstValue("Content-Type").orElse("");
+			if (isJson(ctype)) {
+				throw new ResponseException(JsonUtil.parseJSON(body), response.headers());
+			}
+			throw new HttpStatusException(response.statusCode(), response.headers(), body);
+		}
+		return body;
+	}
+
+	private static boolean isJson(String contentType) {
+		/* Allow for parameters, e.g. application/json;charset=UTF-8 */
+		var idx = contentType.indexOf(';');
+		return APPLICATION_JSON.equalsIgnoreCase((idx == -1 ? contentType : contentType.substring(0, idx)).trim());
+	}
+
+	private HttpRequest.Builder newBuilder(URI url) {
+		var bldr = HttpRequest.newBuilder(url);
+		if (http2) {
+			/* The request version overrides the client's, so shared clients can stay HTTP/1.1 */
+			bldr.version("https".equalsIgnoreCase(url.getScheme()) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1);
+		}
+		return bldr;
+	}
+
+	public static HttpRequest.BodyPublisher ofNameValuePairs(NameValuePair... parms) {
+		return HttpRequest.BodyPublishers.ofByteArray(encodeForm(parms));
+	}
+
+	static byte[] encodeForm(NameValuePair... parms) {
+		return FormEncoder.encode(parms);
 	}
 }
@@ -0,0 +1,467 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonString;
+
+/**
+ * Caches the responses to GET requests made by {@link Http}, following the
+ * HTTP caching rules of RFC 9111 for a private cache. A response is reused
+ * without contacting the server while {@code Cache-Control: max-age} or
+ * {@code Expires} says it is fresh. Once stale, it is revalidated with
+ * {@code If-None-Match} or {@code If-Modified-Since}, so an unchanged body is
+ * not downloaded again. {@code Vary} is honoured.
+ * <p>
+ * Entries are scoped by the request's {@code Authorization} header, so a
+ * response fetched for one identity is never returned to another. The number
+ * of entries held in memory is bounded, the least recently used being
+ * evicted. With a directory configured, responses are also kept on disk,
+ * but only those a shared cache could store. Responses marked
+ * {@code private}, or to requests with credentials that the server has not
+ * marked {@code public}, stay in memory.
+ */
+public final class HttpCache {
+
+	static Logger log = System.getLogger(HttpCache.class.getName());
+
+	public final static class Builder {
+		private int maxEntries = 1000;
+		private Optional<Path> directory = Optional.empty();
+
+		public Builder withMaxEntries(int maxEntries) {
+			if (maxEntries < 1) {
+				throw new IllegalArgumentException("Must allow at least one entry.");
+			}
+			this.maxEntries = maxEntries;
+			return this;
+		}
+
+		/**
+		 * Directory in which to also keep responses between runs.
+		 *
+		 * @param directory directory
+		 * @return this for chaining
+		 */
+		public Builder withDirectory(Path directory) {
+			this.directory = Optional.of(directory);
+			return this;
+		}
+
+		public HttpCache build() {
+			return new HttpCache(this);
+		}
+	}
+
+	/**
+	 * Counters describing how effective the cache is.
+	 *
+	 * @param hits requests answered from the cache without contacting the server
+	 * @param revalidations requests answered from the cache after the server
+	 *        confirmed the response was unchanged
+	 * @param misses requests that needed a full response
+	 * @param size entries held in memory
+	 */
+	public final static record Stats(long hits, long revalidations, long misses, int size) {
+	}
+
+	/**
+	 * A stored response.
+	 *
+	 * @param vary values of the request headers named by {@code Vary}
+	 * @param body response body
+	 * @param etag entity tag, or null
+	 * @param lastModified last modified date, or null
+	 * @param expires time the response becomes stale
+	 * @param persist may be kept on disk
+	 */
+	record Entry(Map<String, String> vary, String body, String etag, String lastModified, long expires,
+			boolean persist) {
+
+		boolean fresh() {
+			return System.currentTimeMillis() < expires;
+		}
+
+		private JsonObject toJson() {
+			var varyObj = Json.createObjectBuilder();
+			vary.forEach(varyObj::add);
+			var bldr = Json.createObjectBuilder()
+					.add("vary", varyObj)
+					.add("body", body)
+					.add("expires", expires);
+			if (etag != null) {
+				bldr.add("etag", etag);
+			}
+			if (lastModified != null) {
+				bldr.add("last_modified", lastModified);
+			}
+			return bldr.build();
+		}
+
+		private static Entry fromJson(JsonObject obj) {
+			var vary = new TreeMap<String, String>();
+			obj.getJsonObject("vary").forEach((k, v) -> vary.put(k, ((JsonString) v).getString()));
+			return new Entry(vary, obj.getString("body"), obj.getString("etag", null),
+					obj.getString("last_modified", null), obj.getJsonNumber("expires").longValue(), true);
+		}
+	}
+
+	private final static class Variants {
+		private final List<String> varyHeaders;
+		private final List<Entry> entries = new ArrayList<>();
+
+		private Variants(List<String> varyHeaders) {
+			this.varyHeaders = varyHeaders;
+		}
+	}
+
+	private final int maxEntries;
+	private final Optional<Path> directory;
+
+	/* Guarded by this */
+	private final LinkedHashMap<String, Variants> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder revalidations = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private HttpCache(Builder bldr) {
+		this.maxEntries = bldr.maxEntries;
+		this.directory = bldr.directory;
+	}
+
+	public Stats stats() {
+		synchronized (this) {
+			return new Stats(hits.sum(), revalidations.sum(), misses.sum(), cache.size());
+		}
+	}
+
+	/**
+	 * Remove every entry, in memory and on disk.
+	 */
+	public void clear() {
+		synchronized (this) {
+			cache.clear();
+		}
+		directory.ifPresent(dir -> {
+			try (var files = Files.list(dir)) {
+				for (var file : files.filter(f -> f.getFileName().toString().endsWith(".response")).toList()) {
+					Files.deleteIfExists(file);
+				}
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to clear cache directory.", e);
+			}
+		});
+	}
+
+	/**
+	 * Find the stored response for a request, fresh or not.
+	 *
+	 * @param request request
+	 * @return entry
+	 */
+	Optional<Entry> lookup(HttpRequest request) {
+		if (noCache(request.headers(), "no-store")) {
+			return Optional.empty();
+		}
+		var key = key(request);
+		Variants variants;
+		synchronized (this) {
+			variants = cache.get(key);
+		}
+		if (variants == null) {
+			variants = load(key).orElse(null);
+			if (variants == null) {
+				return Optional.empty();
+			}
+			synchronized (this) {
+				if (cache.putIfAbsent(key, variants) == null) {
+					trim();
+				}
+			}
+		}
+		var vary = varyValues(variants.varyHeaders, request.headers());
+		synchronized (this) {
+			return variants.entries.stream().filter(e -> e.vary().equals(vary)).findFirst();
+		}
+	}
+
+	/**
+	 * Whether the request forbids answering from the cache without asking the
+	 * server.
+	 *
+	 * @param request request
+	 * @return must revalidate
+	 */
+	boolean mustRevalidate(HttpRequest request) {
+		return noCache(request.headers(), "no-cache");
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	/**
+	 * Store a complete response, if it may be cached.
+	 *
+	 * @param request request
+	 * @param response response
+	 */
+	void store(HttpRequest request, HttpResponse<String> response) {
+		misses.increment();
+		var headers = response.headers();
+		var control = CacheControl.parse(headers);
+		if (response.statusCode() != 200 || control.noStore() || noCache(request.headers(), "no-store")) {
+			return;
+		}
+		var varyHeaders = varyHeaders(headers);
+		if (varyHeaders.contains("*")) {
+			return;
+		}
+		var etag = headers.firstValue("ETag").orElse(null);
+		var lastModified = headers.firstValue("Last-Modified").orElse(null);
+		var expires = expires(headers, control);
+		if (expires <= System.currentTimeMillis() && etag == null && lastModified == null) {
+			/* Could neither be reused nor revalidated */
+			return;
+		}
+		var credentials = request.headers().firstValue("Authorization").isPresent();
+		var persist = !control.isPrivate() && (!credentials || control.isPublic());
+		var entry = new Entry(varyValues(varyHeaders, request.headers()), response.body(), etag, lastModified, expires,
+				persist);
+		put(key(request), varyHeaders, entry);
+	}
+
+	/**
+	 * Update a stored response after the server confirmed it is unchanged.
+	 *
+	 * @param request request
+	 * @param entry stored response
+	 * @param response {@code 304} response
+	 * @return updated entry
+	 */
+	Entry revalidated(HttpRequest request, Entry entry, HttpResponse<String> response) {
+		revalidations.increment();
+		var headers = response.headers();
+		var control = CacheControl.parse(headers);
+		if (control.noStore()) {
+			return entry;
+		}
+		/* A 304 need not repeat the validators */
+		var updated = new Entry(entry.vary(), entry.body(),
+				headers.firstValue("ETag").orElse(entry.etag()),
+				headers.firstValue("Last-Modified").orElse(entry.lastModified()),
+				expires(headers, control), entry.persist() && !control.isPrivate());
+		put(key(request), varyHeaders(headers), updated);
+		return updated;
+	}
+
+	private void put(String key, List<String> varyHeaders, Entry entry) {
+		Variants variants;
+		synchronized (this) {
+			variants = cache.get(key);
+			if (variants == null || !variants.varyHeaders.equals(varyHeaders)) {
+				/* Vary changed, so previous variants can no longer be matched */
+				variants = new Variants(varyHeaders);
+				cache.put(key, variants);
+			}
+			variants.entries.removeIf(e -> e.vary().equals(entry.vary()));
+			variants.entries.add(entry);
+			trim();
+		}
+		save(key, variants);
+	}
+
+	private void trim() {
+		/* Entries are in access order, so the least recently used is always at the head */
+		var it = cache.values().iterator();
+		while (cache.size() > maxEntries) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private Optional<Variants> load(String key) {
+		if (directory.isEmpty()) {
+			return Optional.empty();
+		}
+		var file = directory.get().resolve(fileName(key));
+		if (!Files.exists(file)) {
+			return Optional.empty();
+		}
+		try (var rdr = Json.createReader(new StringReader(Files.readString(file)))) {
+			var obj = rdr.readObject();
+			if (!key.equals(obj.getString("key", null))) {
+				return Optional.empty();
+			}
+			var variants = new Variants(obj.getJsonArray("vary").getValuesAs(JsonString.class).stream()
+					.map(JsonString::getString).toList());
+			obj.getJsonArray("entries").getValuesAs(JsonObject.class).forEach(e -> variants.entries.add(Entry.fromJson(e)));
+			return Optional.of(variants);
+		} catch (IOException | RuntimeException e) {
+			log.log(Level.WARNING, "Ignoring unreadable cached response " + file, e);
+			return Optional.empty();
+		}
+	}
+
+	private void save(String key, Variants variants) {
+		if (directory.isEmpty()) {
+			return;
+		}
+		var vary = Json.createArrayBuilder();
+		var entries = Json.createArrayBuilder();
+		synchronized (this) {
+			variants.varyHeaders.forEach(vary::add);
+			variants.entries.stream().filter(Entry::persist).forEach(e -> entries.add(e.toJson()));
+		}
+		var dir = directory.get();
+		var file = dir.resolve(fileName(key));
+		try {
+			var json = Json.createObjectBuilder().add("key", key).add("vary", vary).add("entries", entries).build();
+			if (json.getJsonArray("entries").isEmpty()) {
+				Files.deleteIfExists(file);
+				return;
+			}
+			Files.createDirectories(dir);
+			var tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+			Files.writeString(tmp, json.toString());
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Failed to save cached response.", e);
+		}
+	}
+
+	private static String key(HttpRequest request) {
+		/* Never share responses between identities, and never keep credentials in the key */
+		var authorization = request.headers().firstValue("Authorization").map(HttpCache::hash).orElse("");
+		return request.uri() + " " + authorization;
+	}
+
+	private static List<String> varyHeaders(HttpHeaders headers) {
+		var names = new ArrayList<String>();
+		for (var value : headers.allValues("Vary")) {
+			for (var name : value.split(",")) {
+				name = name.trim().toLowerCase();
+				if (!name.isEmpty() && !names.contains(name)) {
+					names.add(name);
+				}
+			}
+		}
+		names.sort(null);
+		return names;
+	}
+
+	private static Map<String, String> varyValues(List<String> varyHeaders, HttpHeaders requestHeaders) {
+		var values = new TreeMap<String, String>();
+		for (var name : varyHeaders) {
+			values.put(name, String.join(",", requestHeaders.allValues(name)));
+		}
+		return values;
+	}
+
+	private static boolean noCache(HttpHeaders requestHeaders, String directive) {
+		return requestHeaders.allValues("Cache-Control").stream()
+				.anyMatch(v -> v.toLowerCase().contains(directive));
+	}
+
+	private static long expires(HttpHeaders headers, CacheControl control) {
+		var now = System.currentTimeMillis();
+		if (control.noCache()) {
+			return now;
+		}
+		if (control.maxAge() >= 0) {
+			var age = headers.firstValue("Age").map(HttpCache::parseLong).orElse(0l);
+			return now + Math.max(0, control.maxAge() - age) * 1000;
+		}
+		var expires = headers.firstValue("Expires").flatMap(HttpCache::parseDate);
+		if (expires.isPresent()) {
+			var date = headers.firstValue("Date").flatMap(HttpCache::parseDate).orElse(now);
+			return now + Math.max(0, expires.get() - date);
+		}
+		return now;
+	}
+
+	private record CacheControl(long maxAge, boolean noStore, boolean noCache, boolean isPrivate, boolean isPublic) {
+
+		static CacheControl parse(HttpHeaders headers) {
+			var maxAge = -1l;
+			boolean noStore = false, noCache = false, isPrivate = false, isPublic = false;
+			for (var value : headers.allValues("Cache-Control")) {
+				for (var directive : value.split(",")) {
+					directive = directive.trim().toLowerCase();
+					if (directive.equals("no-store")) {
+						noStore = true;
+					} else if (directive.equals("no-cache") || directive.startsWith("no-cache=")) {
+						noCache = true;
+					} else if (directive.equals("private") || directive.startsWith("private=")) {
+						isPrivate = true;
+					} else if (directive.equals("public")) {
+						isPublic = true;
+					} else if (directive.startsWith("max-age=")) {
+						maxAge = parseLong(directive.substring(8).replace("\"", ""));
+					}
+				}
+			}
+			return new CacheControl(maxAge, noStore, noCache, isPrivate, isPublic);
+		}
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	private static Optional<Long> parseDate(String value) {
+		try {
+			return Optional.of(ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli());
+		} catch (DateTimeParseException dtpe) {
+			return Optional.empty();
+		}
+	}
+
+	private static String hash(String value) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String fileName(String key) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest) + ".response";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
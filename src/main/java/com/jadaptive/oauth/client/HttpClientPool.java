@@ -0,0 +1,166 @@
+package com.jadaptive.oauth.client;
+
+import java.io.Closeable;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds one {@link HttpClient} per {@link CertManager}, so every {@link Http}
+ * using the same certificate configuration shares a client, and with it the
+ * client's selector thread and pool of kept alive connections. Without this,
+ * each request would open a new connection and repeat the TLS handshake.
+ * <p>
+ * {@link #getDefault()} is used by {@link Http.Builder#withDefaultClient(CertManager)}.
+ * Applications that want to choose the executor, or release the clients when
+ * done, can create and {@link #close()} their own pool.
+ */
+public final class HttpClientPool implements Closeable {
+
+	static Logger log = System.getLogger(HttpClientPool.class.getName());
+
+	public final static class Builder {
+		private Optional<ExecutorService> executor = Optional.empty();
+		private int threads = 0;
+		private Duration connectTimeout = Duration.ofSeconds(15);
+
+		/**
+		 * Executor used by the clients for asynchronous work. Not shut down when
+		 * the pool is closed.
+		 *
+		 * @param executor executor
+		 * @return this for chaining
+		 */
+		public Builder withExecutor(ExecutorService executor) {
+			this.executor = Optional.of(executor);
+			return this;
+		}
+
+		/**
+		 * Have the pool create its own fixed size executor, shut down when the
+		 * pool is closed.
+		 *
+		 * @param threads number of threads
+		 * @return this for chaining
+		 */
+		public Builder withThreads(int threads) {
+			if (threads < 1) {
+				throw new IllegalArgumentException("Must have at least one thread.");
+			}
+			this.threads = threads;
+			return this;
+		}
+
+		public Builder withConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+			return this;
+		}
+
+		public HttpClientPool build() {
+			return new HttpClientPool(this);
+		}
+	}
+
+	private final static class Default {
+		private final static HttpClientPool INSTANCE = new Builder().build();
+	}
+
+	/**
+	 * Get the pool shared by the whole JVM. It uses each client's default
+	 * executor, and cannot be closed.
+	 *
+	 * @return default pool
+	 */
+	public static HttpClientPool getDefault() {
+		return Default.INSTANCE;
+	}
+
+	private final Optional<ExecutorService> executor;
+	private final boolean ownsExecutor;
+	private final Duration connectTimeout;
+	private final ConcurrentHashMap<CertManager, HttpClient> clients = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+
+	private HttpClientPool(Builder bldr) {
+		if (bldr.executor.isPresent()) {
+			this.executor = bldr.executor;
+			this.ownsExecutor = false;
+		} else if (bldr.threads > 0) {
+			var counter = new AtomicInteger();
+			this.executor = Optional.of(Executors.newFixedThreadPool(bldr.threads, r -> {
+				var thread = new Thread(r, "OAuthHttp-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}));
+			this.ownsExecutor = true;
+		} else {
+			this.executor = Optional.empty();
+			this.ownsExecutor = false;
+		}
+		this.connectTimeout = bldr.connectTimeout;
+	}
+
+	/**
+	 * Get the client for a certificate configuration, creating it on first use.
+	 *
+	 * @param certManager certificate manager
+	 * @return client
+	 */
+	public HttpClient client(CertManager certManager) {
+		if (closed) {
+			throw new IllegalStateException("Pool is closed.");
+		}
+		return clients.computeIfAbsent(certManager, this::create);
+	}
+
+	/**
+	 * Number of clients created so far.
+	 *
+	 * @return clients
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	/**
+	 * Release all clients and, if the pool created it, the executor. Connections
+	 * are closed once in-flight requests complete.
+	 *
+	 * @throws IllegalStateException if this is the {@link #getDefault() default} pool
+	 */
+	@Override
+	public void close() {
+		if (this == getDefault()) {
+			throw new IllegalStateException("The default pool is shared, so cannot be closed.");
+		}
+		closed = true;
+		for (var client : clients.values()) {
+			/* HttpClient is only closeable from Java 21 */
+			if (client instanceof AutoCloseable closeable) {
+				try {
+					closeable.close();
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Failed to close client.", e);
+				}
+			}
+		}
+		clients.clear();
+		if (ownsExecutor) {
+			executor.get().shutdown();
+		}
+	}
+
+	private HttpClient create(CertManager certManager) {
+		log.log(Level.DEBUG, "Creating shared client for {0}", certManager);
+		var bldr = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1);
+		bldr.sslContext(certManager.getSSLContext()).sslParameters(certManager.getSSLParameters());
+		executor.ifPresent(bldr::executor);
+		return bldr.connectTimeout(connectTimeout).followRedirects(HttpClient.Redirect.NORMAL).build();
+	}
+}
@@ -0,0 +1,27 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.util.concurrent.CompletableFuture;
+
+final class HttpClientTransport implements HttpTransport {
+
+	private final HttpClient client;
+
+	HttpClientTransport(HttpClient client) {
+		this.client = client;
+	}
+
+	@Override
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+		return client.sendAsync(request, handler);
+	}
+
+	@Override
+	public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler) throws IOException, InterruptedException {
+		return client.send(request, handler);
+	}
+}
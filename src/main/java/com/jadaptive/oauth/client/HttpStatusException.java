@@ -0,0 +1,28 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+
+/**
+ * Thrown when a server responds with an unsuccessful status and a body that is
+ * not a JSON error object.
+ */
+@SuppressWarnings("serial")
+public class HttpStatusException extends IOException {
+	private final int status;
+	private final HttpHeaders httpHeaders;
+
+	public HttpStatusException(int status, HttpHeaders httpHeaders, String body) {
+		super(body);
+		this.status = status;
+		this.httpHeaders = httpHeaders;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public HttpHeaders getHttpHeaders() {
+		return httpHeaders;
+	}
+}
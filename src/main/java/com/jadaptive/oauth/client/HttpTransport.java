@@ -0,0 +1,71 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Carries the requests made by {@link Http}. The default is an
+ * {@link HttpClient}, see {@link #of(HttpClient)}, and
+ * {@link LoopbackTransport} dispatches requests to a handler in the same JVM.
+ * Embedded deployments may supply their own, for example over a lighter
+ * client.
+ * <p>
+ * Requests and responses are the {@code java.net.http} types, so a transport
+ * only has to move bytes. Everything else, such as retries, caching and error
+ * handling, stays in {@link Http}.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Get a transport that sends requests with a {@link HttpClient}.
+	 *
+	 * @param client client
+	 * @return transport
+	 */
+	static HttpTransport of(HttpClient client) {
+		return new HttpClientTransport(client);
+	}
+
+	/**
+	 * Send a request without blocking. The future completes with the response
+	 * whatever its status, or exceptionally with an {@link IOException} if the
+	 * request could not be sent or the response could not be read.
+	 *
+	 * @param <T> type of response body
+	 * @param request request
+	 * @param handler response body handler
+	 * @return future response
+	 */
+	<T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler);
+
+	/**
+	 * Send a request, blocking until the response is available.
+	 *
+	 * @param <T> type of response body
+	 * @param request request
+	 * @param handler response body handler
+	 * @return response
+	 * @throws IOException on error
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	default <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> handler) throws IOException, InterruptedException {
+		try {
+			return sendAsync(request, handler).get();
+		} catch (ExecutionException e) {
+			var cause = Futures.unwrap(e);
+			if (cause instanceof IOException ioe) {
+				throw ioe;
+			} else if (cause instanceof RuntimeException rte) {
+				throw rte;
+			} else if (cause instanceof Error err) {
+				throw err;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
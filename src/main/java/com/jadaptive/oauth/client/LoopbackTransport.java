@@ -0,0 +1,284 @@
+package com.jadaptive.oauth.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * A {@link HttpTransport} that passes each request straight to a
+ * {@link Handler} in the same JVM, with no sockets, TLS or HTTP framing. It
+ * lets whole flows, such as a device code grant or client credentials
+ * renewal, be tested or benchmarked at rates no network stack could sustain.
+ * <p>
+ * By default the handler runs on the thread that sends the request, so a
+ * request completes before {@code sendAsync} returns. Give an executor to
+ * answer on other threads, as a real transport would.
+ *
+ * <pre>
+ * var transport = new LoopbackTransport.Builder().withHandler(req -&gt; {
+ * 	if (req.path().equals("/oauth2/token"))
+ * 		return LoopbackTransport.Response.json(200, "{ \"access_token\": \"abc\", \"token_type\": \"Bearer\" }");
+ * 	return LoopbackTransport.Response.of(404, "text/plain", "Not found");
+ * }).build();
+ * var http = new Http.Builder().withUri("https://auth.example.com").withTransport(transport).build();
+ * </pre>
+ */
+public final class LoopbackTransport implements HttpTransport {
+
+	/**
+	 * Answers requests sent over a {@link LoopbackTransport}.
+	 */
+	@FunctionalInterface
+	public interface Handler {
+		/**
+		 * Answer a request. Throwing an {@link IOException} fails the exchange
+		 * as a broken connection would.
+		 *
+		 * @param request request
+		 * @return response
+		 * @throws IOException to simulate a transport failure
+		 */
+		Response handle(Request request) throws IOException;
+	}
+
+	/**
+	 * A request as seen by a {@link Handler}, with its body already read.
+	 *
+	 * @param request request
+	 * @param body body, empty if there is none
+	 */
+	public final static record Request(HttpRequest request, byte[] body) {
+
+		public String method() {
+			return request.method();
+		}
+
+		public URI uri() {
+			return request.uri();
+		}
+
+		public String path() {
+			return request.uri().getPath();
+		}
+
+		public Optional<String> header(String name) {
+			return request.headers().firstValue(name);
+		}
+
+		public String bodyAsString() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Decode an {@code application/x-www-form-urlencoded} body. Where a name
+		 * is repeated, the first value is used.
+		 *
+		 * @return form parameters, in order
+		 */
+		public Map<String, String> form() {
+			var form = new LinkedHashMap<String, String>();
+			var str = bodyAsString();
+			if (!str.isEmpty()) {
+				for (var pair : str.split("&")) {
+					var idx = pair.indexOf('=');
+					var name = URLDecoder.decode(idx == -1 ? pair : pair.substring(0, idx), StandardCharsets.UTF_8);
+					var value = idx == -1 ? "" : URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8);
+					form.putIfAbsent(name, value);
+				}
+			}
+			return form;
+		}
+	}
+
+	/**
+	 * A response returned by a {@link Handler}.
+	 *
+	 * @param status status code
+	 * @param headers headers
+	 * @param body body
+	 */
+	public final static record Response(int status, Map<String, List<String>> headers, byte[] body) {
+
+		public static Response json(int status, String json) {
+			return of(status, Http.APPLICATION_JSON, json);
+		}
+
+		public static Response of(int status, String contentType, String body) {
+			return new Response(status, Map.of("Content-Type", List.of(contentType)),
+					body.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Get a copy of this response with an additional header.
+		 *
+		 * @param name name
+		 * @param value value
+		 * @return response
+		 */
+		public Response withHeader(String name, String value) {
+			var hdrs = new LinkedHashMap<>(headers);
+			hdrs.put(name, List.of(value));
+			return new Response(status, hdrs, body);
+		}
+	}
+
+	public final static class Builder {
+		private Optional<Handler> handler = Optional.empty();
+		private Optional<Executor> executor = Optional.empty();
+
+		public Builder withHandler(Handler handler) {
+			this.handler = Optional.of(handler);
+			return this;
+		}
+
+		/**
+		 * Run the handler on an executor instead of the sending thread.
+		 *
+		 * @param executor executor
+		 * @return this for chaining
+		 */
+		public Builder withExecutor(Executor executor) {
+			this.executor = Optional.of(executor);
+			return this;
+		}
+
+		public LoopbackTransport build() {
+			return new LoopbackTransport(this);
+		}
+	}
+
+	private final Handler handler;
+	private final Optional<Executor> executor;
+
+	private LoopbackTransport(Builder bldr) {
+		this.handler = bldr.handler.orElseThrow(() -> new IllegalStateException("No handler supplied."));
+		this.executor = bldr.executor;
+	}
+
+	@Override
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> bodyHandler) {
+		var body = read(request);
+		var response = executor.isPresent()
+				? body.thenApplyAsync(b -> answer(request, b), executor.get())
+				: body.thenApply(b -> answer(request, b));
+		return response.thenCompose(r -> deliver(request, r, bodyHandler));
+	}
+
+	private Response answer(HttpRequest request, byte[] body) {
+		try {
+			return handler.handle(new Request(request, body));
+		} catch (IOException ioe) {
+			throw new CompletionException(ioe);
+		}
+	}
+
+	private static CompletableFuture<byte[]> read(HttpRequest request) {
+		var publisher = request.bodyPublisher();
+		if (publisher.isEmpty() || publisher.get().contentLength() == 0) {
+			return CompletableFuture.completedFuture(new byte[0]);
+		}
+		var future = new CompletableFuture<byte[]>();
+		publisher.get().subscribe(new Flow.Subscriber<ByteBuffer>() {
+			private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(ByteBuffer item) {
+				var arr = new byte[item.remaining()];
+				item.get(arr);
+				out.writeBytes(arr);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				future.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				future.complete(out.toByteArray());
+			}
+		});
+		return future;
+	}
+
+	private static <T> CompletableFuture<HttpResponse<T>> deliver(HttpRequest request, Response response,
+			BodyHandler<T> bodyHandler) {
+		var headers = HttpHeaders.of(response.headers(), (n, v) -> true);
+		var version = request.version().orElse(HttpClient.Version.HTTP_1_1);
+		var subscriber = bodyHandler.apply(new ResponseInfo() {
+			@Override
+			public int statusCode() {
+				return response.status();
+			}
+
+			@Override
+			public HttpHeaders headers() {
+				return headers;
+			}
+
+			@Override
+			public HttpClient.Version version() {
+				return version;
+			}
+		});
+		subscriber.onSubscribe(new Flow.Subscription() {
+			private boolean done;
+
+			@Override
+			public synchronized void request(long n) {
+				if (!done) {
+					done = true;
+					if (response.body().length > 0) {
+						subscriber.onNext(List.of(ByteBuffer.wrap(response.body())));
+					}
+					subscriber.onComplete();
+				}
+			}
+
+			@Override
+			public synchronized void cancel() {
+				done = true;
+			}
+		});
+		return subscriber.getBody().toCompletableFuture()
+				.thenApply(b -> new Exchange<>(response.status(), request, headers, b, request.uri(), version));
+	}
+
+	private record Exchange<T>(int statusCode, HttpRequest request, HttpHeaders headers, T body, URI uri,
+			HttpClient.Version version) implements HttpResponse<T> {
+
+		@Override
+		public Optional<HttpResponse<T>> previousResponse() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Optional<SSLSession> sslSession() {
+			return Optional.empty();
+		}
+	}
+}
@@ -11,7 +11,13 @@ public class OAuth2Objects {
     public final static record BearerToken(String error, String error_description,
                                            String access_token, long expires_in,
                                            String nonce, String token_type, String refresh_token,
-                                           long issued_at) {
+                                           long issued_at, String scope) {
+
+        public BearerToken(String error, String error_description, String access_token, long expires_in,
+                           String nonce, String token_type, String refresh_token, long issued_at) {
+            this(error, error_description, access_token, expires_in, nonce, token_type, refresh_token, issued_at, null);
+        }
+
         public BearerToken(JsonObject json) {
             this(
                 json.getString("error", null),
@@ -22,7 +28,8 @@ public class OAuth2Objects {
                 json.getString("token_type", "Bearer"),
                 json.getString("refresh_token", null),
                 json.getJsonNumber("issued_at") == null ? System.currentTimeMillis() / 1000
-                        : json.getJsonNumber("issued_at").longValue()
+                        : json.getJsonNumber("issued_at").longValue(),
+                json.getString("scope", null)
             );
         }
 
@@ -60,9 +67,35 @@ public class OAuth2Objects {
             if (issued_at > 0) {
                 bldr.add("issued_at", issued_at);
             }
+            if (scope != null) {
+                bldr.add("scope", scope);
+            }
             return bldr.build();
         }
 
+        /**
+         * Get a copy of this token with the scope it was granted. Servers may omit
+         * the scope from a token response when it is the scope that was requested.
+         *
+         * @param scope granted scope
+         * @return token
+         */
+        public BearerToken withScope(String scope) {
+            return new BearerToken(error, error_description, access_token, expires_in, nonce, token_type,
+                    refresh_token, issued_at, scope);
+        }
+
+        /**
+         * Get whether this token was granted every scope in a space delimited list.
+         * A token with no recorded scope is assumed to cover any request.
+         *
+         * @param requested requested scope
+         * @return covers requested scope
+         */
+        public boolean covers(String requested) {
+            return scope == null || Scopes.covers(scope, requested);
+        }
+
         public boolean isExpired() {
             if (expires_in <= 0) {
                 return true;
@@ -5,17 +5,46 @@ import static com.jadaptive.oauth.client.JsonUtil.parseJSON;
 import java.io.IOException;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
 import com.jadaptive.oauth.client.OAuth2Objects.DeviceCode;
 import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
 
-public final class OAuthClient {
+/**
+ * Obtains tokens using the OAuth 2.0 Device Authorization Grant.
+ * <p>
+ * A single instance may be shared between any number of threads. All
+ * configuration is immutable after {@link Builder#build()}, and the only
+ * mutable state, the current DPoP key pair, is held in a volatile field. A key
+ * pair generated or rotated by one thread is therefore visible to all threads
+ * that subsequently make a request, and a proof is always signed with the same
+ * key pair that is returned to the caller for binding. Concurrent calls to
+ * {@link #authorize()}, and concurrent calls to {@link #refresh(BearerToken)}
+ * for the same refresh token, are collapsed into a single request flow whose
+ * result is shared by all callers. Handlers are called on the thread blocked in
+ * {@link #authorize()}, or for {@link #authorizeAsync()} on the executor given
+ * to {@link Builder#withExecutor(Executor)}, never on a thread that polls or
+ * sends requests.
+ */
+public final class OAuthClient implements TokenSource {
 
 	static Logger log = System.getLogger(OAuthClient.class.getName());
+	private final static int MAX_ROTATED = 64;
 	
 	public interface TokenHandler {
 		void handle(DeviceCode deviceCode, BearerToken token, Http http) throws IOException, ResponseException;
@@ -34,6 +63,13 @@ public final class OAuthClient {
 		private java.security.KeyPair keyPair = null;
 		private Optional<Supplier<java.security.KeyPair>> dpopKeyGenerator = Optional.empty();
 		private boolean rotateDpopOnRefresh = false;
+		private Optional<DeviceFlowScheduler> deviceFlowScheduler = Optional.empty();
+		private Optional<Executor> executor = Optional.empty();
+		private Optional<TokenStore> tokenStore = Optional.empty();
+		private Optional<String> tokenStoreKey = Optional.empty();
+		private Optional<ClientAuthentication> clientAuthentication = Optional.empty();
+		private int exchangeCacheSize = 1000;
+		private Optional<ServerMetadataCache> metadataCache = Optional.empty();
 		
 		public Builder withDPoP(boolean dpop) {
 			this.dpop = dpop;
@@ -60,6 +96,33 @@ public final class OAuthClient {
 			return this;
 		}
 
+		/**
+		 * Scheduler that polls the token endpoint while a device authorization is
+		 * pending. Defaults to {@link DeviceFlowScheduler#getDefault()}, which is
+		 * shared by all clients.
+		 *
+		 * @param deviceFlowScheduler scheduler
+		 * @return this for chaining
+		 */
+		public Builder withDeviceFlowScheduler(DeviceFlowScheduler deviceFlowScheduler) {
+			this.deviceFlowScheduler = Optional.of(deviceFlowScheduler);
+			return this;
+		}
+
+
+		/**
+		 * Executor used to call the {@link #onPrompt(Consumer)},
+		 * {@link #onTokenReady(TokenHandler)} and {@link #onTokenIssued(Consumer)}
+		 * handlers for {@link OAuthClient#authorizeAsync()}. The blocking
+		 * {@link OAuthClient#authorize()} calls them on its own thread instead.
+		 *
+		 * @param executor executor
+		 * @return this for chaining
+		 */
+		public Builder withExecutor(Executor executor) {
+			this.executor = Optional.of(executor);
+			return this;
+		}
 	    
 	    public Builder onPrompt(Consumer<DeviceCode> onPrompt) {
 	    	this.onPrompt = Optional.of(onPrompt);
@@ -72,6 +135,18 @@ public final class OAuthClient {
 	    	return this;
 	    }
 
+		/**
+		 * Handler called with a token once it is ready, and an {@link Http}
+		 * authenticated with it. If the token has a refresh token, the
+		 * {@link Http} is token-aware, see
+		 * {@link Http#authenticate(String, Supplier)}. A request it makes after
+		 * the token has expired or been revoked is rejected, the token is
+		 * refreshed once and the request is sent again, so the handler need not
+		 * rebuild anything.
+		 *
+		 * @param onTokenReady handler
+		 * @return this for chaining
+		 */
 	    public Builder onTokenReady(TokenHandler onTokenReady) {
 	    	this.onTokenReady = Optional.of(onTokenReady);
 	    	return this;
@@ -82,6 +157,83 @@ public final class OAuthClient {
 	    	return this;
 	    }
 
+		/**
+		 * Store used to persist tokens. A stored token is used in the same way as one
+		 * supplied with {@link #withBearerToken(BearerToken)}, and every token
+		 * issued is saved to it. Refreshes go through
+		 * {@link TokenStore#refresh(String, BearerToken, Function)}, so a store
+		 * shared between processes, such as {@link SharedTokenCache}, can make sure
+		 * only one of them refreshes.
+		 *
+		 * @param tokenStore token store
+		 * @return this for chaining
+		 */
+		public Builder withTokenStore(TokenStore tokenStore) {
+			this.tokenStore = Optional.of(tokenStore);
+			return this;
+		}
+
+		/**
+		 * How the client authenticates to the authorization server. Without this,
+		 * requests carry no client identification.
+		 *
+		 * @param clientAuthentication client authentication
+		 * @return this for chaining
+		 */
+		public Builder withClientAuthentication(ClientAuthentication clientAuthentication) {
+			this.clientAuthentication = Optional.of(clientAuthentication);
+			return this;
+		}
+
+		/**
+		 * Maximum number of tokens obtained by {@link OAuthClient#exchange(String, String, String)}
+		 * to keep.
+		 *
+		 * @param exchangeCacheSize cache size
+		 * @return this for chaining
+		 */
+		public Builder withExchangeCacheSize(int exchangeCacheSize) {
+			this.exchangeCacheSize = exchangeCacheSize;
+			return this;
+		}
+
+		/**
+		 * Key under which tokens are kept in the {@link TokenStore}. Defaults to the
+		 * server URI and scope.
+		 *
+		 * @param tokenStoreKey key
+		 * @return this for chaining
+		 */
+		public Builder withTokenStoreKey(String tokenStoreKey) {
+			this.tokenStoreKey = Optional.of(tokenStoreKey);
+			return this;
+		}
+
+		/**
+		 * Locate the token and device authorization endpoints using the server's
+		 * published metadata (RFC 8414), held in the shared
+		 * {@link ServerMetadataCache#getDefault()}. Without discovery, the default
+		 * paths {@code /oauth2/token} and {@code oauth2/device} are used.
+		 *
+		 * @param discovery use discovery
+		 * @return this for chaining
+		 */
+		public Builder withDiscovery(boolean discovery) {
+			this.metadataCache = discovery ? Optional.of(ServerMetadataCache.getDefault()) : Optional.empty();
+			return this;
+		}
+
+		/**
+		 * Use discovery, with metadata held in the given cache.
+		 *
+		 * @param metadataCache metadata cache
+		 * @return this for chaining
+		 */
+		public Builder withMetadataCache(ServerMetadataCache metadataCache) {
+			this.metadataCache = Optional.of(metadataCache);
+			return this;
+		}
+
 	    public Builder withBearerToken(BearerToken token) {
 	    	this.existingToken = Optional.of(token);
 	    	return this;
@@ -105,9 +257,64 @@ public final class OAuthClient {
 			return new OAuthClient(this);
 		}
 	}
-	
 
-    private Supplier<Http> httpProvider;
+	private final static class DefaultExecutor {
+		private final static Executor INSTANCE = Executors.newCachedThreadPool(r -> {
+			var t = new Thread(r, "OAuthClientHandler");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Runs handlers on the thread blocked in {@link OAuthClient#authorize()}. If
+	 * that thread stops waiting, anything left over is handed to the executor.
+	 */
+	private final class CallerRuns implements Executor {
+		private final static Runnable WAKE = () -> {
+		};
+
+		private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+		private boolean abandoned;
+
+		@Override
+		public void execute(Runnable task) {
+			synchronized (this) {
+				if (!abandoned) {
+					tasks.add(task);
+					return;
+				}
+			}
+			executor.execute(task);
+		}
+
+		private <T> T await(CompletableFuture<T> future) throws IOException, ResponseException {
+			future.whenComplete((result, ex) -> tasks.add(WAKE));
+			try {
+				while (!future.isDone()) {
+					tasks.take().run();
+				}
+			} catch (InterruptedException e) {
+				abandon();
+				/* The future may be shared with other callers, so it is not cancelled */
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted.", e);
+			}
+			abandon();
+			return Futures.await(future);
+		}
+
+		private void abandon() {
+			var left = new ArrayList<Runnable>();
+			synchronized (this) {
+				abandoned = true;
+				tasks.drainTo(left);
+			}
+			left.stream().filter(task -> task != WAKE).forEach(executor::execute);
+		}
+	}
+
+	private final Supplier<Http> httpProvider;
 	private final String scope;
 	private final Optional<Consumer<DeviceCode>> onPrompt;
 	private final Optional<TokenHandler> onToken;
@@ -118,7 +325,25 @@ public final class OAuthClient {
 	private final java.security.KeyPair keyPair;
 	private final Optional<Supplier<java.security.KeyPair>> dpopKeyGenerator;
 	private final boolean rotateDpopOnRefresh;
-	private java.security.KeyPair currentDpopKeyPair;
+	private final DeviceFlowScheduler deviceFlowScheduler;
+	private final Executor executor;
+	private final Optional<TokenStore> tokenStore;
+	private final Optional<String> tokenStoreKey;
+	private final Optional<ClientAuthentication> clientAuthentication;
+	private final Object dpopKeyLock = new Object();
+	private final SingleFlight<String, BearerToken> flights = new SingleFlight<>();
+	/* Rotated refresh tokens, and the tokens that replaced them */
+	private final Map<String, BearerToken> rotated = new LinkedHashMap<>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, BearerToken> eldest) {
+			return size() > MAX_ROTATED;
+		}
+	};
+	private final ExchangeCache exchanged;
+	private final Endpoints endpoints;
+	private volatile java.security.KeyPair currentDpopKeyPair;
 	
 	private OAuthClient(Builder bldr) {
 		this.scope = bldr.scope.orElseThrow(() -> new IllegalStateException("No scope provided"));
@@ -133,6 +358,13 @@ public final class OAuthClient {
 		this.dpopKeyGenerator = bldr.dpopKeyGenerator;
 		this.rotateDpopOnRefresh = bldr.rotateDpopOnRefresh;
 		this.currentDpopKeyPair = bldr.keyPair;
+		this.deviceFlowScheduler = bldr.deviceFlowScheduler.orElseGet(DeviceFlowScheduler::getDefault);
+		this.executor = bldr.executor.orElse(DefaultExecutor.INSTANCE);
+		this.tokenStore = bldr.tokenStore;
+		this.tokenStoreKey = bldr.tokenStoreKey;
+		this.clientAuthentication = bldr.clientAuthentication;
+		this.exchanged = new ExchangeCache(bldr.exchangeCacheSize);
+		this.endpoints = new Endpoints(bldr.metadataCache);
 	}
 
 	private java.security.KeyPair resolveDpopKeyPair(boolean forRefresh) {
@@ -140,21 +372,28 @@ public final class OAuthClient {
 			return null;
 		}
 		if (forRefresh && rotateDpopOnRefresh && dpopKeyGenerator.isPresent()) {
-			currentDpopKeyPair = dpopKeyGenerator.get().get();
-			return currentDpopKeyPair;
+			var rotated = dpopKeyGenerator.get().get();
+			currentDpopKeyPair = rotated;
+			return rotated;
 		}
-		if (currentDpopKeyPair != null) {
-			return currentDpopKeyPair;
+		var current = currentDpopKeyPair;
+		if (current != null || dpopKeyGenerator.isEmpty()) {
+			return current;
 		}
-		if (dpopKeyGenerator.isPresent()) {
-			currentDpopKeyPair = dpopKeyGenerator.get().get();
-			return currentDpopKeyPair;
+		synchronized (dpopKeyLock) {
+			/* Only one thread generates the initial key, the others use it */
+			current = currentDpopKeyPair;
+			if (current == null) {
+				current = dpopKeyGenerator.get().get();
+				currentDpopKeyPair = current;
+			}
+			return current;
 		}
-		return null;
 	}
 
 	private void handleToken(DeviceCode device, BearerToken token, Http http) throws IOException, ResponseException {
-		var authHttp = http.authenticate(token.token_type() + " " + token.access_token());
+		var authHttp = token.refresh_token() == null ? http.authenticate(authorization(token))
+				: http.authenticate(authorization(token), renewal(token));
 		boolean handled = false;
 		if (onTokenReady.isPresent()) {
 			onTokenReady.get().handle(device, token, authHttp);
@@ -169,95 +408,291 @@ public final class OAuthClient {
 		}
 	}
 
-	private BearerToken refreshToken(String refreshToken) throws IOException, ResponseException {
-		var tokenHttp = httpProvider.get();
-		var dpopKey = resolveDpopKeyPair(true);
-		if (dpop && dpopKey != null) {
-			String proof = DPoPProofFactory.generateProof("POST", tokenHttp.getUri().resolve("/oauth2/token").toString(), dpopKey);
-			tokenHttp = new Http.Builder().fromHttp(tokenHttp).addHeaders(new NameValuePair("DPoP", proof)).build();
+	private static String authorization(BearerToken token) {
+		return token.token_type() + " " + token.access_token();
+	}
+
+	private Supplier<CompletableFuture<String>> renewal(BearerToken token) {
+		/* Always from the original token, which refreshAsync() replaces with its latest successor */
+		return () -> refreshAsync(token).thenApply(OAuthClient::authorization);
+	}
+
+	private BearerToken issued(DeviceCode device, BearerToken token, Http http) {
+		tokenIssued(token);
+		return ready(device, token, http);
+	}
+
+	private void tokenIssued(BearerToken token) {
+		tokenStore.ifPresent(store -> {
+			try {
+				store.store(storeKey(), token);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to store token.", e);
+			}
+		});
+		onTokenIssued.ifPresent(handler -> handler.accept(token));
+	}
+
+	private Optional<BearerToken> storedToken() {
+		return tokenStore.flatMap(store -> {
+			try {
+				return store.load(storeKey());
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to load stored token.", e);
+				return Optional.empty();
+			}
+		});
+	}
+
+	private String storeKey() {
+		return tokenStoreKey.orElseGet(() -> httpProvider.get().getUri() + " " + Scopes.normalize(scope));
+	}
+
+	private BearerToken ready(DeviceCode device, BearerToken token, Http http) {
+		try {
+			handleToken(device, token, http);
+		} catch (IOException | ResponseException e) {
+			throw new CompletionException(e);
+		}
+		return token;
+	}
+
+	private NameValuePair[] withProof(NameValuePair[] headers, String htu, java.security.KeyPair dpopKey) {
+		if (!dpop || dpopKey == null) {
+			return headers;
 		}
-		return new BearerToken(parseJSON(tokenHttp.postForm("/oauth2/token",
+		/* A proof may only be used once, so every attempt gets its own */
+		var all = Arrays.copyOf(headers, headers.length + 1);
+		all[headers.length] = new NameValuePair("DPoP", DPoPProofFactory.generateProof("POST", htu, dpopKey));
+		return all;
+	}
+
+	private CompletableFuture<BearerToken> refreshToken(String refreshToken) {
+		var http = httpProvider.get();
+		/* Not safe to repeat, the server may have rotated the refresh token before failing */
+		return endpoints.token(http).thenCompose(endpoint -> postForm(http, endpoint, resolveDpopKeyPair(true), false,
 				new NameValuePair("grant_type", "refresh_token"),
 				new NameValuePair("refresh_token", refreshToken)
-		)));
+		)).thenApply(json -> new BearerToken(parseJSON(json)));
+	}
+
+	private CompletableFuture<String> postForm(Http http, URI endpoint, java.security.KeyPair dpopKey, boolean safe,
+			NameValuePair... form) {
+		var headers = new ArrayList<NameValuePair>(1);
+		var params = new ArrayList<NameValuePair>(Arrays.asList(form));
+		clientAuthentication.ifPresent(auth -> auth.authenticate(endpoint, headers, params));
+		var fixed = headers.toArray(new NameValuePair[0]);
+		var htu = endpoint.toString();
+		return http.postAsync(htu, () -> withProof(fixed, htu, dpopKey), Http.APPLICATION_X_WWW_FORM_URLENCODED,
+				Http.encodeForm(params.toArray(new NameValuePair[0])), safe);
+	}
+
+	private BearerToken granted(BearerToken token, String original) {
+		if (token.scope() == null) {
+			/* An omitted scope is the scope that was requested (RFC 6749 5.1) */
+			return token.withScope(original == null ? scope : original);
+		}
+		return token;
+	}
+
+	private static BearerToken withRefreshToken(BearerToken refreshed, String refreshToken) {
+		if (refreshed.refresh_token() == null) {
+			/* Server did not rotate the refresh token, so the existing one stays valid (RFC 6749 6) */
+			return new BearerToken(refreshed.error(), refreshed.error_description(), refreshed.access_token(),
+					refreshed.expires_in(), refreshed.nonce(), refreshed.token_type(), refreshToken,
+					refreshed.issued_at(), refreshed.scope());
+		}
+		return refreshed;
+	}
+
+	/**
+	 * Exchange a token for one to use with a downstream service, using OAuth 2.0
+	 * Token Exchange (RFC 8693). Exchanged tokens are cached until shortly
+	 * before they expire, so repeated calls for the same subject token, audience
+	 * and scope do not contact the server.
+	 *
+	 * @param subjectToken access token to exchange
+	 * @param audience audience of the new token
+	 * @param scope scope of the new token, or null for the server's default
+	 * @return exchanged token
+	 * @throws IOException on error
+	 * @throws ResponseException on error response from server
+	 */
+	public BearerToken exchange(String subjectToken, String audience, String scope) throws IOException, ResponseException {
+		return Futures.await(exchangeAsync(subjectToken, audience, scope));
+	}
+
+	public CompletableFuture<BearerToken> exchangeAsync(String subjectToken, String audience, String scope) {
+		return exchanged.get(subjectToken, audience, scope, () -> exchangeToken(subjectToken, audience, scope));
+	}
+
+	private CompletableFuture<BearerToken> exchangeToken(String subjectToken, String audience, String scope) {
+		var params = new ArrayList<NameValuePair>();
+		params.add(new NameValuePair("grant_type", "urn:ietf:params:oauth:grant-type:token-exchange"));
+		params.add(new NameValuePair("subject_token", subjectToken));
+		params.add(new NameValuePair("subject_token_type", "urn:ietf:params:oauth:token-type:access_token"));
+		params.add(new NameValuePair("audience", audience));
+		if (scope != null) {
+			params.add(new NameValuePair("scope", scope));
+		}
+		var http = httpProvider.get();
+		return endpoints.token(http).thenCompose(endpoint -> postForm(http, endpoint, resolveDpopKeyPair(false), true,
+				params.toArray(new NameValuePair[0]))).thenApply(json -> {
+			var exchanged = new BearerToken(parseJSON(json));
+			if (exchanged.error() != null || exchanged.access_token() == null) {
+				throw new CompletionException(new ResponseException(exchanged.toJsonObject(), null));
+			}
+			return scope == null ? exchanged : granted(exchanged, scope);
+		});
+	}
+
+	public BearerToken refresh(BearerToken token) throws IOException, ResponseException {
+		return Futures.await(refreshAsync(token));
+	}
+
+	/**
+	 * Refresh a token. If this client has already refreshed it and the server
+	 * rotated its refresh token, the latest token that replaced it is
+	 * refreshed instead, so holders of older copies, such as a
+	 * {@link TokenManager} and the {@link Http} passed to
+	 * {@link Builder#onTokenReady(TokenHandler)}, never send a refresh token
+	 * that has already been used.
+	 *
+	 * @param token token
+	 * @return future refreshed token
+	 */
+	@Override
+	public CompletableFuture<BearerToken> refreshAsync(BearerToken token) {
+		if (token.refresh_token() == null) {
+			return CompletableFuture.failedFuture(new IllegalStateException("Token has no refresh token."));
+		}
+		var latest = successor(token);
+		return flights.runAsync("refresh:" + latest.refresh_token(), () -> refreshFlow(latest).thenApply(issued -> {
+			if (!latest.refresh_token().equals(issued.refresh_token())) {
+				synchronized (rotated) {
+					/* A token cannot succeed itself, even if a server reissues an old refresh token */
+					rotated.remove(issued.refresh_token());
+					rotated.put(latest.refresh_token(), issued);
+				}
+			}
+			tokenIssued(issued);
+			return issued;
+		}));
+	}
+
+	private BearerToken successor(BearerToken token) {
+		synchronized (rotated) {
+			for (var next = rotated.get(token.refresh_token()); next != null; next = rotated.get(token.refresh_token())) {
+				token = next;
+			}
+			return token;
+		}
 	}
 
-	public void authorize() throws IOException, ResponseException {
+	private CompletableFuture<BearerToken> refreshFlow(BearerToken token) {
+		Function<BearerToken, CompletableFuture<BearerToken>> refresher = stale -> refreshToken(stale.refresh_token()).thenApply(refreshed -> {
+			if (refreshed.error() != null || refreshed.access_token() == null) {
+				throw new CompletionException(new ResponseException(refreshed.toJsonObject(), null));
+			}
+			/* An omitted scope is unchanged from the original grant (RFC 6749 6) */
+			return granted(withRefreshToken(refreshed, stale.refresh_token()), stale.scope());
+		});
+		/* A shared store may hand back a token another process has just refreshed */
+		return tokenStore.map(store -> store.refresh(storeKey(), token, refresher)).orElseGet(() -> refresher.apply(token));
+	}
+
+	public BearerToken authorize() throws IOException, ResponseException {
+		var caller = new CallerRuns();
+		return caller.await(flights.runAsync("authorize", () -> doAuthorize(caller)));
+	}
+
+	@Override
+	public CompletableFuture<BearerToken> authorizeAsync() {
+		return flights.runAsync("authorize", () -> doAuthorize(executor));
+	}
+
+	private CompletableFuture<BearerToken> doAuthorize(Executor handlers) {
+		var http = httpProvider.get();
+
+		var candidate = existingToken.or(this::storedToken);
+		if (candidate.isPresent()) {
+			/* This client may already have rotated its refresh token */
+			BearerToken token = successor(candidate.get());
+			if (token.error() == null && token.access_token() != null && token.covers(scope)) {
+				if (!token.isExpired()) {
+					/* A token with no recorded scope is taken to have the scope requested, not every scope */
+					return CompletableFuture.supplyAsync(() -> ready(null, granted(token, null), http), handlers);
+				}
+				if (token.refresh_token() != null) {
+					return refreshAsync(token).thenApply(Optional::of).exceptionally(ex -> {
+						if (Futures.unwrap(ex) instanceof ResponseException) {
+							/* Refresh token rejected, most likely expired or already rotated */
+							log.log(Level.DEBUG, "Refresh failed, starting device flow", ex);
+							return Optional.empty();
+						}
+						throw ex instanceof CompletionException ce ? ce : new CompletionException(ex);
+					}).thenCompose(refreshed -> refreshed.isPresent()
+							? CompletableFuture.supplyAsync(() -> ready(null, refreshed.get(), http), handlers)
+							: deviceFlow(http, handlers));
+				}
+			}
+		}
+
+		return deviceFlow(http, handlers);
+	}
+
+	private CompletableFuture<BearerToken> deviceFlow(Http http, Executor handlers) {
 		/* Request OAuth2 Device Code flow, get the device code in return */
-		try {
-	        var http = httpProvider.get();
-
-	        if (existingToken.isPresent()) {
-	        	BearerToken token = existingToken.get();
-	        	if (token.error() == null && token.access_token() != null) {
-	        		if (!token.isExpired()) {
-	        			handleToken(null, token, http);
-	        			return;
-	        		}
-	        		if (token.refresh_token() != null) {
-	        			BearerToken refreshed = refreshToken(token.refresh_token());
-	        			if (refreshed.error() == null && refreshed.access_token() != null) {
-	        				onTokenIssued.ifPresent(handler -> handler.accept(refreshed));
-	        				handleToken(null, refreshed, http);
-	        				return;
-	        			}
-	        		}
-	        	}
-	        }
-	        
-	        var deviceKey = resolveDpopKeyPair(false);
-	        if (dpop && deviceKey != null) {
-	        	String proof = DPoPProofFactory.generateProof("POST", http.getUri().resolve("oauth2/device").toString(), deviceKey);
-	        	http = new Http.Builder().fromHttp(http).addHeaders(new NameValuePair("DPoP", proof)).build();
-	        }
-	        	        
-			var device = new OAuth2Objects.DeviceCode(parseJSON(http.postForm("oauth2/device",
-	                new NameValuePair("scope", scope)
-	        )));
-	        
-	        
-	        /* Prompt for device code */
-	        var interval = device.interval() == 0 ? 5 : device.interval(); 
-	        onPrompt.orElseThrow(() -> new IllegalStateException("No onPrompt handler")).accept(device);
-	        
-	        /* Await response */
-	        var expire = System.currentTimeMillis() + ( device.expires_in() * 1000 );
-	        log.log(Level.DEBUG, "Awaiting authorization for device {}", device.device_code());
-	        while(System.currentTimeMillis() < expire) {
-	        
-	            var tokenHttp = httpProvider.get();
-	            var tokenKey = resolveDpopKeyPair(false);
-	            if (dpop && tokenKey != null) {
-	                String proof = DPoPProofFactory.generateProof("POST", tokenHttp.getUri().resolve("/oauth2/token").toString(), tokenKey);
-	                tokenHttp = new Http.Builder().fromHttp(tokenHttp).addHeaders(new NameValuePair("DPoP", proof)).build();
-	            }
-	
-	            var response = new BearerToken(parseJSON(tokenHttp.postForm("/oauth2/token",
-	                    new NameValuePair("grant_type", "urn:ietf:params:oauth:grant-type:device_code"),
-	                    new NameValuePair("device_code", device.device_code()))
-	            ));
-	            
-	            if(response.error() == null) {
-	                /* Now authenticated, get our bearer token */
-	            	onTokenIssued.ifPresent(handler -> handler.accept(response));
-	            	handleToken(device, response, http);
-	            	return;
-	            }
-	            else if(response.error().equals("authorization_denied") || response.error().equals("expired_token")) {
-	                break;
-	            }
-	            else if(response.error().equals("authorization_pending")) {
-	                Thread.sleep(1000 * interval);
-	            }
-	            else if(response.error().equals("slow_down")) {
-	                interval += 5;
-	            }
-	        }
-		}
-		catch(InterruptedException ie) {
-			throw new IOException("Interrupted.", ie);
-		} 
-
-        throw new AuthorizationTimeoutException();
+		return endpoints.deviceAuthorization(http).thenCompose(deviceEndpoint -> postForm(http, deviceEndpoint,
+				resolveDpopKeyPair(false), true, new NameValuePair("scope", scope))).thenComposeAsync(json -> {
+			var device = new OAuth2Objects.DeviceCode(parseJSON(json));
+
+			/* Prompt for device code */
+			onPrompt.orElseThrow(() -> new IllegalStateException("No onPrompt handler")).accept(device);
+
+			/* Await response */
+			log.log(Level.DEBUG, "Awaiting authorization for device {0}", device.device_code());
+			return endpoints.token(http).thenCompose(tokenEndpoint -> deviceFlowScheduler.submit(http.getUri(), device,
+					new DevicePoll(tokenEndpoint, device))).thenApplyAsync(response -> issued(device, granted(response, scope), http), handlers);
+		}, handlers);
+	}
+
+	/**
+	 * A poll request prepared once per device code. Only the DPoP proof is
+	 * created for each poll, as RFC 9449 requires a unique proof per request.
+	 */
+	private final class DevicePoll implements Function<DeviceCode, CompletableFuture<BearerToken>> {
+		private final Http.Template template;
+		private final URI endpoint;
+		private final String htu;
+		private final NameValuePair[] form;
+		private final byte[] body;
+
+		private DevicePoll(URI endpoint, DeviceCode device) {
+			this.endpoint = endpoint;
+			htu = endpoint.toString();
+			template = httpProvider.get().template(htu, Http.APPLICATION_X_WWW_FORM_URLENCODED);
+			form = new NameValuePair[] {
+					new NameValuePair("grant_type", "urn:ietf:params:oauth:grant-type:device_code"),
+					new NameValuePair("device_code", device.device_code()) };
+			body = Http.encodeForm(form);
+		}
+
+		@Override
+		public CompletableFuture<BearerToken> apply(DeviceCode device) {
+			var headers = new ArrayList<NameValuePair>(1);
+			var content = body;
+			if (clientAuthentication.isPresent()) {
+				/* Client assertions may change between polls */
+				var params = new ArrayList<NameValuePair>(Arrays.asList(form));
+				clientAuthentication.get().authenticate(endpoint, headers, params);
+				content = Http.encodeForm(params.toArray(new NameValuePair[0]));
+			}
+			var fixed = headers.toArray(new NameValuePair[0]);
+			var dpopKey = resolveDpopKeyPair(false);
+			/* Polling has no side effects, so is always safe to repeat */
+			return template.postAsync(() -> withProof(fixed, htu, dpopKey), content, true)
+					.thenApply(json -> new BearerToken(parseJSON(json)));
+		}
 	}
 }
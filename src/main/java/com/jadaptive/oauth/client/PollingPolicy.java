@@ -0,0 +1,197 @@
+package com.jadaptive.oauth.client;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides when a pending device authorization is polled next, following RFC
+ * 8628 section 3.5. The server's interval is always honoured as a minimum,
+ * {@code slow_down} permanently increases it, and failures to reach the server
+ * back off exponentially. A server's {@code Retry-After} hint is respected
+ * whenever one is given. A random amount is added to every delay so that many
+ * clients started together do not poll in lock step.
+ */
+public final class PollingPolicy {
+
+	public final static class Builder {
+		private Duration defaultInterval = Duration.ofSeconds(5);
+		private Duration slowDownIncrement = Duration.ofSeconds(5);
+		private Duration maxInterval = Duration.ofMinutes(5);
+		private Duration maxBackoff = Duration.ofMinutes(2);
+		private double jitter = 0.1;
+		private int maxTransientFailures = 5;
+
+		/**
+		 * Interval to use when the server does not supply one. RFC 8628 requires
+		 * 5 seconds.
+		 *
+		 * @param defaultInterval default interval
+		 * @return this for chaining
+		 */
+		public Builder withDefaultInterval(Duration defaultInterval) {
+			this.defaultInterval = defaultInterval;
+			return this;
+		}
+
+		public Builder withSlowDownIncrement(Duration slowDownIncrement) {
+			this.slowDownIncrement = slowDownIncrement;
+			return this;
+		}
+
+		public Builder withMaxInterval(Duration maxInterval) {
+			this.maxInterval = maxInterval;
+			return this;
+		}
+
+		public Builder withMaxBackoff(Duration maxBackoff) {
+			this.maxBackoff = maxBackoff;
+			return this;
+		}
+
+		/**
+		 * Fraction of the interval that may be randomly added to each delay.
+		 *
+		 * @param jitter jitter, from 0 to 1
+		 * @return this for chaining
+		 */
+		public Builder withJitter(double jitter) {
+			if (jitter < 0 || jitter > 1) {
+				throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+			}
+			this.jitter = jitter;
+			return this;
+		}
+
+		/**
+		 * Number of consecutive polls that may fail to reach the server, or be
+		 * refused with a temporary error, before the flow is abandoned.
+		 *
+		 * @param maxTransientFailures maximum failures
+		 * @return this for chaining
+		 */
+		public Builder withMaxTransientFailures(int maxTransientFailures) {
+			this.maxTransientFailures = maxTransientFailures;
+			return this;
+		}
+
+		public PollingPolicy build() {
+			return new PollingPolicy(this);
+		}
+	}
+
+	private final static class Default {
+		private final static PollingPolicy INSTANCE = new Builder().build();
+	}
+
+	public static PollingPolicy getDefault() {
+		return Default.INSTANCE;
+	}
+
+	private final long defaultInterval;
+	private final long slowDownIncrement;
+	private final long maxInterval;
+	private final long maxBackoff;
+	private final double jitter;
+	private final int maxTransientFailures;
+
+	private PollingPolicy(Builder bldr) {
+		this.defaultInterval = bldr.defaultInterval.toNanos();
+		this.slowDownIncrement = bldr.slowDownIncrement.toNanos();
+		this.maxInterval = bldr.maxInterval.toNanos();
+		this.maxBackoff = bldr.maxBackoff.toNanos();
+		this.jitter = bldr.jitter;
+		this.maxTransientFailures = bldr.maxTransientFailures;
+	}
+
+	/**
+	 * Get the initial poll interval in nanoseconds for a device code.
+	 *
+	 * @param interval interval in seconds from the server, or zero
+	 * @return interval
+	 */
+	long initialInterval(long interval) {
+		return interval <= 0 ? defaultInterval : Duration.ofSeconds(interval).toNanos();
+	}
+
+	/**
+	 * Get the new interval in nanoseconds after the server asked the client to
+	 * slow down.
+	 *
+	 * @param interval current interval
+	 * @return new interval
+	 */
+	long slowDown(long interval) {
+		return Math.min(maxInterval, interval + slowDownIncrement);
+	}
+
+	/**
+	 * Get the delay in nanoseconds before the next poll of a pending
+	 * authorization.
+	 *
+	 * @param interval current interval
+	 * @param retryAfter server hint, if any
+	 * @return delay
+	 */
+	long nextDelay(long interval, Optional<Duration> retryAfter) {
+		return withJitter(Math.max(interval, retryAfter.map(Duration::toNanos).orElse(0l)));
+	}
+
+	/**
+	 * Get the delay in nanoseconds before the next poll after a temporary
+	 * failure, or -1 if the flow should be abandoned.
+	 *
+	 * @param interval current interval
+	 * @param failures consecutive failures, including this one
+	 * @param retryAfter server hint, if any
+	 * @return delay, or -1
+	 */
+	long backoff(long interval, int failures, Optional<Duration> retryAfter) {
+		if (failures > maxTransientFailures) {
+			return -1;
+		}
+		var backoff = Math.min(maxBackoff, interval << Math.min(failures, 20));
+		return withJitter(Math.max(backoff, retryAfter.map(Duration::toNanos).orElse(0l)));
+	}
+
+	private long withJitter(long delay) {
+		/* Only ever add, never poll sooner than the server allows */
+		if (jitter == 0 || delay <= 0) {
+			return delay;
+		}
+		return delay + ThreadLocalRandom.current().nextLong((long) (delay * jitter) + 1);
+	}
+
+	/**
+	 * Parse a {@code Retry-After} header, either as a number of seconds or an
+	 * HTTP date.
+	 *
+	 * @param headers headers
+	 * @return delay
+	 */
+	static Optional<Duration> retryAfter(HttpHeaders headers) {
+		if (headers == null) {
+			return Optional.empty();
+		}
+		return headers.firstValue("Retry-After").flatMap(PollingPolicy::parseRetryAfter);
+	}
+
+	static Optional<Duration> parseRetryAfter(String value) {
+		value = value.trim();
+		try {
+			return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(value))));
+		} catch (NumberFormatException nfe) {
+			try {
+				var when = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+				var delay = Duration.between(ZonedDateTime.now(when.getZone()), when);
+				return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+			} catch (DateTimeParseException dtpe) {
+				return Optional.empty();
+			}
+		}
+	}
+}
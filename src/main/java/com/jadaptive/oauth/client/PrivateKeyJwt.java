@@ -0,0 +1,193 @@
+package com.jadaptive.oauth.client;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+import jakarta.json.Json;
+
+/**
+ * Authenticates a client with a JWT signed by its private key, the
+ * {@code private_key_jwt} method of OpenID Connect, as defined by RFC 7523.
+ * <p>
+ * A new assertion, with a new {@code jti}, is signed for every request, as
+ * RFC 7523 and OpenID Connect require. Signing is by far the most expensive
+ * part of a token request, so for servers that do not enforce single use of
+ * the {@code jti} claim, {@link Builder#withReuse(boolean)} reuses each signed
+ * assertion for a quarter of its lifetime instead.
+ */
+public final class PrivateKeyJwt implements ClientAuthentication {
+
+	private final static String CLIENT_ASSERTION_TYPE = "urn:ietf:params:oauth:client-assertion-type:jwt-bearer";
+
+	public final static class Builder {
+		private Optional<String> clientId = Optional.empty();
+		private Optional<KeyPair> keyPair = Optional.empty();
+		private Optional<String> keyId = Optional.empty();
+		private Optional<String> audience = Optional.empty();
+		private Duration lifetime = Duration.ofSeconds(120);
+		private boolean reuse;
+
+		public Builder withClientId(String clientId) {
+			this.clientId = Optional.of(clientId);
+			return this;
+		}
+
+		public Builder withKeyPair(KeyPair keyPair) {
+			this.keyPair = Optional.of(keyPair);
+			return this;
+		}
+
+		public Builder withPrivateKey(String keyContent) throws Exception {
+			return withKeyPair(DPoPProofFactory.loadKeyPair(keyContent));
+		}
+
+		public Builder withPrivateKey(Path keyPath) throws Exception {
+			return withKeyPair(DPoPProofFactory.loadKeyPair(keyPath));
+		}
+
+		/**
+		 * Key ID to put in the {@code kid} header, so the server can choose
+		 * between several registered keys.
+		 *
+		 * @param keyId key ID
+		 * @return this for chaining
+		 */
+		public Builder withKeyId(String keyId) {
+			this.keyId = Optional.of(keyId);
+			return this;
+		}
+
+		/**
+		 * Audience of the assertions. Defaults to the URL of the endpoint each
+		 * request is sent to.
+		 *
+		 * @param audience audience
+		 * @return this for chaining
+		 */
+		public Builder withAudience(String audience) {
+			this.audience = Optional.of(audience);
+			return this;
+		}
+
+		/**
+		 * How long each assertion is valid for, used for its {@code exp} claim.
+		 *
+		 * @param lifetime lifetime
+		 * @return this for chaining
+		 */
+		public Builder withLifetime(Duration lifetime) {
+			if (lifetime.toSeconds() < 1) {
+				throw new IllegalArgumentException("Lifetime must be at least one second.");
+			}
+			this.lifetime = lifetime;
+			return this;
+		}
+
+		/**
+		 * Reuse each signed assertion for a quarter of its lifetime, rather than
+		 * signing one for every request. Only use this with servers that accept
+		 * the same {@code jti} more than once. Defaults to {@code false}.
+		 *
+		 * @param reuse reuse assertions
+		 * @return this for chaining
+		 */
+		public Builder withReuse(boolean reuse) {
+			this.reuse = reuse;
+			return this;
+		}
+
+		public PrivateKeyJwt build() {
+			return new PrivateKeyJwt(this);
+		}
+	}
+
+	private record Assertion(String jwt, long reuseUntil) {
+	}
+
+	private final String clientId;
+	private final KeyPair keyPair;
+	private final Optional<String> audience;
+	private final long lifetime;
+	private final boolean reuse;
+	private final String header;
+	private final ConcurrentHashMap<String, Assertion> assertions = new ConcurrentHashMap<>();
+	private final LongAdder signatures = new LongAdder();
+
+	private PrivateKeyJwt(Builder bldr) {
+		this.clientId = bldr.clientId.orElseThrow(() -> new IllegalStateException("No client ID provided"));
+		this.keyPair = bldr.keyPair.orElseThrow(() -> new IllegalStateException("No private key provided"));
+		this.audience = bldr.audience;
+		this.lifetime = bldr.lifetime.toSeconds();
+		this.reuse = bldr.reuse;
+
+		/* The header never changes, so is encoded once */
+		var hdr = Json.createObjectBuilder().add("alg", "RS256").add("typ", "JWT");
+		bldr.keyId.ifPresent(kid -> hdr.add("kid", kid));
+		this.header = Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(hdr.build().toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void authenticate(URI endpoint, List<NameValuePair> headers, List<NameValuePair> form) {
+		form.add(new NameValuePair("client_assertion_type", CLIENT_ASSERTION_TYPE));
+		form.add(new NameValuePair("client_assertion", assertion(audience.orElseGet(endpoint::toString))));
+	}
+
+	/**
+	 * Get a signed assertion for an audience, reusing a previous one if
+	 * allowed.
+	 *
+	 * @param aud audience
+	 * @return assertion
+	 */
+	String assertion(String aud) {
+		if (!reuse) {
+			return sign(aud).jwt();
+		}
+		var now = System.currentTimeMillis();
+		var current = assertions.get(aud);
+		if (current != null && now < current.reuseUntil()) {
+			return current.jwt();
+		}
+		/* Only one thread signs a replacement, the others wait for it */
+		return assertions.compute(aud, (k, existing) -> existing != null && now < existing.reuseUntil() ? existing : sign(k)).jwt();
+	}
+
+	long signatures() {
+		return signatures.sum();
+	}
+
+	private Assertion sign(String aud) {
+		var iat = System.currentTimeMillis() / 1000;
+		var payload = Json.createObjectBuilder()
+				.add("iss", clientId)
+				.add("sub", clientId)
+				.add("aud", aud)
+				.add("jti", UUID.randomUUID().toString())
+				.add("iat", iat)
+				.add("exp", iat + lifetime)
+				.build().toString();
+		try {
+			var jwt = DPoPProofFactory.sign(header + "."
+					+ Base64.getUrlEncoder().withoutPadding().encodeToString(payload.getBytes(StandardCharsets.UTF_8)),
+					keyPair.getPrivate());
+			signatures.increment();
+			/* Stop using it while a good part of its lifetime remains, allowing for clock skew */
+			return new Assertion(jwt, (iat + lifetime / 4) * 1000);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Failed to sign client assertion", e);
+		}
+	}
+}
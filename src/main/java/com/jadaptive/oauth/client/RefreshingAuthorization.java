@@ -0,0 +1,104 @@
+package com.jadaptive.oauth.client;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * The {@code Authorization} header of a token-aware {@link Http}, which is
+ * renewed when the server rejects it. However many requests are rejected at
+ * once, only one renewal is made, and requests started while it is under way
+ * wait for the new header rather than sending one known to be stale.
+ */
+final class RefreshingAuthorization {
+
+	static Logger log = System.getLogger(RefreshingAuthorization.class.getName());
+
+	private final Supplier<CompletableFuture<String>> renewal;
+	private final Object lock = new Object();
+	private volatile String value;
+	private CompletableFuture<String> pending;
+
+	RefreshingAuthorization(String value, Supplier<CompletableFuture<String>> renewal) {
+		this.value = value;
+		this.renewal = renewal;
+	}
+
+	/**
+	 * Get the latest header value, which may be about to be replaced.
+	 *
+	 * @return header value
+	 */
+	String value() {
+		return value;
+	}
+
+	/**
+	 * Get the header value to send, waiting for any renewal under way.
+	 *
+	 * @return future header value
+	 */
+	CompletableFuture<String> current() {
+		synchronized (lock) {
+			return pending == null ? CompletableFuture.completedFuture(value) : pending;
+		}
+	}
+
+	/**
+	 * Report that the server rejected a header value, renewing it unless that
+	 * has already been done or is under way.
+	 *
+	 * @param stale rejected header value
+	 * @return future header value to replay the request with
+	 */
+	CompletableFuture<String> rejected(String stale) {
+		CompletableFuture<String> renewed;
+		synchronized (lock) {
+			if (pending != null) {
+				return pending;
+			}
+			if (!stale.equals(value)) {
+				/* Another request has already renewed it */
+				return CompletableFuture.completedFuture(value);
+			}
+			renewed = pending = new CompletableFuture<>();
+		}
+
+		log.log(Level.DEBUG, "Authorization rejected, renewing");
+		CompletableFuture<String> future;
+		try {
+			future = renewal.get();
+		} catch (RuntimeException re) {
+			future = CompletableFuture.failedFuture(re);
+		}
+		future.whenComplete((fresh, ex) -> {
+			synchronized (lock) {
+				if (ex == null) {
+					value = fresh;
+				}
+				/* On failure the old value stays, so a later rejection tries again */
+				pending = null;
+			}
+			if (ex == null) {
+				renewed.complete(fresh);
+			} else {
+				renewed.completeExceptionally(Futures.unwrap(ex));
+			}
+		});
+		return renewed;
+	}
+
+	/**
+	 * Get whether a response rejects the request's credentials, either with a
+	 * {@code 401} or an {@code invalid_token} error (RFC 6750 3.1).
+	 *
+	 * @param response response
+	 * @return rejected
+	 */
+	static boolean rejects(HttpResponse<?> response) {
+		return response.statusCode() == 401 || response.headers().allValues("WWW-Authenticate").stream()
+				.anyMatch(challenge -> challenge.contains("invalid_token"));
+	}
+}
@@ -0,0 +1,201 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a request sent by {@link Http} is retried after a transient
+ * failure, and how long to wait first. Delays grow exponentially, with random
+ * jitter so many clients do not retry in lock step, and a server's
+ * {@code Retry-After} is honoured.
+ * <p>
+ * Requests with idempotent methods are retried after a connection failure or a
+ * retryable status. Other requests are only retried when the caller marks them
+ * as safe to repeat, as with device code polls, or when the server's status
+ * says the request was never processed ({@code 429} and {@code 503}). A token
+ * refresh, for example, is not repeated after a connection reset, as the
+ * server may already have rotated the refresh token.
+ */
+public final class RetryPolicy {
+
+	static Logger log = System.getLogger(RetryPolicy.class.getName());
+
+	private final static Set<String> IDEMPOTENT = Set.of("GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE");
+	private final static Set<Integer> NOT_PROCESSED = Set.of(429, 503);
+
+	public final static class Builder {
+		private int maxAttempts = 3;
+		private Duration initialDelay = Duration.ofMillis(200);
+		private Duration maxDelay = Duration.ofSeconds(10);
+		private double multiplier = 2;
+		private double jitter = 0.5;
+		private Set<Integer> retryableStatuses = Set.of(408, 429, 500, 502, 503, 504);
+
+		/**
+		 * Maximum number of attempts, including the first.
+		 *
+		 * @param maxAttempts maximum attempts
+		 * @return this for chaining
+		 */
+		public Builder withMaxAttempts(int maxAttempts) {
+			if (maxAttempts < 1) {
+				throw new IllegalArgumentException("Must allow at least one attempt.");
+			}
+			this.maxAttempts = maxAttempts;
+			return this;
+		}
+
+		public Builder withInitialDelay(Duration initialDelay) {
+			this.initialDelay = initialDelay;
+			return this;
+		}
+
+		/**
+		 * Longest delay between attempts. A {@code Retry-After} longer than this
+		 * ends retrying.
+		 *
+		 * @param maxDelay maximum delay
+		 * @return this for chaining
+		 */
+		public Builder withMaxDelay(Duration maxDelay) {
+			this.maxDelay = maxDelay;
+			return this;
+		}
+
+		public Builder withMultiplier(double multiplier) {
+			if (multiplier < 1) {
+				throw new IllegalArgumentException("Multiplier must be at least 1.");
+			}
+			this.multiplier = multiplier;
+			return this;
+		}
+
+		/**
+		 * Fraction of each delay that is randomised.
+		 *
+		 * @param jitter jitter, from 0 to 1
+		 * @return this for chaining
+		 */
+		public Builder withJitter(double jitter) {
+			if (jitter < 0 || jitter > 1) {
+				throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+			}
+			this.jitter = jitter;
+			return this;
+		}
+
+		public Builder withRetryableStatuses(Integer... retryableStatuses) {
+			this.retryableStatuses = Set.of(retryableStatuses);
+			return this;
+		}
+
+		public RetryPolicy build() {
+			return new RetryPolicy(this);
+		}
+	}
+
+	/**
+	 * Counters describing how often requests are retried.
+	 *
+	 * @param attempts requests sent, including retries
+	 * @param retries requests repeated after a transient failure
+	 * @param giveUps requests that still failed after all allowed attempts
+	 */
+	public final static record Stats(long attempts, long retries, long giveUps) {
+	}
+
+	private final int maxAttempts;
+	private final long initialDelay;
+	private final long maxDelay;
+	private final double multiplier;
+	private final double jitter;
+	private final Set<Integer> retryableStatuses;
+
+	private final LongAdder attempts = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder giveUps = new LongAdder();
+
+	private RetryPolicy(Builder bldr) {
+		this.maxAttempts = bldr.maxAttempts;
+		this.initialDelay = bldr.initialDelay.toMillis();
+		this.maxDelay = bldr.maxDelay.toMillis();
+		this.multiplier = bldr.multiplier;
+		this.jitter = bldr.jitter;
+		this.retryableStatuses = bldr.retryableStatuses;
+	}
+
+	public Stats stats() {
+		return new Stats(attempts.sum(), retries.sum(), giveUps.sum());
+	}
+
+	/**
+	 * Get whether a request may be sent again with no ill effect.
+	 *
+	 * @param method request method
+	 * @param safe caller marked the request as safe to repeat
+	 * @return repeatable
+	 */
+	static boolean repeatable(String method, boolean safe) {
+		return safe || IDEMPOTENT.contains(method);
+	}
+
+	/**
+	 * Get the delay in milliseconds before an attempt is repeated, or -1 if it
+	 * is not. Exactly one of the response or failure is given.
+	 *
+	 * @param method request method
+	 * @param safe caller marked the request as safe to repeat
+	 * @param attempt attempt that just completed, starting at 1
+	 * @param response response
+	 * @param failure failure
+	 * @return delay, or -1
+	 */
+	long delay(String method, boolean safe, int attempt, HttpResponse<?> response, Throwable failure) {
+		attempts.increment();
+		var repeatable = repeatable(method, safe);
+		boolean retryable;
+		if (response == null) {
+			/* Only transport failures, not for example an invalid URI, or a circuit known to be open */
+			var cause = Futures.unwrap(failure);
+			retryable = repeatable && cause instanceof IOException && !(cause instanceof CircuitOpenException);
+		} else {
+			var status = response.statusCode();
+			retryable = retryableStatuses.contains(status) && (repeatable || NOT_PROCESSED.contains(status));
+		}
+		if (!retryable) {
+			return -1;
+		}
+		if (attempt >= maxAttempts) {
+			giveUps.increment();
+			log.log(Level.DEBUG, "Giving up {0} after {1} attempts", method, attempt);
+			return -1;
+		}
+
+		var backoff = (long) Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt - 1));
+		if (jitter > 0 && backoff > 0) {
+			var spread = (long) (backoff * jitter);
+			backoff = backoff - spread + ThreadLocalRandom.current().nextLong(spread + 1);
+		}
+		if (response != null) {
+			var retryAfter = PollingPolicy.retryAfter(response.headers());
+			if (retryAfter.isPresent()) {
+				var hint = retryAfter.get().toMillis();
+				if (hint > maxDelay) {
+					giveUps.increment();
+					log.log(Level.DEBUG, "Giving up {0}, server asked for a retry after {1}ms", method, hint);
+					return -1;
+				}
+				backoff = Math.max(backoff, hint);
+			}
+		}
+		retries.increment();
+		log.log(Level.DEBUG, "Retrying {0} in {1}ms, attempt {2} failed", method, backoff, attempt);
+		return backoff;
+	}
+}
@@ -0,0 +1,42 @@
+package com.jadaptive.oauth.client;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Space delimited scope lists, as used by RFC 6749 section 3.3. Scopes are
+ * case sensitive and their order is not significant.
+ */
+final class Scopes {
+
+	private Scopes() {
+	}
+
+	static Set<String> parse(String scope) {
+		var scopes = new TreeSet<String>();
+		if (scope != null) {
+			for (var s : scope.split(" ")) {
+				if (!s.isEmpty()) {
+					scopes.add(s);
+				}
+			}
+		}
+		return Collections.unmodifiableSet(scopes);
+	}
+
+	/**
+	 * Get a scope list in a canonical form, so that lists containing the same
+	 * scopes are equal.
+	 *
+	 * @param scope scope
+	 * @return normalized scope
+	 */
+	static String normalize(String scope) {
+		return scope == null ? null : String.join(" ", parse(scope));
+	}
+
+	static boolean covers(String granted, String requested) {
+		return parse(granted).containsAll(parse(requested));
+	}
+}
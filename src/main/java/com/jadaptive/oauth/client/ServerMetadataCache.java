@@ -0,0 +1,318 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+import jakarta.json.Json;
+
+/**
+ * Discovers and caches authorization server metadata (RFC 8414 and OpenID
+ * Connect Discovery). One instance is normally shared by all clients, see
+ * {@link #getDefault()}, so each issuer's document is fetched once per
+ * process.
+ * <p>
+ * Documents are kept in memory for as long as the server's
+ * {@code Cache-Control} allows, and then revalidated using their
+ * {@code ETag} or {@code Last-Modified} date, so an unchanged document is not
+ * downloaded again. With a directory configured, documents are also kept on
+ * disk, so a new process does not need to contact the server at all while the
+ * stored document is fresh. If revalidation fails, the previous document
+ * continues to be used.
+ */
+public final class ServerMetadataCache {
+
+	static Logger log = System.getLogger(ServerMetadataCache.class.getName());
+
+	private final static String OAUTH_WELL_KNOWN = "/.well-known/oauth-authorization-server";
+	private final static String OIDC_WELL_KNOWN = "/.well-known/openid-configuration";
+
+	public final static class Builder {
+		private Optional<Path> directory = Optional.empty();
+		private Duration defaultMaxAge = Duration.ofHours(1);
+
+		/**
+		 * Directory in which to keep documents between runs.
+		 *
+		 * @param directory directory
+		 * @return this for chaining
+		 */
+		public Builder withDirectory(Path directory) {
+			this.directory = Optional.of(directory);
+			return this;
+		}
+
+		/**
+		 * How long a document is used without revalidation when the server does
+		 * not say.
+		 *
+		 * @param defaultMaxAge default maximum age
+		 * @return this for chaining
+		 */
+		public Builder withDefaultMaxAge(Duration defaultMaxAge) {
+			this.defaultMaxAge = defaultMaxAge;
+			return this;
+		}
+
+		public ServerMetadataCache build() {
+			return new ServerMetadataCache(this);
+		}
+	}
+
+	private final static class Default {
+		private final static ServerMetadataCache INSTANCE = new Builder().build();
+	}
+
+	public static ServerMetadataCache getDefault() {
+		return Default.INSTANCE;
+	}
+
+	private record Cached(AuthorizationServerMetadata metadata, String location, String etag, String lastModified,
+			long expires, boolean store) {
+
+		boolean fresh() {
+			return System.currentTimeMillis() < expires;
+		}
+	}
+
+	private final Optional<Path> directory;
+	private final long defaultMaxAge;
+	private final ConcurrentHashMap<String, Cached> documents = new ConcurrentHashMap<>();
+	private final SingleFlight<String, AuthorizationServerMetadata> flights = new SingleFlight<>();
+
+	private ServerMetadataCache(Builder bldr) {
+		this.directory = bldr.directory;
+		this.defaultMaxAge = bldr.defaultMaxAge.toMillis();
+	}
+
+	/**
+	 * Get the metadata of the issuer an {@link Http} is for.
+	 *
+	 * @param http http for the issuer
+	 * @return metadata
+	 * @throws IOException on error
+	 * @throws ResponseException on error response from server
+	 */
+	public AuthorizationServerMetadata get(Http http) throws IOException, ResponseException {
+		return Futures.await(getAsync(http));
+	}
+
+	public CompletableFuture<AuthorizationServerMetadata> getAsync(Http http) {
+		var issuer = issuer(http.getUri());
+		var cached = documents.get(issuer);
+		if (cached != null && cached.fresh()) {
+			return CompletableFuture.completedFuture(cached.metadata());
+		}
+		return flights.runAsync(issuer, () -> {
+			var current = Optional.ofNullable(documents.get(issuer)).or(() -> load(issuer));
+			if (current.isPresent() && current.get().fresh()) {
+				documents.put(issuer, current.get());
+				return CompletableFuture.completedFuture(current.get().metadata());
+			}
+			return fetch(http, issuer, current).exceptionally(ex -> {
+				if (current.isEmpty()) {
+					throw ex instanceof CompletionException ce ? ce : new CompletionException(ex);
+				}
+				log.log(Level.WARNING, "Failed to revalidate metadata for " + issuer + ", using previous document.", ex);
+				return current.get().metadata();
+			});
+		});
+	}
+
+	/**
+	 * Forget any document held for an issuer.
+	 *
+	 * @param issuer issuer
+	 */
+	public void invalidate(URI issuer) {
+		var key = issuer(issuer);
+		documents.remove(key);
+		directory.ifPresent(dir -> {
+			try {
+				Files.deleteIfExists(dir.resolve(fileName(key)));
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to remove cached metadata.", e);
+			}
+		});
+	}
+
+	private CompletableFuture<AuthorizationServerMetadata> fetch(Http http, String issuer, Optional<Cached> current) {
+		var locations = current.map(c -> List.of(c.location())).orElseGet(() -> wellKnown(issuer));
+		return fetch(http, issuer, current, locations, 0);
+	}
+
+	private CompletableFuture<AuthorizationServerMetadata> fetch(Http http, String issuer, Optional<Cached> current,
+			List<String> locations, int index) {
+		var location = locations.get(index);
+		var headers = new ArrayList<NameValuePair>();
+		current.ifPresent(c -> {
+			if (c.etag() != null) {
+				headers.add(new NameValuePair("If-None-Match", c.etag()));
+			}
+			if (c.lastModified() != null) {
+				headers.add(new NameValuePair("If-Modified-Since", c.lastModified()));
+			}
+		});
+		return http.getResponseAsync(location, headers.toArray(new NameValuePair[0])).thenCompose(response -> {
+			var status = response.statusCode();
+			if (status == 304 && current.isPresent()) {
+				log.log(Level.DEBUG, "Metadata for {0} is unchanged", issuer);
+				return CompletableFuture.completedFuture(update(issuer, current.get().metadata(), location, response, current));
+			}
+			if (status == 404 && index + 1 < locations.size()) {
+				return fetch(http, issuer, current, locations, index + 1);
+			}
+			if (status != 200) {
+				throw new CompletionException(new HttpStatusException(status, response.headers(), response.body()));
+			}
+			var metadata = new AuthorizationServerMetadata(JsonUtil.parseJSON(response.body()));
+			if (metadata.issuer() == null || !issuer(URI.create(metadata.issuer())).equals(issuer)) {
+				/* RFC 8414 3.3, prevents one server impersonating another */
+				throw new CompletionException(new IOException("Metadata at " + location + " is for issuer "
+						+ metadata.issuer() + ", expected " + issuer));
+			}
+			log.log(Level.DEBUG, "Discovered metadata for {0} at {1}", issuer, location);
+			return CompletableFuture.completedFuture(update(issuer, metadata, location, response, Optional.empty()));
+		});
+	}
+
+	private AuthorizationServerMetadata update(String issuer, AuthorizationServerMetadata metadata, String location,
+			HttpResponse<String> response, Optional<Cached> previous) {
+		var headers = response.headers();
+		var control = cacheControl(headers);
+		/* A 304 need not repeat the validators */
+		var cached = new Cached(metadata, location,
+				headers.firstValue("ETag").or(() -> previous.map(Cached::etag)).orElse(null),
+				headers.firstValue("Last-Modified").or(() -> previous.map(Cached::lastModified)).orElse(null),
+				System.currentTimeMillis() + control.maxAge(), !control.noStore());
+		documents.put(issuer, cached);
+		if (cached.store()) {
+			save(issuer, cached);
+		}
+		return metadata;
+	}
+
+	private record CacheControl(long maxAge, boolean noStore) {
+	}
+
+	private CacheControl cacheControl(HttpHeaders headers) {
+		var maxAge = -1L;
+		var noCache = false;
+		var noStore = false;
+		for (var value : headers.allValues("Cache-Control")) {
+			for (var directive : value.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.equals("no-store")) {
+					noStore = true;
+				} else if (directive.equals("no-cache")) {
+					noCache = true;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						var parsed = Math.max(0, Long.parseLong(directive.substring(8).replace("\"", "")) * 1000);
+						/* The most restrictive of any repeated max-age */
+						maxAge = maxAge < 0 ? parsed : Math.min(maxAge, parsed);
+					} catch (NumberFormatException nfe) {
+						/* Ignore */
+					}
+				}
+			}
+		}
+		if (noStore || noCache) {
+			return new CacheControl(0, noStore);
+		}
+		/* The default only applies when the server gives no freshness information */
+		return new CacheControl(maxAge < 0 ? defaultMaxAge : maxAge, false);
+	}
+
+	private Optional<Cached> load(String issuer) {
+		if (directory.isEmpty()) {
+			return Optional.empty();
+		}
+		var file = directory.get().resolve(fileName(issuer));
+		if (!Files.exists(file)) {
+			return Optional.empty();
+		}
+		try (var rdr = Json.createReader(new StringReader(Files.readString(file)))) {
+			var obj = rdr.readObject();
+			if (!issuer.equals(obj.getString("issuer", null))) {
+				return Optional.empty();
+			}
+			return Optional.of(new Cached(new AuthorizationServerMetadata(obj.getJsonObject("metadata")),
+					obj.getString("location"), obj.getString("etag", null), obj.getString("last_modified", null),
+					obj.getJsonNumber("expires").longValue(), true));
+		} catch (IOException | RuntimeException e) {
+			log.log(Level.WARNING, "Ignoring unreadable cached metadata " + file, e);
+			return Optional.empty();
+		}
+	}
+
+	private void save(String issuer, Cached cached) {
+		directory.ifPresent(dir -> {
+			var bldr = Json.createObjectBuilder()
+					.add("issuer", issuer)
+					.add("location", cached.location())
+					.add("expires", cached.expires())
+					.add("metadata", cached.metadata().json());
+			if (cached.etag() != null) {
+				bldr.add("etag", cached.etag());
+			}
+			if (cached.lastModified() != null) {
+				bldr.add("last_modified", cached.lastModified());
+			}
+			try {
+				Files.createDirectories(dir);
+				var file = dir.resolve(fileName(issuer));
+				var tmp = dir.resolve(file.getFileName() + ".tmp");
+				Files.writeString(tmp, bldr.build().toString());
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Failed to save metadata.", e);
+			}
+		});
+	}
+
+	static List<String> wellKnown(String issuer) {
+		var uri = URI.create(issuer);
+		var path = uri.getRawPath() == null ? "" : uri.getRawPath();
+		var root = issuer.substring(0, issuer.length() - path.length());
+		/* RFC 8414 inserts the well-known path before any issuer path, OpenID Connect appends it */
+		return List.of(root + OAUTH_WELL_KNOWN + path, issuer + OIDC_WELL_KNOWN);
+	}
+
+	static String issuer(URI uri) {
+		var str = uri.toString();
+		while (str.endsWith("/")) {
+			str = str.substring(0, str.length() - 1);
+		}
+		return str;
+	}
+
+	private static String fileName(String issuer) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(issuer.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest) + ".json";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+import jakarta.json.Json;
+
+/**
+ * A {@link TokenStore} shared by all processes on a host. Each key is kept in
+ * its own small memory-mapped file, so a token stored by one process is seen
+ * by every other process on its next lookup, without any network call, and
+ * without reading the file unless it has actually changed.
+ * <p>
+ * Refreshes are coordinated with an exclusive {@link FileLock}. The first
+ * process to find a token expired refreshes it while holding the lock, and
+ * processes that were waiting for the lock then pick up the new token rather
+ * than refreshing again. This matters when the server rotates refresh tokens,
+ * as a second refresh with the old refresh token would fail.
+ * <p>
+ * Lookups take no lock at all. Writers increment a version number in the file
+ * before and after changing a token, and readers retry if the version changed
+ * while they were reading.
+ * <p>
+ * Tokens are held in the clear, and are protected only by the file
+ * permissions, which are restricted to the owner. Use a directory that is only
+ * accessible to the user the processes run as.
+ */
+public final class SharedTokenCache implements TokenStore {
+
+	static Logger log = System.getLogger(SharedTokenCache.class.getName());
+
+	private final static int MAGIC = 0x4a4f5443;
+	private final static int MAGIC_OFFSET = 0;
+	private final static int LENGTH_OFFSET = 4;
+	private final static int VERSION_OFFSET = 8;
+	private final static int DATA_OFFSET = 16;
+	private final static int SIZE = 64 * 1024;
+	private final static int SPINS = 1000;
+
+	private final static VarHandle VERSION = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.BIG_ENDIAN);
+
+	/*
+	 * File locks are held by the whole JVM, and overlapping locks from two
+	 * channels to the same file fail, so files are shared by all instances
+	 */
+	private final static ConcurrentHashMap<Path, Slot> SLOTS = new ConcurrentHashMap<>();
+
+	public final static class Builder {
+		private Optional<Path> directory = Optional.empty();
+		private Optional<Executor> executor = Optional.empty();
+
+		public Builder withDirectory(Path directory) {
+			this.directory = Optional.of(directory);
+			return this;
+		}
+
+		/**
+		 * Executor used to wait for the lock held by another process that is
+		 * refreshing a token.
+		 *
+		 * @param executor executor
+		 * @return this for chaining
+		 */
+		public Builder withExecutor(Executor executor) {
+			this.executor = Optional.of(executor);
+			return this;
+		}
+
+		public SharedTokenCache build() throws IOException {
+			return new SharedTokenCache(this);
+		}
+	}
+
+	private final static class DefaultExecutor {
+		private final static Executor INSTANCE = Executors.newCachedThreadPool(r -> {
+			var t = new Thread(r, "SharedTokenCacheLock");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private record Snapshot(long version, Optional<BearerToken> token) {
+	}
+
+	private final static class Slot {
+		private final FileChannel channel;
+		private final MappedByteBuffer map;
+		/* Serialises use of the file lock within this JVM */
+		private final Semaphore mutex = new Semaphore(1);
+		private volatile Snapshot snapshot = new Snapshot(-1, Optional.empty());
+
+		private Slot(Path path) throws IOException {
+			var exists = Files.exists(path);
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			if (!exists) {
+				restrict(path);
+			}
+			map = channel.map(MapMode.READ_WRITE, 0, SIZE);
+			var magic = map.getInt(MAGIC_OFFSET);
+			if (magic != 0 && magic != MAGIC) {
+				throw new IOException(path + " is not a shared token cache.");
+			}
+		}
+	}
+
+	private final Path directory;
+	private final Executor executor;
+
+	private SharedTokenCache(Builder bldr) throws IOException {
+		this.directory = bldr.directory.orElseThrow(() -> new IllegalStateException("No directory provided"));
+		this.executor = bldr.executor.orElse(DefaultExecutor.INSTANCE);
+		if (!Files.exists(directory)) {
+			Files.createDirectories(directory);
+			restrict(directory);
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public Optional<BearerToken> load(String key) throws IOException {
+		return read(slot(key));
+	}
+
+	@Override
+	public void store(String key, BearerToken token) throws IOException {
+		var slot = slot(key);
+		if (token.equals(read(slot).orElse(null))) {
+			/* Already stored, most likely by refresh() */
+			return;
+		}
+		locked(slot, () -> write(slot, token));
+	}
+
+	@Override
+	public void remove(String key) throws IOException {
+		var slot = slot(key);
+		locked(slot, () -> write(slot, null));
+	}
+
+	@Override
+	public CompletableFuture<BearerToken> refresh(String key, BearerToken token,
+			Function<BearerToken, CompletableFuture<BearerToken>> refresher) {
+		Slot slot;
+		try {
+			slot = slot(key);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return CompletableFuture.supplyAsync(() -> lock(slot), executor).thenCompose(lock -> {
+			CompletableFuture<BearerToken> result;
+			try {
+				var current = read(slot);
+				if (current.isPresent() && !current.get().isExpired()
+						&& !Objects.equals(current.get().access_token(), token.access_token())) {
+					/* Another process refreshed while this one waited for the lock */
+					log.log(Level.DEBUG, "Using token refreshed by another process for {0}", key);
+					result = CompletableFuture.completedFuture(current.get());
+				} else {
+					/* The stored token has the latest refresh token if it was rotated */
+					var latest = current.filter(t -> t.refresh_token() != null).orElse(token);
+					result = refresher.apply(latest).thenApply(refreshed -> {
+						try {
+							write(slot, refreshed);
+						} catch (IOException e) {
+							log.log(Level.WARNING, "Failed to share refreshed token.", e);
+						}
+						return refreshed;
+					});
+				}
+			} catch (IOException | RuntimeException e) {
+				result = CompletableFuture.failedFuture(e);
+			}
+			return result.whenComplete((t, ex) -> unlock(slot, lock));
+		});
+	}
+
+	private Slot slot(String key) throws IOException {
+		var path = directory.resolve(fileName(key)).toAbsolutePath().normalize();
+		try {
+			return SLOTS.computeIfAbsent(path, p -> {
+				try {
+					return new Slot(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private Optional<BearerToken> read(Slot slot) throws IOException {
+		for (int i = 0; i < SPINS; i++) {
+			var version = (long) VERSION.getVolatile(slot.map, VERSION_OFFSET);
+			if ((version & 1) == 0) {
+				var snapshot = slot.snapshot;
+				if (snapshot.version() == version) {
+					return snapshot.token();
+				}
+				var length = slot.map.getInt(LENGTH_OFFSET);
+				if (length >= 0 && length <= SIZE - DATA_OFFSET) {
+					var data = new byte[length];
+					slot.map.get(DATA_OFFSET, data);
+					VarHandle.acquireFence();
+					if ((long) VERSION.getVolatile(slot.map, VERSION_OFFSET) == version) {
+						snapshot = new Snapshot(version, parse(data));
+						slot.snapshot = snapshot;
+						return snapshot.token();
+					}
+				}
+			}
+			Thread.onSpinWait();
+		}
+
+		/*
+		 * A writer is taking unusually long, or died part way through. Locking
+		 * waits for a live writer, as the lock is released when a process exits
+		 */
+		return locked(slot, () -> {
+			var version = (long) VERSION.getVolatile(slot.map, VERSION_OFFSET);
+			if ((version & 1) == 1) {
+				log.log(Level.WARNING, "Shared token cache has an incomplete write, ignoring it");
+				return Optional.empty();
+			}
+			var length = slot.map.getInt(LENGTH_OFFSET);
+			if (length < 0 || length > SIZE - DATA_OFFSET) {
+				throw new IOException("Shared token cache is corrupt.");
+			}
+			var data = new byte[length];
+			slot.map.get(DATA_OFFSET, data);
+			return parse(data);
+		});
+	}
+
+	private void write(Slot slot, BearerToken token) throws IOException {
+		var data = token == null ? new byte[0] : token.toJsonObject().toString().getBytes(StandardCharsets.UTF_8);
+		if (data.length > SIZE - DATA_OFFSET) {
+			throw new IOException("Token is too large for the shared token cache.");
+		}
+		var version = (long) VERSION.getVolatile(slot.map, VERSION_OFFSET);
+		if ((version & 1) == 1) {
+			/* Left by a writer that died, the lock guarantees no one else is writing */
+			version++;
+		}
+		VERSION.setVolatile(slot.map, VERSION_OFFSET, version + 1);
+		slot.map.putInt(MAGIC_OFFSET, MAGIC);
+		slot.map.putInt(LENGTH_OFFSET, data.length);
+		slot.map.put(DATA_OFFSET, data);
+		VERSION.setVolatile(slot.map, VERSION_OFFSET, version + 2);
+		slot.snapshot = new Snapshot(version + 2, Optional.ofNullable(token));
+	}
+
+	private interface LockedTask<T> {
+		T run() throws IOException;
+	}
+
+	private interface LockedAction {
+		void run() throws IOException;
+	}
+
+	private <T> T locked(Slot slot, LockedTask<T> task) throws IOException {
+		var lock = lockInterruptibly(slot);
+		try {
+			return task.run();
+		} finally {
+			unlock(slot, lock);
+		}
+	}
+
+	private void locked(Slot slot, LockedAction action) throws IOException {
+		locked(slot, () -> {
+			action.run();
+			return null;
+		});
+	}
+
+	private FileLock lockInterruptibly(Slot slot) throws IOException {
+		try {
+			slot.mutex.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted.", e);
+		}
+		try {
+			return slot.channel.lock();
+		} catch (IOException | RuntimeException e) {
+			slot.mutex.release();
+			throw e;
+		}
+	}
+
+	private FileLock lock(Slot slot) {
+		slot.mutex.acquireUninterruptibly();
+		try {
+			return slot.channel.lock();
+		} catch (IOException e) {
+			slot.mutex.release();
+			throw new CompletionException(e);
+		} catch (RuntimeException e) {
+			slot.mutex.release();
+			throw e;
+		}
+	}
+
+	private void unlock(Slot slot, FileLock lock) {
+		try {
+			lock.release();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Failed to release shared token cache lock.", e);
+		} finally {
+			slot.mutex.release();
+		}
+	}
+
+	private static Optional<BearerToken> parse(byte[] data) throws IOException {
+		if (data.length == 0) {
+			return Optional.empty();
+		}
+		try (var rdr = Json.createReader(new StringReader(new String(data, StandardCharsets.UTF_8)))) {
+			return Optional.of(new BearerToken(rdr.readObject()));
+		} catch (RuntimeException e) {
+			throw new IOException("Shared token cache is corrupt.", e);
+		}
+	}
+
+	private static String fileName(String key) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest) + ".token";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void restrict(Path file) {
+		try {
+			Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(
+					Files.isDirectory(file) ? "rwx------" : "rw-------"));
+		} catch (UnsupportedOperationException | IOException e) {
+			/* Not a POSIX file system */
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.jadaptive.oauth.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller
+ * performs the work, any others that arrive while it is in progress wait for
+ * and share its result.
+ */
+final class SingleFlight<K, V> {
+
+	private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+	CompletableFuture<V> runAsync(K key, Supplier<CompletableFuture<V>> call) {
+		var mine = new CompletableFuture<V>();
+		var existing = calls.putIfAbsent(key, mine);
+		if (existing != null) {
+			return existing;
+		}
+		CompletableFuture<V> started;
+		try {
+			started = call.get();
+		} catch (RuntimeException | Error e) {
+			started = CompletableFuture.failedFuture(e);
+		}
+		started.whenComplete((result, ex) -> {
+			calls.remove(key, mine);
+			if (ex == null) {
+				mine.complete(result);
+			} else {
+				mine.completeExceptionally(ex);
+			}
+		});
+		return mine;
+	}
+
+	int inflight() {
+		return calls.size();
+	}
+}
@@ -0,0 +1,261 @@
+package com.jadaptive.oauth.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+/**
+ * Keeps a {@link BearerToken} obtained from a {@link TokenSource}, such as an
+ * {@link OAuthClient}, fresh. The token is refreshed in the background ahead of
+ * its expiry, and concurrent requests for a refresh share a single call to the
+ * token endpoint. Tokens without a refresh token are only renewed ahead of
+ * expiry if the source can obtain a new one without user interaction.
+ */
+public final class TokenManager implements Closeable {
+
+	static Logger log = System.getLogger(TokenManager.class.getName());
+
+	public final static class Builder {
+		private Optional<TokenSource> client = Optional.empty();
+		private Optional<BearerToken> token = Optional.empty();
+		private Optional<ScheduledExecutorService> scheduler = Optional.empty();
+		private Duration leadTime = Duration.ofSeconds(60);
+		private Duration jitter = Duration.ofSeconds(10);
+		private Duration retryDelay = Duration.ofSeconds(10);
+
+		public Builder withClient(TokenSource client) {
+			this.client = Optional.of(client);
+			return this;
+		}
+
+		public Builder withBearerToken(BearerToken token) {
+			this.token = Optional.of(token);
+			return this;
+		}
+
+		public Builder withScheduler(ScheduledExecutorService scheduler) {
+			this.scheduler = Optional.of(scheduler);
+			return this;
+		}
+
+		public Builder withLeadTime(Duration leadTime) {
+			this.leadTime = leadTime;
+			return this;
+		}
+
+		public Builder withJitter(Duration jitter) {
+			this.jitter = jitter;
+			return this;
+		}
+
+		public Builder withRetryDelay(Duration retryDelay) {
+			this.retryDelay = retryDelay;
+			return this;
+		}
+
+		public TokenManager build() {
+			return new TokenManager(this);
+		}
+	}
+
+	private final TokenSource client;
+	private final ScheduledExecutorService scheduler;
+	private final boolean ownScheduler;
+	private final long leadTime;
+	private final long jitter;
+	private final long retryDelay;
+	private final AtomicReference<BearerToken> token = new AtomicReference<>();
+	private final AtomicReference<CompletableFuture<BearerToken>> inflight = new AtomicReference<>();
+
+	private volatile ScheduledFuture<?> scheduled;
+	private volatile boolean closed;
+
+	private TokenManager(Builder bldr) {
+		this.client = bldr.client.orElseThrow(() -> new IllegalStateException("No client provided"));
+		this.ownScheduler = bldr.scheduler.isEmpty();
+		this.scheduler = bldr.scheduler.orElseGet(() -> Executors.newSingleThreadScheduledExecutor(r -> {
+			var t = new Thread(r, "OAuthTokenRefresh");
+			t.setDaemon(true);
+			return t;
+		}));
+		this.leadTime = bldr.leadTime.toMillis();
+		this.jitter = bldr.jitter.toMillis();
+		this.retryDelay = bldr.retryDelay.toMillis();
+		bldr.token.ifPresent(this::update);
+	}
+
+	/**
+	 * Get the most recently issued token without blocking. If the token is
+	 * within the lead time of its expiry, a background refresh is started.
+	 *
+	 * @return token
+	 * @throws IllegalStateException if no token has been obtained yet
+	 */
+	public BearerToken currentToken() {
+		var current = token.get();
+		if (current == null) {
+			throw new IllegalStateException("No token has been obtained yet.");
+		}
+		if (refreshDue(current) && renewable(current)) {
+			refresh();
+		}
+		return current;
+	}
+
+	/**
+	 * Get a valid token, only blocking if there is no current token or it has
+	 * already expired. In that case the token is refreshed or, if it cannot be,
+	 * the client is authorized again.
+	 *
+	 * @return token
+	 * @throws IOException on error
+	 * @throws ResponseException on error response from server
+	 */
+	public BearerToken awaitToken() throws IOException, ResponseException {
+		var current = token.get();
+		if (current != null && !current.isExpired()) {
+			return currentToken();
+		}
+		return Futures.await(refresh());
+	}
+
+	/**
+	 * Refresh the token now. If a refresh is already in progress, the returned
+	 * future is shared with that refresh rather than starting a new one.
+	 *
+	 * @return future token
+	 */
+	public CompletableFuture<BearerToken> refresh() {
+		while (true) {
+			var current = inflight.get();
+			if (current != null) {
+				return current;
+			}
+			var next = new CompletableFuture<BearerToken>();
+			if (inflight.compareAndSet(null, next)) {
+				try {
+					scheduler.execute(() -> doRefresh(next));
+				} catch (RuntimeException e) {
+					inflight.compareAndSet(next, null);
+					next.completeExceptionally(e);
+				}
+				return next;
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		var s = scheduled;
+		if (s != null) {
+			s.cancel(false);
+		}
+		if (ownScheduler) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	private void doRefresh(CompletableFuture<BearerToken> future) {
+		var current = token.get();
+		CompletableFuture<BearerToken> call;
+		if (current != null && current.refresh_token() != null) {
+			log.log(Level.DEBUG, "Refreshing token");
+			call = client.refreshAsync(current).handle((next, ex) -> {
+				if (ex != null && Futures.unwrap(ex) instanceof ResponseException) {
+					/* Refresh token rejected, most likely expired or revoked */
+					log.log(Level.DEBUG, "Refresh failed, authorizing", ex);
+					return client.authorizeAsync();
+				}
+				return ex == null ? CompletableFuture.completedFuture(next)
+						: CompletableFuture.<BearerToken>failedFuture(Futures.unwrap(ex));
+			}).thenCompose(Function.identity());
+		} else {
+			log.log(Level.DEBUG, "No refreshable token, authorizing");
+			call = client.authorizeAsync();
+		}
+		call.whenComplete((next, ex) -> {
+			if (ex == null) {
+				update(next);
+				inflight.compareAndSet(future, null);
+				future.complete(next);
+			} else {
+				var cause = Futures.unwrap(ex);
+				var latest = token.get();
+				if (cause instanceof CircuitOpenException coe && latest != null && !latest.isExpired()) {
+					/* The server is known to be down, so keep the still valid token and try again once it may be up */
+					log.log(Level.DEBUG, "Token endpoint unavailable, keeping current token. {0}", coe.getMessage());
+					inflight.compareAndSet(future, null);
+					future.complete(latest);
+					schedule(Math.max(retryDelay, coe.getRetryAt().toEpochMilli() - System.currentTimeMillis()));
+					return;
+				}
+				log.log(Level.WARNING, "Token refresh failed.", ex);
+				inflight.compareAndSet(future, null);
+				future.completeExceptionally(cause);
+				if (latest != null && renewable(latest)) {
+					schedule(retryDelay);
+				}
+			}
+		});
+	}
+
+	private void update(BearerToken next) {
+		token.set(next);
+		if (next.expires_in() > 0 && renewable(next)) {
+			var delay = refreshDelay(next);
+			var bound = Math.min(jitter, next.expires_in() * 250);
+			if (bound > 0) {
+				delay -= ThreadLocalRandom.current().nextLong(bound);
+			}
+			schedule(delay);
+		}
+	}
+
+	private boolean renewable(BearerToken current) {
+		return current.refresh_token() != null || client.isNonInteractive();
+	}
+
+	private boolean refreshDue(BearerToken current) {
+		return refreshDelay(current) <= 0;
+	}
+
+	private long refreshDelay(BearerToken current) {
+		if (current.expires_in() <= 0) {
+			return 0;
+		}
+		var lifetime = current.expires_in() * 1000;
+		/* Never refresh earlier than half way through the tokens lifetime */
+		var lead = Math.min(leadTime, lifetime / 2);
+		var expiry = (current.issued_at() + current.expires_in()) * 1000;
+		return expiry - lead - System.currentTimeMillis();
+	}
+
+	private synchronized void schedule(long delay) {
+		if (closed) {
+			return;
+		}
+		var s = scheduled;
+		if (s != null) {
+			s.cancel(false);
+		}
+		try {
+			scheduled = scheduler.schedule(this::refresh, Math.max(0, delay), TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			log.log(Level.DEBUG, "Could not schedule token refresh.", e);
+		}
+	}
+}
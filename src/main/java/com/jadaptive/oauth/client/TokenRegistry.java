@@ -0,0 +1,408 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+/**
+ * Holds tokens for many tenants, each identified by an issuer, client, scope
+ * and optional DPoP key. Every tenant gets its own {@link OAuthClient}, created
+ * on first use by a {@link ClientFactory}, while all tenants of one issuer
+ * share a single {@link Http}.
+ * <p>
+ * The number of tenants is bounded. When full, the least recently used tenant
+ * is evicted. Tenants that have not been used for a while, and tenants whose
+ * token has expired and cannot be refreshed, are evicted too.
+ * <p>
+ * A token is reused for any request whose scopes it covers. If a tenant
+ * already holds a valid token for {@code read write}, a request by the same
+ * client for {@code read} is answered with that token rather than a new grant.
+ */
+public final class TokenRegistry {
+
+	static Logger log = System.getLogger(TokenRegistry.class.getName());
+
+	/**
+	 * Identifies a tenant. The scope is normalized, so the order of scopes does
+	 * not matter.
+	 *
+	 * @param issuer issuer URI
+	 * @param clientId client ID
+	 * @param scope requested scope
+	 * @param dpopThumbprint JWK thumbprint of the DPoP key, or null
+	 */
+	public final static record Key(URI issuer, String clientId, String scope, String dpopThumbprint) {
+
+		public Key {
+			scope = Scopes.normalize(scope);
+		}
+
+		public static Key of(URI issuer, String clientId, String scope) {
+			return new Key(issuer, clientId, scope, null);
+		}
+
+		public static Key of(URI issuer, String clientId, String scope, KeyPair dpopKey) {
+			return new Key(issuer, clientId, scope, dpopKey == null ? null : DPoPProofFactory.thumbprint(dpopKey.getPublic()));
+		}
+
+		private Key principal() {
+			return new Key(issuer, clientId, null, dpopThumbprint);
+		}
+	}
+
+	/**
+	 * Counters describing how effective the registry is.
+	 *
+	 * @param hits lookups answered with a valid token
+	 * @param misses lookups that needed a token to be obtained or refreshed
+	 * @param evictions tenants evicted
+	 * @param size tenants currently held
+	 */
+	public final static record Stats(long hits, long misses, long evictions, int size) {
+	}
+
+	public interface ClientFactory {
+		/**
+		 * Create the client for a tenant.
+		 *
+		 * @param key tenant
+		 * @param http shared {@link Http} for the tenant's issuer
+		 * @return client
+		 */
+		OAuthClient create(Key key, Http http);
+	}
+
+	public final static class Builder {
+		private Optional<ClientFactory> clientFactory = Optional.empty();
+		private Optional<Function<URI, Http>> httpFactory = Optional.empty();
+		private int maxEntries = 10000;
+		private Duration expireAfterAccess = Duration.ofMinutes(30);
+
+		public Builder withClientFactory(ClientFactory clientFactory) {
+			this.clientFactory = Optional.of(clientFactory);
+			return this;
+		}
+
+		/**
+		 * Creates the {@link Http} shared by all tenants of an issuer.
+		 *
+		 * @param httpFactory http factory
+		 * @return this for chaining
+		 */
+		public Builder withHttpFactory(Function<URI, Http> httpFactory) {
+			this.httpFactory = Optional.of(httpFactory);
+			return this;
+		}
+
+		/**
+		 * Use a single {@link HttpClient} for all issuers.
+		 *
+		 * @param client client
+		 * @return this for chaining
+		 */
+		public Builder withClient(HttpClient client) {
+			return withHttpFactory(issuer -> new Http.Builder().withUri(issuer).withClient(client).build());
+		}
+
+		public Builder withMaxEntries(int maxEntries) {
+			if (maxEntries < 1) {
+				throw new IllegalArgumentException("Must allow at least one entry.");
+			}
+			this.maxEntries = maxEntries;
+			return this;
+		}
+
+		/**
+		 * How long a tenant may go unused before it is evicted.
+		 *
+		 * @param expireAfterAccess idle time
+		 * @return this for chaining
+		 */
+		public Builder withExpireAfterAccess(Duration expireAfterAccess) {
+			this.expireAfterAccess = expireAfterAccess;
+			return this;
+		}
+
+		public TokenRegistry build() {
+			return new TokenRegistry(this);
+		}
+	}
+
+	private final static class Entry {
+		private final Key key;
+		private final OAuthClient client;
+		private volatile BearerToken token;
+		private long lastAccess;
+
+		private Entry(Key key, OAuthClient client) {
+			this.key = key;
+			this.client = client;
+		}
+	}
+
+	private final static class Issuer {
+		private final Http http;
+		private int entries;
+
+		private Issuer(Http http) {
+			this.http = http;
+		}
+	}
+
+	private final ClientFactory clientFactory;
+	private final Function<URI, Http> httpFactory;
+	private final int maxEntries;
+	private final long expireAfterAccess;
+	private final long sweepInterval;
+
+	/* Guarded by this */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<URI, Issuer> issuers = new HashMap<>();
+	private final Map<Key, Set<Entry>> principals = new HashMap<>();
+	private long lastSweep = System.nanoTime();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private TokenRegistry(Builder bldr) {
+		this.clientFactory = bldr.clientFactory.orElseThrow(() -> new IllegalStateException("No client factory provided"));
+		this.httpFactory = bldr.httpFactory.orElseThrow(() -> new IllegalStateException("No http factory or client provided"));
+		this.maxEntries = bldr.maxEntries;
+		this.expireAfterAccess = bldr.expireAfterAccess.toNanos();
+		this.sweepInterval = Math.min(expireAfterAccess, TimeUnit.MINUTES.toNanos(1));
+	}
+
+	/**
+	 * Get a valid token for a tenant, obtaining or refreshing one if required.
+	 * Concurrent requests for the same tenant share a single request flow, see
+	 * {@link OAuthClient}.
+	 *
+	 * @param key tenant
+	 * @return token
+	 * @throws IOException on error
+	 * @throws ResponseException on error response
+	 */
+	public BearerToken token(Key key) throws IOException, ResponseException {
+		return Futures.await(tokenAsync(key));
+	}
+
+	public CompletableFuture<BearerToken> tokenAsync(Key key) {
+		var covering = covering(key);
+		if (covering.isPresent()) {
+			hits.increment();
+			return CompletableFuture.completedFuture(covering.get());
+		}
+		Entry entry;
+		try {
+			entry = entry(key);
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		var token = entry.token;
+		if (valid(token, key)) {
+			/* Issued since the lookup above */
+			hits.increment();
+			return CompletableFuture.completedFuture(token);
+		}
+		misses.increment();
+		var request = token != null && token.refresh_token() != null ? entry.client.refreshAsync(token)
+				: entry.client.authorizeAsync();
+		return request.whenComplete((issued, ex) -> {
+			if (ex == null) {
+				entry.token = issued;
+			} else if (Futures.unwrap(ex) instanceof ResponseException) {
+				/* Refresh token rejected, so obtain a new token next time */
+				entry.token = null;
+			}
+		});
+	}
+
+	/**
+	 * Get the token currently held for a tenant, without obtaining or
+	 * refreshing one. Counts as a use of the tenant.
+	 *
+	 * @param key tenant
+	 * @return token
+	 */
+	public Optional<BearerToken> peek(Key key) {
+		synchronized (this) {
+			/* The lookup moves the entry to the tail, so it must also be marked used to keep idle entries at the head */
+			var entry = entries.get(key);
+			if (entry == null) {
+				return Optional.empty();
+			}
+			entry.lastAccess = System.nanoTime();
+			return Optional.ofNullable(entry.token);
+		}
+	}
+
+	/**
+	 * Add a token obtained elsewhere for a tenant. A token with no recorded
+	 * scope is taken to have been granted the tenant's scope.
+	 *
+	 * @param key tenant
+	 * @param token token
+	 */
+	public void put(Key key, BearerToken token) {
+		entry(key).token = token.scope() == null ? token.withScope(key.scope()) : token;
+	}
+
+	public void invalidate(Key key) {
+		synchronized (this) {
+			var entry = entries.remove(key);
+			if (entry != null) {
+				released(entry);
+			}
+		}
+	}
+
+	/**
+	 * Evict tenants that have not been used recently, or whose token has
+	 * expired and cannot be refreshed. This is also done periodically as the
+	 * registry is used.
+	 */
+	public void cleanUp() {
+		synchronized (this) {
+			sweep(System.nanoTime());
+		}
+	}
+
+	public Stats stats() {
+		synchronized (this) {
+			return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+		}
+	}
+
+	synchronized int issuers() {
+		return issuers.size();
+	}
+
+	/**
+	 * Find a valid token for a tenant, or failing that, a valid token held by
+	 * another tenant with the same issuer, client and DPoP key whose scope
+	 * covers the request.
+	 */
+	private synchronized Optional<BearerToken> covering(Key key) {
+		var now = System.nanoTime();
+		maintain(now);
+		var entry = entries.get(key);
+		if (entry != null) {
+			entry.lastAccess = now;
+			if (valid(entry.token, key)) {
+				return Optional.of(entry.token);
+			}
+		}
+		var siblings = principals.get(key.principal());
+		if (siblings != null) {
+			for (var sibling : siblings) {
+				if (sibling != entry && valid(sibling.token, key)) {
+					/* Keep the entry actually used from being evicted as idle */
+					entries.get(sibling.key);
+					sibling.lastAccess = now;
+					return Optional.of(sibling.token);
+				}
+			}
+		}
+		return Optional.empty();
+	}
+
+	private static boolean valid(BearerToken token, Key key) {
+		return token != null && !token.isExpired() && token.covers(key.scope());
+	}
+
+	private void maintain(long now) {
+		expireIdle(now);
+		if (now - lastSweep >= sweepInterval) {
+			sweep(now);
+		}
+	}
+
+	private synchronized Entry entry(Key key) {
+		var now = System.nanoTime();
+		maintain(now);
+
+		var entry = entries.get(key);
+		if (entry == null) {
+			var issuer = issuers.get(key.issuer());
+			if (issuer == null) {
+				issuer = new Issuer(httpFactory.apply(key.issuer()));
+			}
+			entry = new Entry(key, clientFactory.create(key, issuer.http));
+			issuers.putIfAbsent(key.issuer(), issuer);
+			issuer.entries++;
+			entries.put(key, entry);
+			principals.computeIfAbsent(key.principal(), k -> new HashSet<>()).add(entry);
+			if (entries.size() > maxEntries) {
+				var eldest = entries.values().iterator().next();
+				evict(eldest, "size");
+			}
+		}
+		entry.lastAccess = now;
+		return entry;
+	}
+
+	private void expireIdle(long now) {
+		/* Entries are in access order, so idle entries are always at the head */
+		var it = entries.values().iterator();
+		while (it.hasNext()) {
+			var entry = it.next();
+			if (now - entry.lastAccess < expireAfterAccess) {
+				break;
+			}
+			it.remove();
+			released(entry);
+			evicted(entry, "idle");
+		}
+	}
+
+	private void sweep(long now) {
+		lastSweep = now;
+		expireIdle(now);
+		for (var entry : new ArrayList<>(entries.values())) {
+			var token = entry.token;
+			if (token != null && token.isExpired() && token.refresh_token() == null) {
+				evict(entry, "expiry");
+			}
+		}
+	}
+
+	private void evict(Entry entry, String reason) {
+		entries.remove(entry.key);
+		released(entry);
+		evicted(entry, reason);
+	}
+
+	private void evicted(Entry entry, String reason) {
+		evictions.increment();
+		log.log(Level.DEBUG, "Evicted {0} ({1})", entry.key, reason);
+	}
+
+	private void released(Entry entry) {
+		var siblings = principals.get(entry.key.principal());
+		if (siblings != null && siblings.remove(entry) && siblings.isEmpty()) {
+			principals.remove(entry.key.principal());
+		}
+		var issuer = issuers.get(entry.key.issuer());
+		if (issuer != null && --issuer.entries == 0) {
+			issuers.remove(entry.key.issuer());
+		}
+	}
+}
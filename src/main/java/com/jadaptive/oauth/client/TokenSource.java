@@ -0,0 +1,39 @@
+package com.jadaptive.oauth.client;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+/**
+ * Something that can obtain and refresh tokens, such as an
+ * {@link OAuthClient} or a {@link ClientCredentialsClient}. Used by
+ * {@link TokenManager} to keep a token fresh.
+ */
+public interface TokenSource {
+
+	/**
+	 * Obtain a new token.
+	 *
+	 * @return future token
+	 */
+	CompletableFuture<BearerToken> authorizeAsync();
+
+	/**
+	 * Obtain a new token using the refresh token of an existing one.
+	 *
+	 * @param token token
+	 * @return future token
+	 */
+	CompletableFuture<BearerToken> refreshAsync(BearerToken token);
+
+	/**
+	 * Get whether {@link #authorizeAsync()} can complete without any user
+	 * interaction. If so, a token without a refresh token may still be renewed
+	 * ahead of its expiry by obtaining a new one.
+	 *
+	 * @return non-interactive
+	 */
+	default boolean isNonInteractive() {
+		return false;
+	}
+}
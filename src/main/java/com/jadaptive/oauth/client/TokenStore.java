@@ -0,0 +1,41 @@
+package com.jadaptive.oauth.client;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+/**
+ * Persists tokens between runs. {@link OAuthClient} consults its store before
+ * starting a flow, and saves every token it is issued. Keys are opaque strings
+ * chosen by the client, see
+ * {@link OAuthClient.Builder#withTokenStoreKey(String)}.
+ * <p>
+ * Implementations must be safe for use by multiple threads.
+ */
+public interface TokenStore {
+
+	Optional<BearerToken> load(String key) throws IOException;
+
+	void store(String key, BearerToken token) throws IOException;
+
+	void remove(String key) throws IOException;
+
+	/**
+	 * Refresh a token. Stores shared with other clients may use this to make sure
+	 * only one of them contacts the server, with the others receiving the token
+	 * it was issued. The default implementation just invokes the refresher.
+	 *
+	 * @param key key
+	 * @param token token to refresh
+	 * @param refresher sends a refresh request using the refresh token of the
+	 *                  token it is given
+	 * @return future refreshed token
+	 */
+	default CompletableFuture<BearerToken> refresh(String key, BearerToken token,
+			Function<BearerToken, CompletableFuture<BearerToken>> refresher) {
+		return refresher.apply(token);
+	}
+}
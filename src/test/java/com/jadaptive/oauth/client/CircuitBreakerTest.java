@@ -0,0 +1,173 @@
+package com.jadaptive.oauth.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CircuitBreakerTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicBoolean down = new AtomicBoolean();
+
+    private Http http(CircuitBreaker breaker, LoopbackTransport.Handler handler) {
+        return new Http.Builder()
+                .withUri(URI.create("https://auth.example.com/"))
+                .withTransport(new LoopbackTransport.Builder().withHandler(req -> {
+                    calls.incrementAndGet();
+                    if (down.get()) {
+                        throw new IOException("Connection refused");
+                    }
+                    return handler.handle(req);
+                }).build())
+                .withCircuitBreaker(breaker)
+                .build();
+    }
+
+    private static LoopbackTransport.Response token(String token) {
+        return LoopbackTransport.Response.json(200,
+                "{ \"access_token\": \"" + token + "\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }");
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailuresAndFailsFast() throws Exception {
+        var breaker = new CircuitBreaker.Builder().withFailureThreshold(3).build();
+        var http = http(breaker, req -> LoopbackTransport.Response.json(400, "{ \"error\": \"invalid_grant\" }"));
+
+        /* OAuth errors show the server is up */
+        for (int i = 0; i < 5; i++) {
+            assertThrows(ResponseException.class, () -> http.postForm("/oauth2/token"));
+        }
+
+        down.set(true);
+        for (int i = 0; i < 3; i++) {
+            var ex = assertThrows(IOException.class, () -> http.postForm("/oauth2/token"));
+            assertFalse(ex instanceof CircuitOpenException);
+        }
+        var ex = assertThrows(CircuitOpenException.class, () -> http.postForm("/oauth2/token"));
+        assertEquals(URI.create("https://auth.example.com/oauth2/token"), ex.getEndpoint());
+        var async = assertThrows(ExecutionException.class, () -> http.postFormAsync("/oauth2/token").get());
+        assertInstanceOf(CircuitOpenException.class, async.getCause());
+        assertEquals(8, calls.get());
+
+        /* Other endpoints have their own circuit */
+        assertThrows(IOException.class, () -> http.get("/oauth2/jwks"));
+        assertEquals(9, calls.get());
+        assertEquals(new CircuitBreaker.Stats(4, 2, 1), breaker.stats());
+    }
+
+    @Test
+    public void testOpenCircuitIsNotRetried() throws Exception {
+        var breaker = new CircuitBreaker.Builder().withFailureThreshold(2).build();
+        down.set(true);
+        var http = new Http.Builder()
+                .fromHttp(http(breaker, req -> token("abc")))
+                .withRetryPolicy(new RetryPolicy.Builder().withMaxAttempts(5).withInitialDelay(Duration.ZERO).build())
+                .build();
+
+        assertThrows(CircuitOpenException.class, () -> http.get("/ping"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testSingleProbeClosesCircuit() throws Exception {
+        var breaker = new CircuitBreaker.Builder().withFailureThreshold(1).withOpenDuration(Duration.ofMillis(100)).build();
+        var probing = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var pool = Executors.newCachedThreadPool();
+        try {
+            var http = new Http.Builder()
+                    .withUri(URI.create("https://auth.example.com/"))
+                    .withTransport(new LoopbackTransport.Builder().withExecutor(pool).withHandler(req -> {
+                        calls.incrementAndGet();
+                        if (down.get()) {
+                            throw new IOException("Connection refused");
+                        }
+                        probing.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return LoopbackTransport.Response.of(200, "text/plain", "up");
+                    }).build())
+                    .withCircuitBreaker(breaker)
+                    .build();
+
+            down.set(true);
+            assertThrows(IOException.class, () -> http.get("/ping"));
+            assertThrows(CircuitOpenException.class, () -> http.get("/ping"));
+
+            Thread.sleep(150);
+            down.set(false);
+            var probe = http.getAsync("/ping");
+            assertTrue(probing.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 10; i++) {
+                assertThrows(CircuitOpenException.class, () -> http.get("/ping"));
+            }
+
+            release.countDown();
+            assertEquals("up", probe.get(5, TimeUnit.SECONDS));
+            assertEquals("up", http.get("/ping"));
+            assertEquals(3, calls.get());
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() throws Exception {
+        var breaker = new CircuitBreaker.Builder().withFailureThreshold(1).withOpenDuration(Duration.ofMillis(100)).build();
+        var http = http(breaker, req -> token("abc"));
+
+        down.set(true);
+        assertThrows(IOException.class, () -> http.get("/ping"));
+        Thread.sleep(150);
+        var probe = assertThrows(IOException.class, () -> http.get("/ping"));
+        assertFalse(probe instanceof CircuitOpenException);
+        assertThrows(CircuitOpenException.class, () -> http.get("/ping"));
+        assertEquals(2, calls.get());
+        assertEquals(2, breaker.stats().opened());
+    }
+
+    @Test
+    public void testValidTokenIsServedWhileOpen() throws Exception {
+        var breaker = new CircuitBreaker.Builder().withFailureThreshold(1).build();
+        var http = http(breaker, req -> token("token-" + calls.get()));
+        var client = new ClientCredentialsClient.Builder()
+                .withHttp(http)
+                .withClientId("my-service")
+                .withClientSecret("secret")
+                .build();
+
+        assertEquals("token-1", client.token().access_token());
+
+        down.set(true);
+        var ex = assertThrows(ExecutionException.class, () -> client.authorizeAsync().get());
+        assertFalse(ex.getCause() instanceof CircuitOpenException);
+
+        ex = assertThrows(ExecutionException.class, () -> client.authorizeAsync().get());
+        assertInstanceOf(CircuitOpenException.class, ex.getCause());
+
+        assertEquals("token-1", client.token().access_token());
+        try (var mgr = new TokenManager.Builder().withClient(client).withBearerToken(client.token()).build()) {
+            assertEquals("token-1", mgr.refresh().get(5, TimeUnit.SECONDS).access_token());
+            assertEquals("token-1", mgr.awaitToken().access_token());
+        }
+        assertEquals(2, calls.get());
+
+        client.invalidate();
+        var failed = assertThrows(ExecutionException.class, () -> client.tokenAsync().get());
+        assertInstanceOf(CircuitOpenException.class, failed.getCause());
+    }
+}
@@ -0,0 +1,248 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ClientCredentialsClientTest {
+
+    private WireMockServer wireMockServer;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private ClientCredentialsClient.Builder client() {
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+        return new ClientCredentialsClient.Builder()
+                .withHttp(http)
+                .withClientId("my-service")
+                .withClientSecret("s3cr:et")
+                .withScope("read write");
+    }
+
+    @Test
+    public void testTokenIsCachedAndSharedByAllThreads() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withHeader("Authorization", equalTo("Basic bXktc2VydmljZTpzM2NyJTNBZXQ="))
+                .withRequestBody(equalTo("grant_type=client_credentials&scope=read+write"))
+                .willReturn(aResponse()
+                        .withFixedDelay(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"service-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        ClientCredentialsClient client = client().build();
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            var results = new ArrayList<CompletableFuture<BearerToken>>();
+            for (int i = 0; i < 64; i++) {
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                        return client.token();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, pool));
+            }
+            start.countDown();
+            for (var r : results) {
+                assertEquals("service-token", r.get().access_token());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals("service-token", client.token().access_token());
+        assertEquals("read write", client.token().scope());
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testTokenIsRenewedAheadOfExpiry() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token")).inScenario("renew")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willSetStateTo("renewed")
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"first-token\", \"token_type\": \"Bearer\", \"expires_in\": 4 }")));
+        stubFor(post(urlPathEqualTo("/oauth2/token")).inScenario("renew")
+                .whenScenarioStateIs("renewed")
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"second-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        ClientCredentialsClient client = client().withLeadTime(Duration.ofSeconds(60)).build();
+        assertEquals("first-token", client.token().access_token());
+
+        /* The lead time is capped at half the 4 second lifetime */
+        Thread.sleep(2100);
+        assertEquals("first-token", client.token().access_token(), "Still valid, so should not wait for renewal");
+        for (int i = 0; i < 100 && client.token().access_token().equals("first-token"); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("second-token", client.token().access_token());
+        verify(2, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testClientSecretPostWithDPoP() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withHeader("DPoP", matching(".+\\..+\\..+"))
+                .withHeader("Authorization", absent())
+                .withRequestBody(containing("client_id=my-service"))
+                .withRequestBody(containing("client_secret=s3cr%3Aet"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"dpop-token\", \"token_type\": \"DPoP\", \"expires_in\": 3600, \"scope\": \"read\" }")));
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        ClientCredentialsClient client = client()
+                .withClientSecretPost(true)
+                .withDPoP(true)
+                .withDPoPKeyPair(kpg.generateKeyPair())
+                .build();
+
+        BearerToken token = client.token();
+        assertEquals("dpop-token", token.access_token());
+        assertEquals("read", token.scope());
+    }
+
+    @Test
+    public void testRetryUsesNewDPoPProof() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .inScenario("retry")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(503))
+                .willSetStateTo("up"));
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .inScenario("retry")
+                .whenScenarioStateIs("up")
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"dpop-token\", \"token_type\": \"DPoP\", \"expires_in\": 3600 }")));
+
+        var policy = new RetryPolicy.Builder().withInitialDelay(Duration.ofMillis(10)).build();
+        Http http = new Http.Builder()
+                .withUri(URI.create("http://localhost:" + wireMockServer.port() + "/"))
+                .withClient(java.net.http.HttpClient.newHttpClient())
+                .withRetryPolicy(policy)
+                .build();
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        ClientCredentialsClient client = client()
+                .withHttp(http)
+                .withDPoP(true)
+                .withDPoPKeyPair(kpg.generateKeyPair())
+                .build();
+
+        assertEquals("dpop-token", client.token().access_token());
+
+        var proofs = findAll(postRequestedFor(urlPathEqualTo("/oauth2/token"))).stream()
+                .map(r -> r.getHeader("DPoP")).distinct().count();
+        assertEquals(2, proofs);
+        assertEquals(1, policy.stats().retries());
+    }
+
+    @Test
+    public void testErrorResponseFails() {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .willReturn(aResponse()
+                        .withStatus(401)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"error\": \"invalid_client\" }")));
+
+        ResponseException re = assertThrows(ResponseException.class, () -> client().build().token());
+        assertEquals("invalid_client", re.getError());
+    }
+
+    @Test
+    public void testPrivateKeyJwtAssertionIsReused() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withHeader("Authorization", absent())
+                .withRequestBody(containing("client_assertion_type=urn%3Aietf%3Aparams%3Aoauth%3Aclient-assertion-type%3Ajwt-bearer"))
+                .withRequestBody(matching(".*client_assertion=[^&.]+\\.[^&.]+\\.[^&.]+.*"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"jwt-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        java.security.KeyPair keyPair = kpg.generateKeyPair();
+        PrivateKeyJwt jwt = new PrivateKeyJwt.Builder()
+                .withClientId("my-service")
+                .withKeyPair(keyPair)
+                .withKeyId("key-1")
+                .withReuse(true)
+                .build();
+        ClientCredentialsClient client = client().withClientAuthentication(jwt).build();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("jwt-token", client.authorizeAsync().get().access_token());
+        }
+        verify(5, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+        assertEquals(1, jwt.signatures(), "Assertion should only be signed once");
+
+        /* Check the assertion itself */
+        String endpoint = "http://localhost:" + wireMockServer.port() + "/oauth2/token";
+        String[] parts = jwt.assertion(endpoint).split("\\.");
+        jakarta.json.JsonObject header = JsonUtil.parseJSON(new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8));
+        jakarta.json.JsonObject claims = JsonUtil.parseJSON(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+        assertEquals("RS256", header.getString("alg"));
+        assertEquals("key-1", header.getString("kid"));
+        assertEquals("my-service", claims.getString("iss"));
+        assertEquals("my-service", claims.getString("sub"));
+        assertEquals(endpoint, claims.getString("aud"));
+        assertEquals(120, claims.getJsonNumber("exp").longValue() - claims.getJsonNumber("iat").longValue());
+
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.UTF_8));
+        assertTrue(verifier.verify(Base64.getUrlDecoder().decode(parts[2])));
+    }
+
+    @Test
+    public void testPrivateKeyJwtSignsEveryRequestByDefault() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        PrivateKeyJwt jwt = new PrivateKeyJwt.Builder()
+                .withClientId("my-service")
+                .withKeyPair(kpg.generateKeyPair())
+                .build();
+
+        String first = jwt.assertion("https://auth.example.com/oauth2/token");
+        String second = jwt.assertion("https://auth.example.com/oauth2/token");
+        assertNotEquals(first, second);
+        assertEquals(2, jwt.signatures());
+    }
+}
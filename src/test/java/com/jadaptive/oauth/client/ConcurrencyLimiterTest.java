@@ -0,0 +1,191 @@
+package com.jadaptive.oauth.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrencyLimiterTest {
+
+    private ExecutorService pool;
+    private CountDownLatch gate;
+    private AtomicInteger active;
+    private AtomicInteger maxActive;
+    private List<String> handled;
+
+    @BeforeEach
+    public void setup() {
+        pool = Executors.newCachedThreadPool();
+        gate = new CountDownLatch(1);
+        active = new AtomicInteger();
+        maxActive = new AtomicInteger();
+        handled = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @AfterEach
+    public void teardown() {
+        gate.countDown();
+        pool.shutdownNow();
+    }
+
+    private Http http(ConcurrencyLimiter limiter) {
+        var transport = new LoopbackTransport.Builder().withExecutor(pool).withHandler(req -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                handled.add(req.path());
+                if (req.path().startsWith("/api")) {
+                    gate.await();
+                    return LoopbackTransport.Response.of(200, "text/plain", "data");
+                }
+                return LoopbackTransport.Response.json(200,
+                        "{ \"access_token\": \"service-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }");
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+        }).build();
+        return new Http.Builder()
+                .withUri(URI.create("https://api.example.com/"))
+                .withTransport(transport)
+                .withConcurrencyLimiter(limiter)
+                .build();
+    }
+
+    private void awaitActive(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && active.get() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, active.get());
+    }
+
+    @Test
+    public void testRequestsOverTheLimitAreQueued() throws Exception {
+        var limiter = new ConcurrencyLimiter.Builder().withMaxConcurrent(3).withPriorityReserve(0).build();
+        var http = http(limiter);
+
+        var results = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 10; i++) {
+            results.add(http.getAsync("/api/" + i));
+        }
+        awaitActive(3);
+        Thread.sleep(50);
+        assertEquals(3, handled.size());
+        assertEquals(7, limiter.stats().queued());
+
+        gate.countDown();
+        for (var result : results) {
+            assertEquals("data", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(3, maxActive.get());
+        assertEquals(new ConcurrencyLimiter.Stats(10, 7, 0), limiter.stats());
+    }
+
+    @Test
+    public void testTokenRequestUsesReservedSlot() throws Exception {
+        var limiter = new ConcurrencyLimiter.Builder().withMaxConcurrent(2).withPriorityReserve(1).build();
+        var http = http(limiter);
+
+        var bulk = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 5; i++) {
+            bulk.add(http.authenticate("Bearer abc").getAsync("/api/" + i));
+        }
+        awaitActive(1);
+
+        var client = new ClientCredentialsClient.Builder()
+                .withHttp(http)
+                .withClientId("my-service")
+                .withClientSecret("secret")
+                .build();
+        assertEquals("service-token", client.tokenAsync().get(5, TimeUnit.SECONDS).access_token());
+        assertTrue(bulk.stream().noneMatch(CompletableFuture::isDone), "Bulk requests should still be waiting");
+
+        gate.countDown();
+        for (var result : bulk) {
+            assertEquals("data", result.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testPriorityLaneIsAdmittedAheadOfQueuedBulk() throws Exception {
+        var limiter = new ConcurrencyLimiter.Builder().withMaxConcurrent(1).withPriorityReserve(0).build();
+        var http = http(limiter);
+
+        var bulk = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 4; i++) {
+            bulk.add(http.getAsync("/api/" + i));
+        }
+        awaitActive(1);
+        var token = http.template("/oauth2/token", Http.APPLICATION_X_WWW_FORM_URLENCODED)
+                .postAsync(() -> new NameValuePair[0], Http.encodeForm(new NameValuePair("grant_type", "client_credentials")), true);
+
+        gate.countDown();
+        token.get(5, TimeUnit.SECONDS);
+        for (var result : bulk) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of("/api/0", "/oauth2/token", "/api/1", "/api/2", "/api/3"), handled);
+    }
+
+    @Test
+    public void testFullBulkQueueRejects() throws Exception {
+        var limiter = new ConcurrencyLimiter.Builder().withMaxConcurrent(2).withPriorityReserve(1).withMaxQueued(1).build();
+        var http = http(limiter);
+
+        var first = http.getAsync("/api/1");
+        var second = http.getAsync("/api/2");
+        var ex = assertThrows(ExecutionException.class, () -> http.getAsync("/api/3").get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, ex.getCause());
+        assertThrows(IOException.class, () -> http.get("/api/4"));
+
+        gate.countDown();
+        assertEquals("data", first.get(5, TimeUnit.SECONDS));
+        assertEquals("data", second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, limiter.stats().rejected());
+    }
+
+    @Test
+    public void testRequestWaitingToRetryDoesNotHoldSlot() throws Exception {
+        var limiter = new ConcurrencyLimiter.Builder().withMaxConcurrent(1).withPriorityReserve(0).build();
+        var failed = new CountDownLatch(1);
+        var transport = new LoopbackTransport.Builder().withHandler(req -> {
+            if (req.path().equals("/flaky")) {
+                failed.countDown();
+                throw new IOException("Connection reset");
+            }
+            return LoopbackTransport.Response.of(200, "text/plain", "data");
+        }).build();
+        var http = new Http.Builder()
+                .withUri(URI.create("https://api.example.com/"))
+                .withTransport(transport)
+                .withConcurrencyLimiter(limiter)
+                .withRetryPolicy(new RetryPolicy.Builder().withMaxAttempts(2).withInitialDelay(Duration.ofSeconds(2)).withJitter(0).build())
+                .build();
+
+        var flaky = pool.submit(() -> http.get("/flaky"));
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        var started = System.nanoTime();
+        assertEquals("data", http.get("/api"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1000, "Should not wait for the retry delay");
+
+        var ex = assertThrows(ExecutionException.class, () -> flaky.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, ex.getCause());
+    }
+}
@@ -0,0 +1,240 @@
+package com.jadaptive.oauth.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+import com.jadaptive.oauth.client.OAuth2Objects.DeviceCode;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DeviceFlowSchedulerTest {
+
+    private static final URI ISSUER = URI.create("https://auth.example.com/");
+
+    private DeviceFlowScheduler scheduler;
+
+    @BeforeEach
+    public void setup() {
+        scheduler = new DeviceFlowScheduler.Builder().withThreads(2).build();
+    }
+
+    @AfterEach
+    public void teardown() {
+        scheduler.close();
+    }
+
+    private static DeviceCode device(String code, long expiresIn) {
+        return new DeviceCode(code, expiresIn, "user-" + code, "http://mock/verify", "http://mock/verify?code=" + code, 1);
+    }
+
+    private static BearerToken error(String error) {
+        return new BearerToken(error, null, null, 0, null, "Bearer", null, 0);
+    }
+
+    private static BearerToken token(String accessToken) {
+        return new BearerToken(null, null, accessToken, 3600, null, "Bearer", null, 0);
+    }
+
+    @Test
+    public void testManyPendingFlowsShareFewThreads() throws Exception {
+        int flows = 2000;
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        ConcurrentHashMap<String, AtomicInteger> polls = new ConcurrentHashMap<>();
+        List<CompletableFuture<BearerToken>> results = new ArrayList<>();
+
+        for (int i = 0; i < flows; i++) {
+            results.add(scheduler.submit(ISSUER, device("code-" + i, 60), dev -> {
+                threads.add(Thread.currentThread().getName());
+                /* First poll is pending, the second succeeds */
+                int count = polls.computeIfAbsent(dev.device_code(), k -> new AtomicInteger()).incrementAndGet();
+                return CompletableFuture.completedFuture(count == 1 ? error("authorization_pending") : token("token-" + dev.device_code()));
+            }));
+        }
+
+        for (int i = 0; i < flows; i++) {
+            assertEquals("token-code-" + i, results.get(i).get(10, TimeUnit.SECONDS).access_token());
+        }
+        assertEquals(0, scheduler.pending());
+        assertTrue(threads.size() <= 2, "Polls should only run on the scheduler's pool, used " + threads);
+        polls.values().forEach(c -> assertEquals(2, c.get()));
+    }
+
+    @Test
+    public void testSlowDownIncreasesInterval() throws Exception {
+        List<Long> times = new ArrayList<>();
+        CompletableFuture<BearerToken> result = scheduler.submit(ISSUER, device("slow", 60), dev -> {
+            synchronized (times) {
+                times.add(System.currentTimeMillis());
+                return CompletableFuture.completedFuture(times.size() == 1 ? error("slow_down") : token("slow-token"));
+            }
+        });
+
+        assertEquals("slow-token", result.get(15, TimeUnit.SECONDS).access_token());
+        /* Interval was 1 second, slow_down adds 5 */
+        assertTrue(times.get(1) - times.get(0) >= 6000, "Should have waited for the increased interval");
+    }
+
+    @Test
+    public void testExpiredFlowFails() throws Exception {
+        AtomicInteger polls = new AtomicInteger();
+        CompletableFuture<BearerToken> result = scheduler.submit(ISSUER, device("expiring", 2), dev -> {
+            polls.incrementAndGet();
+            return CompletableFuture.completedFuture(error("authorization_pending"));
+        });
+
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(AuthorizationTimeoutException.class, ee.getCause());
+        assertEquals(0, scheduler.pending());
+        assertTrue(polls.get() >= 1);
+    }
+
+    @Test
+    public void testFirstPollWaitsForInterval() throws Exception {
+        long submitted = System.nanoTime();
+        AtomicLong firstPoll = new AtomicLong();
+        CompletableFuture<BearerToken> result = scheduler.submit(ISSUER, device("first", 60), dev -> {
+            firstPoll.compareAndSet(0, System.nanoTime());
+            return CompletableFuture.completedFuture(token("first-token"));
+        });
+
+        assertEquals("first-token", result.get(10, TimeUnit.SECONDS).access_token());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(firstPoll.get() - submitted) >= 1000, "Should not poll before the interval");
+    }
+
+    @Test
+    public void testDeniedFlowFails() throws Exception {
+        CompletableFuture<BearerToken> result = scheduler.submit(ISSUER, device("denied", 60),
+                dev -> CompletableFuture.completedFuture(error("access_denied")));
+
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(AuthorizationTimeoutException.class, ee.getCause());
+    }
+
+    @Test
+    public void testCancelStopsPolling() throws Exception {
+        AtomicInteger polls = new AtomicInteger();
+        DeviceCode dev = device("cancelled", 60);
+        CompletableFuture<BearerToken> result = scheduler.submit(ISSUER, dev, d -> {
+            polls.incrementAndGet();
+            return CompletableFuture.completedFuture(error("authorization_pending"));
+        });
+
+        while (polls.get() == 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(scheduler.cancel(dev));
+        assertTrue(result.isCancelled());
+        assertEquals(0, scheduler.pending());
+
+        int before = polls.get();
+        Thread.sleep(1500);
+        assertEquals(before, polls.get(), "No polls should be sent after cancelling");
+    }
+
+    @Test
+    public void testIdleIssuersAreForgotten() throws Exception {
+        List<CompletableFuture<BearerToken>> results = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            URI issuer = URI.create("https://auth" + i + ".example.com/");
+            results.add(scheduler.submit(issuer, device("issuer-" + i, 60),
+                    dev -> CompletableFuture.completedFuture(token("token-" + dev.device_code()))));
+        }
+        for (CompletableFuture<BearerToken> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(0, scheduler.issuers());
+    }
+
+    @Test
+    public void testDefaultSchedulerCannotBeClosed() throws Exception {
+        assertThrows(IllegalStateException.class, () -> DeviceFlowScheduler.getDefault().close());
+        CompletableFuture<BearerToken> result = DeviceFlowScheduler.getDefault().submit(ISSUER, device("default", 60),
+                dev -> CompletableFuture.completedFuture(token("default-token")));
+        assertEquals("default-token", result.get(10, TimeUnit.SECONDS).access_token());
+    }
+
+    private static ResponseException errorResponse(String error, String retryAfter) {
+        return new ResponseException(jakarta.json.Json.createObjectBuilder().add("error", error).build(),
+                java.net.http.HttpHeaders.of(retryAfter == null ? Map.of() : Map.of("Retry-After", List.of(retryAfter)), (k, v) -> true));
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() throws Exception {
+        List<Long> times = new ArrayList<>();
+        CompletableFuture<BearerToken> result = scheduler.submit(ISSUER, device("retry-after", 60), dev -> {
+            synchronized (times) {
+                times.add(System.currentTimeMillis());
+                if (times.size() == 1) {
+                    /* RFC 8628 errors normally arrive as a 400 response */
+                    return CompletableFuture.failedFuture(errorResponse("authorization_pending", "2"));
+                }
+                return CompletableFuture.completedFuture(token("retry-after-token"));
+            }
+        });
+
+        assertEquals("retry-after-token", result.get(10, TimeUnit.SECONDS).access_token());
+        assertTrue(times.get(1) - times.get(0) >= 2000, "Should have waited for Retry-After, not the 1 second interval");
+    }
+
+    @Test
+    public void testTransientFailureBacksOff() throws Exception {
+        List<Long> times = new ArrayList<>();
+        CompletableFuture<BearerToken> result = scheduler.submit(ISSUER, device("transient", 60), dev -> {
+            synchronized (times) {
+                times.add(System.currentTimeMillis());
+                if (times.size() == 1) {
+                    return CompletableFuture.failedFuture(new java.net.ConnectException("Connection refused"));
+                }
+                return CompletableFuture.completedFuture(token("transient-token"));
+            }
+        });
+
+        assertEquals("transient-token", result.get(10, TimeUnit.SECONDS).access_token());
+        assertTrue(times.get(1) - times.get(0) >= 2000, "Should have backed off to twice the interval");
+    }
+
+    @Test
+    public void testGivesUpAfterTooManyTransientFailures() throws Exception {
+        try (DeviceFlowScheduler strict = new DeviceFlowScheduler.Builder()
+                .withPollingPolicy(new PollingPolicy.Builder().withMaxTransientFailures(0).build())
+                .build()) {
+            CompletableFuture<BearerToken> result = strict.submit(ISSUER, device("unreachable", 60),
+                    dev -> CompletableFuture.failedFuture(new HttpStatusException(503, null, "Unavailable")));
+
+            ExecutionException ee = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(HttpStatusException.class, ee.getCause());
+        }
+    }
+
+    @Test
+    public void testPollingPolicy() {
+        PollingPolicy policy = new PollingPolicy.Builder().withJitter(0.5).build();
+        long second = TimeUnit.SECONDS.toNanos(1);
+
+        assertEquals(TimeUnit.SECONDS.toNanos(5), policy.initialInterval(0));
+        assertEquals(TimeUnit.SECONDS.toNanos(6), policy.slowDown(second));
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.nextDelay(second, java.util.Optional.empty());
+            assertTrue(delay >= second && delay <= second + second / 2, "Jitter must only ever add to the interval");
+        }
+        assertTrue(policy.nextDelay(second, java.util.Optional.of(java.time.Duration.ofSeconds(10))) >= TimeUnit.SECONDS.toNanos(10));
+
+        assertEquals(java.time.Duration.ofSeconds(120), PollingPolicy.parseRetryAfter("120").get());
+        assertEquals(java.time.Duration.ZERO, PollingPolicy.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT").get());
+        assertTrue(PollingPolicy.parseRetryAfter("soon").isEmpty());
+    }
+}
@@ -0,0 +1,227 @@
+package com.jadaptive.oauth.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EndpointSetTest {
+
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final Set<String> refusing = ConcurrentHashMap.newKeySet();
+    private final Set<String> resetting = ConcurrentHashMap.newKeySet();
+    private final Set<String> slow = ConcurrentHashMap.newKeySet();
+    private final Set<String> answered = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean stallNext = new AtomicBoolean();
+    private ExecutorService pool;
+
+    @BeforeEach
+    public void setup() {
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void teardown() {
+        pool.shutdownNow();
+    }
+
+    private int calls(String host) {
+        return calls.getOrDefault(host, new AtomicInteger()).get();
+    }
+
+    private Http http(boolean hedging) {
+        return new Http.Builder()
+                .withEndpoints(URI.create("https://node1.example.com/"), URI.create("https://node2.example.com/"))
+                .withTransport(transport())
+                .withHedging(hedging)
+                .build();
+    }
+
+    private HttpTransport transport() {
+        return new LoopbackTransport.Builder().withExecutor(pool).withHandler(req -> {
+            var host = req.uri().getHost();
+            calls.computeIfAbsent(host, k -> new AtomicInteger()).incrementAndGet();
+            if (refusing.contains(host)) {
+                throw new ConnectException("Connection refused");
+            }
+            if (resetting.contains(host)) {
+                throw new IOException("Connection reset");
+            }
+            if (slow.contains(host) || stallNext.compareAndSet(true, false)) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            answered.add(host);
+            return LoopbackTransport.Response.of(200, "text/plain", host);
+        }).build();
+    }
+
+    @Test
+    public void testPrimaryIsTheUri() {
+        assertEquals(URI.create("https://node1.example.com/"), http(false).getUri());
+    }
+
+    @Test
+    public void testLoadIsSpreadOverNodes() throws Exception {
+        var http = http(false);
+        for (int i = 0; i < 100; i++) {
+            http.get("/ping");
+        }
+        /* Even if one node looked slower, it is still tried now and then */
+        assertTrue(calls("node1.example.com") >= 3, "node1 had " + calls("node1.example.com"));
+        assertTrue(calls("node2.example.com") >= 3, "node2 had " + calls("node2.example.com"));
+
+        /* Requests in flight are spread, on fresh nodes so latency estimates do not skew the choice */
+        http = http(false);
+        calls.clear();
+        slow.add("node1.example.com");
+        slow.add("node2.example.com");
+        var futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(http.getAsync("/ping"));
+        }
+        for (var f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+        assertTrue(calls("node1.example.com") >= 3, "node1 had " + calls("node1.example.com"));
+        assertTrue(calls("node2.example.com") >= 3, "node2 had " + calls("node2.example.com"));
+    }
+
+    @Test
+    public void testConnectFailureFailsOverAndRestsNode() throws Exception {
+        refusing.add("node1.example.com");
+        var http = http(false).authenticate("Bearer abc");
+
+        for (int i = 0; i < 10; i++) {
+            /* Even a request that is not safe to repeat, as it never reached the node */
+            assertEquals("node2.example.com", http.postForm("/oauth2/token", new NameValuePair("grant_type", "refresh_token")));
+        }
+        assertEquals(1, calls("node1.example.com"));
+        assertEquals(10, calls("node2.example.com"));
+    }
+
+    @Test
+    public void testOtherFailuresAreNotFailedOver() throws Exception {
+        resetting.add("node1.example.com");
+        resetting.add("node2.example.com");
+        var http = http(false);
+
+        assertThrows(IOException.class, () -> http.postForm("/oauth2/token"));
+        assertEquals(1, calls("node1.example.com") + calls("node2.example.com"));
+    }
+
+    @Test
+    public void testAllNodesRefusing() throws Exception {
+        refusing.add("node1.example.com");
+        refusing.add("node2.example.com");
+        var http = http(false);
+
+        assertThrows(ConnectException.class, () -> http.get("/ping"));
+        assertEquals(1, calls("node1.example.com"));
+        assertEquals(1, calls("node2.example.com"));
+    }
+
+    @Test
+    public void testSlowNodeIsHedged() throws Exception {
+        var http = http(true);
+        for (int i = 0; i < 30; i++) {
+            http.get("/ping");
+        }
+
+        for (int i = 0; i < 4; i++) {
+            calls.clear();
+            answered.clear();
+            stallNext.set(true);
+            var started = System.nanoTime();
+            var host = http.getAsync("/ping").get(5, TimeUnit.SECONDS);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1500, "Should not wait for the slow node");
+            assertEquals(Set.of(host), answered);
+            assertEquals(1, calls("node1.example.com"));
+            assertEquals(1, calls("node2.example.com"));
+        }
+    }
+
+    @Test
+    public void testSlowerCopyIsCancelledAndEachCopyAdmitted() throws Exception {
+        var sent = new ArrayList<CompletableFuture<?>>();
+        var loopback = transport();
+        var transport = new HttpTransport() {
+            @Override
+            public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+                var future = loopback.sendAsync(request, handler);
+                synchronized (sent) {
+                    sent.add(future);
+                }
+                return future;
+            }
+        };
+        var limiter = new ConcurrencyLimiter.Builder().withMaxConcurrent(4).withPriorityReserve(0).build();
+        var http = new Http.Builder()
+                .withEndpoints(URI.create("https://node1.example.com/"), URI.create("https://node2.example.com/"))
+                .withTransport(transport)
+                .withConcurrencyLimiter(limiter)
+                .withHedging(true)
+                .build();
+        for (int i = 0; i < 30; i++) {
+            http.get("/ping");
+        }
+
+        sent.clear();
+        stallNext.set(true);
+        var admitted = limiter.stats().admitted();
+        http.getAsync("/ping").get(5, TimeUnit.SECONDS);
+        /* Cancelled as the response completes, which may be just after the caller sees it */
+        for (int i = 0; i < 100 && !sent.get(0).isCancelled(); i++) {
+            Thread.sleep(10);
+        }
+        synchronized (sent) {
+            assertEquals(2, sent.size());
+            assertTrue(sent.get(0).isCancelled(), "The slower copy should be cancelled");
+            assertFalse(sent.get(1).isCancelled());
+        }
+        assertEquals(admitted + 2, limiter.stats().admitted());
+    }
+
+    @Test
+    public void testUnsafeRequestsAreNotHedged() throws Exception {
+        var http = http(true);
+        for (int i = 0; i < 30; i++) {
+            http.get("/ping");
+        }
+
+        calls.clear();
+        stallNext.set(true);
+        http.postForm("/oauth2/token", new NameValuePair("grant_type", "refresh_token"));
+        assertEquals(1, calls("node1.example.com") + calls("node2.example.com"));
+    }
+
+    @Test
+    public void testOtherOriginsAreNotBalanced() throws Exception {
+        var http = http(false);
+        assertEquals("jwks.example.com", http.get("https://jwks.example.com/keys"));
+        assertEquals(1, calls("jwks.example.com"));
+    }
+}
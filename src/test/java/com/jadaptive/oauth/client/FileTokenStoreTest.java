@@ -0,0 +1,174 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+public class FileTokenStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private WireMockServer wireMockServer;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private FileTokenStore store(String password) {
+        return new FileTokenStore.Builder()
+                .withPath(dir.resolve("tokens.dat"))
+                .withPassword(password.toCharArray())
+                .withCompactionThreshold(4)
+                .withCompactor(Runnable::run)
+                .build();
+    }
+
+    private static BearerToken token(String accessToken) {
+        return new BearerToken(null, null, accessToken, 3600, null, "Bearer", "refresh-" + accessToken,
+                System.currentTimeMillis() / 1000);
+    }
+
+    @Test
+    public void testStoreAndReload() throws Exception {
+        FileTokenStore store = store("secret");
+        store.store("a", token("token-a"));
+        store.store("b", token("token-b"));
+        store.remove("b");
+
+        /* A new instance simulates the next run */
+        FileTokenStore reloaded = store("secret");
+        assertEquals("token-a", reloaded.load("a").get().access_token());
+        assertEquals("refresh-token-a", reloaded.load("a").get().refresh_token());
+        assertTrue(reloaded.load("b").isEmpty());
+
+        /* Nothing is stored in the clear */
+        String raw = new String(Files.readAllBytes(store.getPath()), StandardCharsets.ISO_8859_1);
+        assertFalse(raw.contains("token-a"));
+    }
+
+    @Test
+    public void testWrongPasswordFails() throws Exception {
+        store("secret").store("a", token("token-a"));
+        assertThrows(IOException.class, () -> store("wrong").load("a"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        FileTokenStore store = store("secret");
+        /* With a threshold of 4, the sixth record leaves 5 superseded */
+        for (int i = 0; i < 5; i++) {
+            store.store("a", token("token-" + i));
+        }
+        long before = Files.size(store.getPath());
+        store.store("a", token("token-latest"));
+        long after = Files.size(store.getPath());
+
+        assertTrue(after < before, "File should have been compacted");
+        assertEquals("token-latest", store("secret").load("a").get().access_token());
+    }
+
+    @Test
+    public void testFilesAreOnlyReadableByOwner() throws Exception {
+        assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+        FileTokenStore store = store("secret");
+        store.store("a", token("token-a"));
+        assertEquals(ownerOnly, Files.getPosixFilePermissions(store.getPath()));
+
+        /* A temporary file left by an earlier compaction is not reused with its permissions */
+        Path tmp = dir.resolve("tokens.dat.tmp");
+        Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-rw-rw-")));
+        store.compact();
+        assertEquals(ownerOnly, Files.getPosixFilePermissions(store.getPath()));
+        assertEquals("token-a", store("secret").load("a").get().access_token());
+    }
+
+    @Test
+    public void testTruncatedRecordIsIgnored() throws Exception {
+        FileTokenStore store = store("secret");
+        store.store("a", token("token-a"));
+        store.store("b", token("token-b"));
+        byte[] data = Files.readAllBytes(store.getPath());
+        Files.write(store.getPath(), java.util.Arrays.copyOf(data, data.length - 5));
+
+        FileTokenStore reloaded = store("secret");
+        assertEquals("token-a", reloaded.load("a").get().access_token());
+        assertTrue(reloaded.load("b").isEmpty());
+
+        /* Further writes are still readable */
+        reloaded.store("c", token("token-c"));
+        assertEquals("token-c", store("secret").load("c").get().access_token());
+    }
+
+    @Test
+    public void testClientUsesStoredToken() throws Exception {
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+        FileTokenStore store = store("secret");
+        store.store("my-client", token("stored-token"));
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withTokenStore(store("secret"))
+                .withTokenStoreKey("my-client")
+                .onPrompt(deviceCode -> fail("Should not start a device flow"))
+                .onTokenReady((deviceCode, token, authenticatedHttp) -> {})
+                .build();
+
+        assertEquals("stored-token", client.authorize().access_token());
+        verify(0, postRequestedFor(anyUrl()));
+    }
+
+    @Test
+    public void testClientStoresIssuedToken() throws Exception {
+        stubFor(post(urlEqualTo("/oauth2/device"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"device_code\": \"mock-device-code\", \"user_code\": \"mock-user-code\", \"verification_uri\": \"http://mock/verify\", \"verification_uri_complete\": \"http://mock/verify?code=mock-user-code\", \"expires_in\": 600, \"interval\": 1 }")));
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"issued-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withTokenStore(store("secret"))
+                .onPrompt(deviceCode -> {})
+                .onTokenReady((deviceCode, token, authenticatedHttp) -> {})
+                .build();
+        client.authorize();
+
+        String key = "http://localhost:" + wireMockServer.port() + "/ read";
+        assertEquals("issued-token", store("secret").load(key).get().access_token());
+    }
+}
@@ -0,0 +1,177 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+
+public class HttpCacheTest {
+
+    private WireMockServer wireMockServer;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private Http http(HttpCache cache) {
+        return new Http.Builder()
+                .withUri(URI.create("http://localhost:" + wireMockServer.port() + "/"))
+                .withClient(HttpClient.newHttpClient())
+                .withCache(cache)
+                .build();
+    }
+
+    @Test
+    public void testFreshResponseIsReused() throws Exception {
+        stubFor(get(urlPathEqualTo("/jwks"))
+                .willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withBody("keys")));
+
+        var cache = new HttpCache.Builder().build();
+        var http = http(cache);
+
+        assertEquals("keys", http.get("/jwks"));
+        assertEquals("keys", http.get("/jwks"));
+        assertEquals("keys", http.getAsync("/jwks").get());
+
+        verify(1, getRequestedFor(urlPathEqualTo("/jwks")));
+        assertEquals(new HttpCache.Stats(2, 0, 1, 1), cache.stats());
+    }
+
+    @Test
+    public void testStaleResponseIsRevalidated() throws Exception {
+        stubFor(get(urlPathEqualTo("/config"))
+                .inScenario("config")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse()
+                        .withHeader("Cache-Control", "no-cache")
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody("config"))
+                .willSetStateTo("cached"));
+        stubFor(get(urlPathEqualTo("/config"))
+                .inScenario("config")
+                .whenScenarioStateIs("cached")
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse().withStatus(304).withHeader("Cache-Control", "no-cache")));
+
+        var cache = new HttpCache.Builder().build();
+        var http = http(cache);
+
+        assertEquals("config", http.get("/config"));
+        assertEquals("config", http.get("/config"));
+        assertEquals("config", http.getAsync("/config").get());
+
+        verify(3, getRequestedFor(urlPathEqualTo("/config")));
+        assertEquals(2, cache.stats().revalidations());
+    }
+
+    @Test
+    public void testEntriesAreScopedByAuthorization() throws Exception {
+        stubFor(get(urlPathEqualTo("/userinfo"))
+                .withHeader("Authorization", equalTo("Bearer alice"))
+                .willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withBody("alice")));
+        stubFor(get(urlPathEqualTo("/userinfo"))
+                .withHeader("Authorization", equalTo("Bearer bob"))
+                .willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withBody("bob")));
+
+        var http = http(new HttpCache.Builder().build());
+
+        assertEquals("alice", http.authenticate("Bearer alice").get("/userinfo"));
+        assertEquals("bob", http.authenticate("Bearer bob").get("/userinfo"));
+        assertEquals("alice", http.authenticate("Bearer alice").get("/userinfo"));
+
+        verify(2, getRequestedFor(urlPathEqualTo("/userinfo")));
+    }
+
+    @Test
+    public void testVaryIsHonoured() throws Exception {
+        stubFor(get(urlPathEqualTo("/greeting")).withHeader("Accept-Language", equalTo("en"))
+                .willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withHeader("Vary", "Accept-Language").withBody("hello")));
+        stubFor(get(urlPathEqualTo("/greeting")).withHeader("Accept-Language", equalTo("fr"))
+                .willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withHeader("Vary", "Accept-Language").withBody("bonjour")));
+
+        var http = http(new HttpCache.Builder().build());
+        var en = new NameValuePair("Accept-Language", "en");
+        var fr = new NameValuePair("Accept-Language", "fr");
+
+        assertEquals("hello", http.get("/greeting", en));
+        assertEquals("bonjour", http.get("/greeting", fr));
+        assertEquals("hello", http.get("/greeting", en));
+        assertEquals("bonjour", http.get("/greeting", fr));
+
+        verify(2, getRequestedFor(urlPathEqualTo("/greeting")));
+    }
+
+    @Test
+    public void testNoStoreIsNotCached() throws Exception {
+        stubFor(get(urlPathEqualTo("/secret"))
+                .willReturn(aResponse().withHeader("Cache-Control", "no-store, max-age=300").withBody("secret")));
+
+        var http = http(new HttpCache.Builder().build());
+        http.get("/secret");
+        http.get("/secret");
+
+        verify(2, getRequestedFor(urlPathEqualTo("/secret")));
+    }
+
+    @Test
+    public void testOnlySharableResponsesAreKeptOnDisk() throws Exception {
+        stubFor(get(urlPathEqualTo("/metadata"))
+                .willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withBody("metadata")));
+        stubFor(get(urlPathEqualTo("/userinfo"))
+                .willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withBody("me")));
+
+        var first = http(new HttpCache.Builder().withDirectory(tempDir).build());
+        first.get("/metadata");
+        first.authenticate("Bearer alice").get("/userinfo");
+
+        var second = http(new HttpCache.Builder().withDirectory(tempDir).build());
+        assertEquals("metadata", second.get("/metadata"));
+        assertEquals("me", second.authenticate("Bearer alice").get("/userinfo"));
+
+        verify(1, getRequestedFor(urlPathEqualTo("/metadata")));
+        verify(2, getRequestedFor(urlPathEqualTo("/userinfo")));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        for (var path : new String[] { "/a", "/b", "/c" }) {
+            stubFor(get(urlPathEqualTo(path)).willReturn(aResponse().withHeader("Cache-Control", "max-age=300").withBody(path)));
+        }
+
+        var cache = new HttpCache.Builder().withMaxEntries(2).build();
+        var http = http(cache);
+        http.get("/a");
+        http.get("/b");
+        http.get("/a");
+        http.get("/c");
+        http.get("/a");
+        http.get("/b");
+
+        verify(1, getRequestedFor(urlPathEqualTo("/a")));
+        verify(2, getRequestedFor(urlPathEqualTo("/b")));
+        assertEquals(2, cache.stats().size());
+    }
+}
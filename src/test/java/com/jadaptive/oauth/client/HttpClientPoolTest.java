@@ -0,0 +1,115 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+public class HttpClientPoolTest {
+
+    private WireMockServer wireMockServer;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private static CertManager certManager() {
+        return new CertManager() {
+            @Override
+            public SSLContext getSSLContext() {
+                try {
+                    return SSLContext.getDefault();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public SSLParameters getSSLParameters() {
+                return new SSLParameters();
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+            @Override
+            public boolean verify(String hostname, SSLSession session) {
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void testClientIsSharedPerCertManager() throws Exception {
+        stubFor(get(urlPathEqualTo("/ping")).willReturn(aResponse().withBody("pong")));
+
+        try (var pool = new HttpClientPool.Builder().build()) {
+            var certs = certManager();
+            var uri = URI.create("http://localhost:" + wireMockServer.port() + "/");
+            for (int i = 0; i < 5; i++) {
+                var http = new Http.Builder().withUri(uri).withDefaultClient(certs, pool).build();
+                assertEquals("pong", http.get("/ping"));
+            }
+
+            assertEquals(1, pool.size());
+            assertSame(pool.client(certs), pool.client(certs));
+            assertNotSame(pool.client(certs), pool.client(certManager()));
+            assertEquals(2, pool.size());
+        }
+    }
+
+    @Test
+    public void testUsesConfiguredExecutorAndRejectsUseAfterClose() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            var pool = new HttpClientPool.Builder().withExecutor(executor).build();
+            var certs = certManager();
+            assertSame(executor, pool.client(certs).executor().get());
+
+            pool.close();
+            assertFalse(executor.isShutdown());
+            assertThrows(IllegalStateException.class, () -> pool.client(certs));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDefaultPoolCannotBeClosed() {
+        assertThrows(IllegalStateException.class, () -> HttpClientPool.getDefault().close());
+        assertNotNull(HttpClientPool.getDefault().client(certManager()));
+    }
+}
@@ -0,0 +1,466 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.http.Fault;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.jadaptive.oauth.client.OAuth2Objects.NameValuePair;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+public class HttpTest {
+
+    private final static String PASSWORD = "changeit";
+
+    private WireMockServer wireMockServer;
+    private SSLContext sslContext;
+
+    @TempDir
+    static Path tempDir;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        var keystore = tempDir.resolve("localhost.p12");
+        if (!Files.exists(keystore)) {
+            /* A certificate for localhost, so hostname verification passes */
+            var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+            var process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA",
+                    "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1",
+                    "-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", PASSWORD)
+                    .redirectErrorStream(true).start();
+            process.getInputStream().transferTo(OutputStream.nullOutputStream());
+            assertEquals(0, process.waitFor());
+        }
+
+        var trust = KeyStore.getInstance("PKCS12");
+        try (var in = Files.newInputStream(keystore)) {
+            trust.load(in, PASSWORD.toCharArray());
+        }
+        var tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trust);
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig()
+                .dynamicPort()
+                .dynamicHttpsPort()
+                .keystorePath(keystore.toString())
+                .keystoreType("PKCS12")
+                .keystorePassword(PASSWORD)
+                .keyManagerPassword(PASSWORD));
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+
+        stubFor(get(urlPathEqualTo("/ping")).willReturn(aResponse().withBody("pong")));
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private Http.Builder https() {
+        return new Http.Builder()
+                .withUri(URI.create("https://localhost:" + wireMockServer.httpsPort() + "/"))
+                .withClient(HttpClient.newBuilder().sslContext(sslContext).version(HttpClient.Version.HTTP_1_1).build());
+    }
+
+    @Test
+    public void testHttp2IsNegotiatedAndInheritedByAuthenticatedHttp() throws Exception {
+        var http = https().withHttp2(true).build();
+
+        assertEquals(HttpClient.Version.HTTP_2, http.getResponseAsync("/ping").get().version());
+        assertEquals(HttpClient.Version.HTTP_2, http.authenticate("Bearer abc").getResponseAsync("/ping").get().version());
+    }
+
+    @Test
+    public void testHttp1IsUsedUnlessRequested() throws Exception {
+        var http = https().build();
+
+        assertEquals(HttpClient.Version.HTTP_1_1, http.getResponseAsync("/ping").get().version());
+    }
+
+    @Test
+    public void testPlainHttpStaysOnHttp1() throws Exception {
+        var http = new Http.Builder()
+                .withUri(URI.create("http://localhost:" + wireMockServer.port() + "/"))
+                .withClient(HttpClient.newHttpClient())
+                .withHttp2(true)
+                .build();
+
+        var response = http.getResponseAsync("/ping").get();
+        assertEquals("pong", response.body());
+        assertEquals(HttpClient.Version.HTTP_1_1, response.version());
+        verify(getRequestedFor(urlPathEqualTo("/ping")).withoutHeader("Upgrade"));
+    }
+
+    private Http plain() {
+        return new Http.Builder()
+                .withUri(URI.create("http://localhost:" + wireMockServer.port() + "/"))
+                .withClient(HttpClient.newHttpClient())
+                .build();
+    }
+
+    @Test
+    public void testAsyncRequests() throws Exception {
+        stubFor(post(urlPathEqualTo("/json"))
+                .withHeader("Content-Type", equalTo(Http.APPLICATION_JSON))
+                .withRequestBody(equalToJson("{ \"a\": 1 }"))
+                .willReturn(aResponse().withBody("json")));
+        stubFor(post(urlPathEqualTo("/form"))
+                .withRequestBody(equalTo("a=1&b=x+y"))
+                .willReturn(aResponse().withBody("form")));
+
+        var http = plain().authenticate("Bearer abc");
+
+        assertEquals("pong", http.getAsync("/ping").get());
+        assertEquals("json", http.postJsonAsync("/json", "{ \"a\": 1 }").get());
+        assertEquals("form", http.postFormAsync("/form", new NameValuePair("a", "1"), new NameValuePair("b", "x y")).get());
+        verify(3, anyRequestedFor(anyUrl()).withHeader("Authorization", equalTo("Bearer abc")));
+    }
+
+    @Test
+    public void testAsyncErrorsMatchBlockingApi() throws Exception {
+        stubFor(get(urlPathEqualTo("/json-error"))
+                .willReturn(aResponse()
+                        .withStatus(401)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{ \"error\": \"invalid_token\" }")));
+        stubFor(get(urlPathEqualTo("/error")).willReturn(aResponse().withStatus(503).withBody("down")));
+
+        var http = plain();
+
+        var ex = assertThrows(ExecutionException.class, () -> http.getAsync("/json-error").get());
+        assertInstanceOf(ResponseException.class, ex.getCause());
+        assertThrows(ResponseException.class, () -> http.get("/json-error"));
+
+        ex = assertThrows(ExecutionException.class, () -> http.getAsync("/error").get());
+        assertEquals(503, assertInstanceOf(HttpStatusException.class, ex.getCause()).getStatus());
+        assertThrows(HttpStatusException.class, () -> http.get("/error"));
+    }
+
+    @Test
+    public void testBlockingRequestKeepsInterruptStatus() {
+        stubFor(get(urlPathEqualTo("/slow")).willReturn(aResponse().withFixedDelay(2000).withBody("slow")));
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(IOException.class, () -> plain().get("/slow"));
+            assertTrue(Thread.currentThread().isInterrupted());
+
+            /* Also when the request is awaited asynchronously */
+            var renewable = plain().authenticate("Bearer abc", () -> CompletableFuture.completedFuture("Bearer def"));
+            assertThrows(IOException.class, () -> renewable.get("/slow"));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private static RetryPolicy.Builder retries() {
+        return new RetryPolicy.Builder().withInitialDelay(Duration.ofMillis(10)).withMaxDelay(Duration.ofSeconds(2));
+    }
+
+    private Http retrying(RetryPolicy policy) {
+        return new Http.Builder()
+                .withUri(URI.create("http://localhost:" + wireMockServer.port() + "/"))
+                .withClient(HttpClient.newHttpClient())
+                .withRetryPolicy(policy)
+                .build();
+    }
+
+    @Test
+    public void testIdempotentRequestIsRetried() throws Exception {
+        stubFor(get(urlPathEqualTo("/flaky")).inScenario("flaky").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)).willSetStateTo("reset"));
+        stubFor(get(urlPathEqualTo("/flaky")).inScenario("flaky").whenScenarioStateIs("reset")
+                .willReturn(aResponse().withStatus(502)).willSetStateTo("up"));
+        stubFor(get(urlPathEqualTo("/flaky")).inScenario("flaky").whenScenarioStateIs("up")
+                .willReturn(aResponse().withBody("ok")));
+
+        var policy = retries().build();
+        var http = retrying(policy);
+
+        assertEquals("ok", http.get("/flaky"));
+        assertEquals(new RetryPolicy.Stats(3, 2, 0), policy.stats());
+        wireMockServer.resetScenarios();
+        assertEquals("ok", http.getAsync("/flaky").get());
+        assertEquals(new RetryPolicy.Stats(6, 4, 0), policy.stats());
+    }
+
+    @Test
+    public void testPostIsOnlyRetriedWhenNotProcessed() throws Exception {
+        stubFor(post(urlPathEqualTo("/reset")).willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)));
+        stubFor(post(urlPathEqualTo("/bad-gateway")).willReturn(aResponse().withStatus(502)));
+        stubFor(post(urlPathEqualTo("/unavailable")).willReturn(aResponse().withStatus(503)));
+
+        var policy = retries().build();
+        var http = retrying(policy);
+
+        assertThrows(IOException.class, () -> http.postForm("/reset"));
+        verify(1, postRequestedFor(urlPathEqualTo("/reset")));
+        assertThrows(HttpStatusException.class, () -> http.postForm("/bad-gateway"));
+        verify(1, postRequestedFor(urlPathEqualTo("/bad-gateway")));
+
+        assertThrows(HttpStatusException.class, () -> http.postForm("/unavailable"));
+        verify(3, postRequestedFor(urlPathEqualTo("/unavailable")));
+        assertEquals(1, policy.stats().giveUps());
+    }
+
+    @Test
+    public void testSafePostIsRetriedWithFreshHeaders() throws Exception {
+        stubFor(post(urlPathEqualTo("/poll")).inScenario("poll").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER)).willSetStateTo("up"));
+        stubFor(post(urlPathEqualTo("/poll")).inScenario("poll").whenScenarioStateIs("up")
+                .willReturn(aResponse().withBody("ok")));
+
+        var counter = new AtomicInteger();
+        var http = retrying(retries().build());
+
+        assertEquals("ok", http.postAsync("/poll", () -> new NameValuePair[] { new NameValuePair("X-Attempt", String.valueOf(counter.incrementAndGet())) },
+                Http.APPLICATION_X_WWW_FORM_URLENCODED, new byte[0], true).get());
+        verify(postRequestedFor(urlPathEqualTo("/poll")).withHeader("X-Attempt", equalTo("1")));
+        verify(postRequestedFor(urlPathEqualTo("/poll")).withHeader("X-Attempt", equalTo("2")));
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() throws Exception {
+        stubFor(get(urlPathEqualTo("/busy")).inScenario("busy").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(429).withHeader("Retry-After", "1")).willSetStateTo("free"));
+        stubFor(get(urlPathEqualTo("/busy")).inScenario("busy").whenScenarioStateIs("free")
+                .willReturn(aResponse().withBody("ok")));
+        stubFor(get(urlPathEqualTo("/very-busy"))
+                .willReturn(aResponse().withStatus(429).withHeader("Retry-After", "3600")));
+
+        var policy = retries().build();
+        var http = retrying(policy);
+
+        var started = System.nanoTime();
+        assertEquals("ok", http.getAsync("/busy").get());
+        assertTrue(System.nanoTime() - started >= TimeUnit.SECONDS.toNanos(1));
+
+        /* Longer than the maximum delay, so give up straight away */
+        assertThrows(HttpStatusException.class, () -> http.get("/very-busy"));
+        verify(1, getRequestedFor(urlPathEqualTo("/very-busy")));
+        assertEquals(1, policy.stats().giveUps());
+    }
+
+    @Test
+    public void testFormEncodingMatchesUrlEncoder() {
+        var values = new String[] { "", "plain", "a b+c&d=e", "~!*'();:@$,/?#[]%", "caf\u00e9", "\u20ac100",
+                "\ud83d\ude00 smile", "lone \ud83d surrogate", "tail \ude00", "\u0000\u007f\u0080\u07ff\u0800\uffff" };
+        for (var value : values) {
+            var expected = URLEncoder.encode("k" + value, StandardCharsets.UTF_8) + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8)
+                    + "&flag";
+            var actual = new String(Http.encodeForm(new NameValuePair("k" + value, value), new NameValuePair("flag", null)),
+                    StandardCharsets.US_ASCII);
+            assertEquals(expected, actual, value);
+        }
+
+        var large = "x y".repeat(50000);
+        assertEquals(URLEncoder.encode(large, StandardCharsets.UTF_8) + "=",
+                new String(Http.encodeForm(new NameValuePair(large, "")), StandardCharsets.US_ASCII));
+        assertEquals("a=1", new String(Http.encodeForm(new NameValuePair("a", "1")), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testTemplateIsReusedForManyRequests() throws Exception {
+        stubFor(post(urlPathEqualTo("/poll")).willReturn(aResponse().withBody("ok")));
+
+        var template = plain().authenticate("Bearer abc").template("/poll", Http.APPLICATION_X_WWW_FORM_URLENCODED,
+                new NameValuePair("X-Fixed", "1"));
+        var body = Http.encodeForm(new NameValuePair("device_code", "abc"));
+        for (int i = 0; i < 3; i++) {
+            var attempt = String.valueOf(i);
+            assertEquals("ok", template.postAsync(() -> new NameValuePair[] { new NameValuePair("DPoP", attempt) }, body, true).get());
+        }
+
+        verify(3, postRequestedFor(urlPathEqualTo("/poll"))
+                .withHeader("Authorization", equalTo("Bearer abc"))
+                .withHeader("X-Fixed", equalTo("1"))
+                .withHeader("Content-Type", equalTo(Http.APPLICATION_X_WWW_FORM_URLENCODED))
+                .withRequestBody(equalTo("device_code=abc")));
+        for (int i = 0; i < 3; i++) {
+            verify(1, postRequestedFor(urlPathEqualTo("/poll")).withHeader("DPoP", equalTo(String.valueOf(i))));
+        }
+    }
+
+    private static String largeJson() {
+        var json = new StringBuilder("{ \"keys\": [");
+        for (int i = 0; i < 5000; i++) {
+            json.append(i == 0 ? "" : ",").append("{ \"kid\": \"key-").append(i).append("\", \"name\": \"Schlüssel €").append(i).append("\" }");
+        }
+        return json.append("] }").toString();
+    }
+
+    private static byte[] compress(String text) throws IOException {
+        var out = new ByteArrayOutputStream();
+        try (var gz = new GZIPOutputStream(out)) {
+            gz.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGzipResponseIsInflatedWhileStreaming() throws Exception {
+        var json = largeJson();
+        stubFor(get(urlPathEqualTo("/jwks"))
+                .withHeader("Accept-Encoding", containing("gzip"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withHeader("Content-Encoding", "gzip")
+                        .withBody(compress(json))));
+
+        var http = new Http.Builder().fromHttp(plain()).withCompression(true).build();
+        assertEquals(json, http.get("/jwks"));
+        assertEquals(json, http.authenticate("Bearer abc").getAsync("/jwks").get());
+    }
+
+    @Test
+    public void testCompressionIsOptIn() throws Exception {
+        var transport = new LoopbackTransport.Builder().withHandler(req ->
+                LoopbackTransport.Response.of(200, "text/plain", req.header("Accept-Encoding").orElse("none"))).build();
+        var http = new Http.Builder().withUri("https://localhost/").withTransport(transport).build();
+
+        assertEquals("none", http.get("/ping"));
+        assertEquals("gzip, deflate", new Http.Builder().fromHttp(http).withCompression(true).build().get("/ping"));
+    }
+
+    @Test
+    public void testDeflateWithAndWithoutZlibWrapper() throws Exception {
+        var json = largeJson();
+        for (var nowrap : new boolean[] { false, true }) {
+            var out = new ByteArrayOutputStream();
+            try (var def = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+                def.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+            var transport = new LoopbackTransport.Builder().withHandler(req ->
+                    new LoopbackTransport.Response(200, Map.of("Content-Type", List.of("application/json"),
+                            "Content-Encoding", List.of("deflate")), out.toByteArray())).build();
+            var http = new Http.Builder().withUri("https://localhost/").withTransport(transport).withCompression(true).build();
+            assertEquals(json, http.get("/jwks"), "nowrap=" + nowrap);
+        }
+    }
+
+    @Test
+    public void testCorruptCompressedResponseFails() throws Exception {
+        var compressed = compress(largeJson());
+        var truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        var transport = new LoopbackTransport.Builder().withHandler(req ->
+                new LoopbackTransport.Response(200, Map.of("Content-Encoding", List.of(req.path().equals("/truncated") ? "gzip" : "br")),
+                        truncated)).build();
+        var http = new Http.Builder().withUri("https://localhost/").withTransport(transport).withCompression(true).build();
+
+        assertThrows(IOException.class, () -> http.get("/truncated"));
+        assertThrows(IOException.class, () -> http.get("/brotli"));
+    }
+
+    private static LoopbackTransport.Handler protectedResource(AtomicReference<String> valid, AtomicInteger rejected) {
+        return req -> {
+            if (req.header("Authorization").filter(valid.get()::equals).isPresent()) {
+                return LoopbackTransport.Response.of(200, "text/plain", "ok");
+            }
+            rejected.incrementAndGet();
+            return LoopbackTransport.Response.of(401, "text/plain", "")
+                    .withHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+        };
+    }
+
+    @Test
+    public void testRejectedTokenIsRenewedOnceAndReplayed() throws Exception {
+        var valid = new AtomicReference<>("Bearer token-2");
+        var rejected = new AtomicInteger();
+        var renewals = new AtomicInteger();
+        var pool = Executors.newCachedThreadPool();
+        try {
+            var transport = new LoopbackTransport.Builder().withExecutor(pool).withHandler(protectedResource(valid, rejected)).build();
+            var http = new Http.Builder().withUri("https://localhost/").withTransport(transport).build()
+                    .authenticate("Bearer token-1", () -> CompletableFuture.supplyAsync(() -> {
+                        renewals.incrementAndGet();
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return "Bearer token-2";
+                    }, pool));
+
+            var futures = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(i % 2 == 0 ? http.getAsync("/api") : http.postFormAsync("/api", new NameValuePair("n", String.valueOf(i))));
+            }
+            for (var future : futures) {
+                assertEquals("ok", future.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, renewals.get());
+            assertTrue(rejected.get() <= 10);
+
+            /* Later requests, and copies, use the new token at once */
+            var before = rejected.get();
+            assertEquals("ok", http.get("/api"));
+            assertEquals("ok", new Http.Builder().fromHttp(http).withCompression(true).build().postForm("/api"));
+            assertEquals(before, rejected.get());
+            assertEquals(1, renewals.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedRenewalReturnsRejection() throws Exception {
+        var valid = new AtomicReference<>("Bearer token-2");
+        var renewals = new AtomicInteger();
+        var transport = new LoopbackTransport.Builder().withHandler(protectedResource(valid, new AtomicInteger())).build();
+        var http = new Http.Builder().withUri("https://localhost/").withTransport(transport).build()
+                .authenticate("Bearer token-1", () -> {
+                    renewals.incrementAndGet();
+                    return CompletableFuture.failedFuture(new IOException("Token endpoint down"));
+                });
+
+        var ex = assertThrows(HttpStatusException.class, () -> http.get("/api"));
+        assertEquals(401, ex.getStatus());
+        assertThrows(HttpStatusException.class, () -> http.get("/api"));
+        assertEquals(2, renewals.get());
+
+        /* A fixed header replaces the renewable one */
+        var fixed = http.authenticate("Bearer token-3");
+        assertThrows(HttpStatusException.class, () -> fixed.get("/api"));
+        assertEquals(2, renewals.get());
+        valid.set("Bearer token-3");
+        assertEquals("ok", fixed.get("/api"));
+    }
+}
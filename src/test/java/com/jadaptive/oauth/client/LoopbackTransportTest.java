@@ -0,0 +1,89 @@
+package com.jadaptive.oauth.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LoopbackTransportTest {
+
+    private Http http(LoopbackTransport transport) {
+        return new Http.Builder()
+                .withUri(URI.create("https://auth.example.com/"))
+                .withTransport(transport)
+                .build();
+    }
+
+    @Test
+    public void testClientCredentialsFlowWithoutSockets() throws Exception {
+        var issued = new AtomicInteger();
+        var transport = new LoopbackTransport.Builder().withHandler(req -> {
+            assertEquals("POST", req.method());
+            assertEquals("/oauth2/token", req.path());
+            assertEquals("Basic bXktc2VydmljZTpzZWNyZXQ=", req.header("Authorization").orElseThrow());
+            assertEquals("client_credentials", req.form().get("grant_type"));
+            assertEquals("read write", req.form().get("scope"));
+            return LoopbackTransport.Response.json(200, "{ \"access_token\": \"token-" + issued.incrementAndGet()
+                    + "\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }");
+        }).build();
+
+        var client = new ClientCredentialsClient.Builder()
+                .withHttp(http(transport))
+                .withClientId("my-service")
+                .withClientSecret("secret")
+                .withScope("read write")
+                .build();
+
+        for (int i = 1; i <= 10_000; i++) {
+            client.invalidate();
+            assertEquals("token-" + i, client.token().access_token());
+        }
+        assertEquals(10_000, issued.get());
+    }
+
+    @Test
+    public void testHandlerFailureIsRetried() throws Exception {
+        var calls = new AtomicInteger();
+        var transport = new LoopbackTransport.Builder().withHandler(req -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IOException("Connection reset");
+            }
+            return LoopbackTransport.Response.of(200, "text/plain", "pong");
+        }).build();
+
+        var http = new Http.Builder()
+                .fromHttp(http(transport))
+                .withRetryPolicy(new RetryPolicy.Builder().withInitialDelay(Duration.ZERO).build())
+                .build();
+
+        assertEquals("pong", http.get("/ping"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testErrorResponseOnExecutor() throws Exception {
+        var pool = Executors.newSingleThreadExecutor();
+        try {
+            var transport = new LoopbackTransport.Builder()
+                    .withExecutor(pool)
+                    .withHandler(req -> LoopbackTransport.Response.json(400,
+                            "{ \"error\": \"invalid_grant\", \"error_description\": \"Expired\" }")
+                            .withHeader("Cache-Control", "no-store"))
+                    .build();
+
+            var ex = assertThrows(ExecutionException.class,
+                    () -> http(transport).postFormAsync("/oauth2/token").get());
+            var re = assertInstanceOf(ResponseException.class, ex.getCause());
+            assertEquals("invalid_grant", re.getError());
+            assertEquals("no-store", re.getHttpHeaders().firstValue("Cache-Control").orElseThrow());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
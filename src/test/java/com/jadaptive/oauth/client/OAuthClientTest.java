@@ -11,6 +11,15 @@ import org.junit.jupiter.api.Test;
 
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Base64;
 import java.io.IOException;
@@ -353,4 +362,564 @@ public class OAuthClientTest {
         assertTrue(tokenIssuedCalled);
         verify(1, postRequestedFor(urlEqualTo("/oauth2/device")));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSharedClient_ConcurrentUse_Stress() throws Exception {
+        int threads = 16;
+        int iterations = 25;
+
+        /* The first requests are held until one from every thread is in flight, so serialized refreshes cannot pass */
+        CountDownLatch overlapped = new CountDownLatch(threads);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger requests = new AtomicInteger();
+        ExecutorService server = Executors.newCachedThreadPool();
+        LoopbackTransport transport = new LoopbackTransport.Builder().withExecutor(server).withHandler(req -> {
+            requests.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                if (!req.header("DPoP").isPresent() || !"refresh_token".equals(req.form().get("grant_type"))) {
+                    return LoopbackTransport.Response.json(400, "{ \"error\": \"invalid_request\" }");
+                }
+                overlapped.countDown();
+                overlapped.await(5, java.util.concurrent.TimeUnit.SECONDS);
+                return LoopbackTransport.Response.json(200, "{ \"access_token\": \"refreshed-token\", \"token_type\": \"DPoP\", \"expires_in\": 3600 }");
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }).build();
+        Http http = new Http.Builder().withUri(URI.create("https://auth.example.com/")).withTransport(transport).build();
+
+        /* Pre-generate keys so the test measures the client, not RSA key generation */
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        List<KeyPair> keys = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            keys.add(kpg.generateKeyPair());
+        }
+        AtomicInteger generatorCalls = new AtomicInteger(0);
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withDPoP(true)
+                .withRotateDpopOnRefresh(true)
+                .withDPoPKeyGenerator(() -> keys.get(generatorCalls.getAndIncrement() % keys.size()))
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .onTokenIssued(bearerToken -> tokenIssuedCalled = true)
+                .build();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        Set<String> refreshTokens = ConcurrentHashMap.newKeySet();
+        List<Future<Integer>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                results.add(pool.submit((Callable<Integer>) () -> {
+                    start.await();
+                    int ok = 0;
+                    for (int i = 0; i < iterations; i++) {
+                        /* Every thread refreshes its own token, so nothing is collapsed */
+                        String refreshToken = "refresh-" + thread + "-" + i;
+                        refreshTokens.add(refreshToken);
+                        OAuth2Objects.BearerToken expired = new OAuth2Objects.BearerToken(null, null, "expired-token",
+                                1, null, "DPoP", refreshToken, 0);
+                        OAuth2Objects.BearerToken refreshed = client.refresh(expired);
+                        assertEquals("refreshed-token", refreshed.access_token());
+                        assertEquals(refreshToken, refreshed.refresh_token());
+                        ok++;
+                    }
+                    return ok;
+                }));
+            }
+            start.countDown();
+            int total = 0;
+            for (Future<Integer> r : results) {
+                total += r.get();
+            }
+
+            assertEquals(threads * iterations, total);
+            assertEquals(threads * iterations, refreshTokens.size());
+            assertEquals(threads * iterations, generatorCalls.get(), "Exactly one key rotation per refresh");
+            assertTrue(tokenIssuedCalled);
+            assertEquals(threads * iterations, requests.get());
+            /* Requests overlap rather than being serialized behind a lock */
+            assertEquals(threads, maxInFlight.get(), "Concurrent refreshes should not be serialized");
+        } finally {
+            pool.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSharedClient_ConcurrentAuthorize_SingleFlow() throws Exception {
+        stubFor(post(urlEqualTo("/oauth2/device"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"device_code\": \"mock-device-code\", \"user_code\": \"mock-user-code\", \"verification_uri\": \"http://mock/verify\", \"verification_uri_complete\": \"http://mock/verify?code=mock-user-code\", \"expires_in\": 600, \"interval\": 1 }")));
+
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("device_code=mock-device-code"))
+                .willReturn(aResponse()
+                        .withFixedDelay(300)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"mock-access-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        AtomicInteger generatorCalls = new AtomicInteger(0);
+        AtomicInteger prompts = new AtomicInteger(0);
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        KeyPair kp = kpg.generateKeyPair();
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withDPoP(true)
+                .withDPoPKeyGenerator(() -> {
+                    generatorCalls.incrementAndGet();
+                    return kp;
+                })
+                .onPrompt(deviceCode -> prompts.incrementAndGet())
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .build();
+
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<OAuth2Objects.BearerToken>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return client.authorize();
+                }));
+            }
+            start.countDown();
+            for (Future<OAuth2Objects.BearerToken> r : results) {
+                assertEquals("mock-access-token", r.get().access_token());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, prompts.get(), "Only one device flow should be started");
+        assertEquals(1, generatorCalls.get(), "DPoP key should only be generated once");
+        verify(1, postRequestedFor(urlEqualTo("/oauth2/device")));
+    }
+
+    @Test
+    public void testAuthorizeAsync_DoesNotBlockCaller() throws Exception {
+        stubFor(post(urlEqualTo("/oauth2/device"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"device_code\": \"mock-device-code\", \"user_code\": \"mock-user-code\", \"verification_uri\": \"http://mock/verify\", \"verification_uri_complete\": \"http://mock/verify?code=mock-user-code\", \"expires_in\": 600, \"interval\": 1 }")));
+
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .inScenario("Async Polling")
+                .whenScenarioStateIs("Started")
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"error\": \"authorization_pending\" }"))
+                .willSetStateTo("SUCCESS_STATE"));
+
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .inScenario("Async Polling")
+                .whenScenarioStateIs("SUCCESS_STATE")
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"mock-access-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600, \"refresh_token\": \"refresh-123\" }")));
+
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("grant_type=refresh_token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"refreshed-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .onPrompt(deviceCode -> promptCalled = true)
+                .onTokenReady((deviceCode, token, authenticatedHttp) -> tokenReadyCalled = true)
+                .build();
+
+        java.util.concurrent.CompletableFuture<OAuth2Objects.BearerToken> future = client.authorizeAsync();
+        assertFalse(future.isDone(), "Authorization should complete in the background");
+
+        OAuth2Objects.BearerToken token = future.get(10, java.util.concurrent.TimeUnit.SECONDS);
+        assertEquals("mock-access-token", token.access_token());
+        assertTrue(promptCalled);
+        assertTrue(tokenReadyCalled);
+
+        OAuth2Objects.BearerToken refreshed = client.refreshAsync(token).get(10, java.util.concurrent.TimeUnit.SECONDS);
+        assertEquals("refreshed-token", refreshed.access_token());
+        assertEquals("refresh-123", refreshed.refresh_token());
+    }
+
+    private void stubDeviceFlow() {
+        stubFor(post(urlEqualTo("/oauth2/device"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"device_code\": \"mock-device-code\", \"user_code\": \"mock-user-code\", \"verification_uri\": \"http://mock/verify\", \"verification_uri_complete\": \"http://mock/verify?code=mock-user-code\", \"expires_in\": 600, \"interval\": 1 }")));
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"mock-access-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+    }
+
+    private OAuthClient.Builder recordingHandlerThreads(Set<String> threads) {
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+        return new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .onPrompt(deviceCode -> threads.add(Thread.currentThread().getName()))
+                .onTokenReady((deviceCode, token, authenticatedHttp) -> threads.add(Thread.currentThread().getName()))
+                .onTokenIssued(token -> threads.add(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void testAuthorize_HandlersRunOnCallingThread() throws Exception {
+        stubDeviceFlow();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        OAuthClient client = recordingHandlerThreads(threads).build();
+
+        assertEquals("mock-access-token", client.authorize().access_token());
+        assertEquals(Set.of(Thread.currentThread().getName()), threads);
+    }
+
+    @Test
+    public void testAuthorizeAsync_HandlersRunOnExecutor() throws Exception {
+        stubDeviceFlow();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        ExecutorService handlers = Executors.newSingleThreadExecutor(r -> new Thread(r, "test-handler"));
+        try {
+            OAuthClient client = recordingHandlerThreads(threads).withExecutor(handlers).build();
+
+            assertEquals("mock-access-token", client.authorizeAsync().get(10, java.util.concurrent.TimeUnit.SECONDS).access_token());
+            assertEquals(Set.of("test-handler"), threads);
+        } finally {
+            handlers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDeviceAuthorizationGrant_SpecCompliantPendingResponse() throws Exception {
+        stubFor(post(urlEqualTo("/oauth2/device"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"device_code\": \"mock-device-code\", \"user_code\": \"mock-user-code\", \"verification_uri\": \"http://mock/verify\", \"verification_uri_complete\": \"http://mock/verify?code=mock-user-code\", \"expires_in\": 600, \"interval\": 1 }")));
+
+        /* RFC 8628 pending responses are 400 errors, the content type may carry a charset */
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .inScenario("Spec Polling")
+                .whenScenarioStateIs("Started")
+                .willReturn(aResponse()
+                        .withStatus(400)
+                        .withHeader("Content-Type", "application/json;charset=UTF-8")
+                        .withBody("{ \"error\": \"authorization_pending\" }"))
+                .willSetStateTo("SUCCESS_STATE"));
+
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .inScenario("Spec Polling")
+                .whenScenarioStateIs("SUCCESS_STATE")
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"mock-access-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .onPrompt(deviceCode -> promptCalled = true)
+                .onTokenReady((deviceCode, token, authenticatedHttp) -> tokenReadyCalled = true)
+                .build();
+
+        assertEquals("mock-access-token", client.authorize().access_token());
+        assertTrue(promptCalled);
+        assertTrue(tokenReadyCalled);
+        verify(2, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testExistingBearerToken_SupersetScope_UsesToken() throws Exception {
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuth2Objects.BearerToken token = new OAuth2Objects.BearerToken(null, null, "existing-token", 3600, null,
+                "Bearer", null, System.currentTimeMillis() / 1000, "write read profile");
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read write")
+                .withBearerToken(token)
+                .onPrompt(deviceCode -> promptCalled = true)
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .build();
+
+        assertEquals("existing-token", client.authorize().access_token());
+        assertFalse(promptCalled);
+        verify(0, postRequestedFor(anyUrl()));
+    }
+
+    @Test
+    public void testExistingBearerToken_NoScope_IsGrantedRequestedScope() throws Exception {
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuth2Objects.BearerToken token = new OAuth2Objects.BearerToken(null, null, "legacy-token", 3600, null,
+                "Bearer", null, System.currentTimeMillis() / 1000);
+        List<OAuth2Objects.BearerToken> ready = new ArrayList<>();
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withBearerToken(token)
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> ready.add(bearerToken))
+                .build();
+
+        var authorized = client.authorize();
+        assertEquals("legacy-token", authorized.access_token());
+        assertEquals("read", authorized.scope());
+        assertEquals("read", ready.get(0).scope());
+        assertFalse(authorized.covers("read write"));
+    }
+
+    @Test
+    public void testExistingBearerToken_NarrowerScope_FallsBackToDeviceFlow() throws Exception {
+        stubFor(post(urlEqualTo("/oauth2/device"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"device_code\": \"mock-device-code\", \"user_code\": \"mock-user-code\", \"verification_uri\": \"http://mock/verify\", \"verification_uri_complete\": \"http://mock/verify?code=mock-user-code\", \"expires_in\": 600, \"interval\": 1 }")));
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"new-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuth2Objects.BearerToken token = new OAuth2Objects.BearerToken(null, null, "existing-token", 3600, null,
+                "Bearer", null, System.currentTimeMillis() / 1000, "read");
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read write")
+                .withBearerToken(token)
+                .onPrompt(deviceCode -> promptCalled = true)
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .build();
+
+        OAuth2Objects.BearerToken issued = client.authorize();
+        assertTrue(promptCalled);
+        assertEquals("new-token", issued.access_token());
+        /* The response omitted the scope, so it is the requested scope */
+        assertEquals("read write", issued.scope());
+        assertTrue(issued.covers("write"));
+    }
+
+    @Test
+    public void testRefresh_WithPrivateKeyJwt() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("grant_type=refresh_token"))
+                .withRequestBody(containing("client_assertion="))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"refreshed-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        PrivateKeyJwt jwt = new PrivateKeyJwt.Builder().withClientId("my-client").withKeyPair(kpg.generateKeyPair()).withReuse(true).build();
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withClientAuthentication(jwt)
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            OAuth2Objects.BearerToken token = new OAuth2Objects.BearerToken(null, null, "old-token", 3600, null,
+                    "Bearer", "refresh-" + i, System.currentTimeMillis() / 1000);
+            assertEquals("refreshed-token", client.refresh(token).access_token());
+        }
+        assertEquals(1, jwt.signatures());
+    }
+
+    @Test
+    public void testTokenExchange_CachedPerAudience() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("grant_type=urn%3Aietf%3Aparams%3Aoauth%3Agrant-type%3Atoken-exchange"))
+                .withRequestBody(containing("subject_token=user-token"))
+                .withRequestBody(containing("subject_token_type=urn%3Aietf%3Aparams%3Aoauth%3Atoken-type%3Aaccess_token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"downstream-token\", \"issued_token_type\": \"urn:ietf:params:oauth:token-type:access_token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .build();
+
+        assertEquals("downstream-token", client.exchange("user-token", "https://orders", "read write").access_token());
+        assertEquals("downstream-token", client.exchange("user-token", "https://orders", "write read").access_token());
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+
+        OAuth2Objects.BearerToken billing = client.exchange("user-token", "https://billing", "read");
+        assertEquals("read", billing.scope());
+        verify(2, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")).withRequestBody(containing("audience=https%3A%2F%2Fbilling")));
+    }
+
+    @Test
+    public void testTokenExchange_ExpiredTokenIsExchangedAgain() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"short-lived\", \"token_type\": \"Bearer\", \"expires_in\": 1 }")));
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .build();
+
+        client.exchange("user-token", "https://orders", null);
+        Thread.sleep(1100);
+        client.exchange("user-token", "https://orders", null);
+        verify(2, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testTokenReadyHttp_RefreshesRejectedToken() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("refresh_token=refresh-123"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"new-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+        stubFor(get(urlPathEqualTo("/api"))
+                .willReturn(aResponse().withStatus(401).withHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"")));
+        stubFor(get(urlPathEqualTo("/api"))
+                .withHeader("Authorization", equalTo("Bearer new-token"))
+                .willReturn(aResponse().withHeader("Content-Type", "text/plain").withBody("ok")));
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+
+        /* Revoked by the server, although not yet expired */
+        OAuth2Objects.BearerToken token = new OAuth2Objects.BearerToken(null, null, "revoked-token", 3600, null, "Bearer",
+                "refresh-123", System.currentTimeMillis() / 1000);
+        List<Http> ready = new ArrayList<>();
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withBearerToken(token)
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> ready.add(authenticatedHttp))
+                .onTokenIssued(bearerToken -> tokenIssuedCalled = true)
+                .build();
+        client.authorize();
+
+        var futures = new ArrayList<java.util.concurrent.CompletableFuture<String>>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(ready.get(0).getAsync("/api"));
+        }
+        for (var future : futures) {
+            assertEquals("ok", future.get());
+        }
+        assertEquals("ok", ready.get(0).get("/api"));
+        assertTrue(tokenIssuedCalled);
+        assertEquals(1, ready.size());
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testRefresh_RotatedRefreshTokenIsNeverReused() throws Exception {
+        /* A server that rotates refresh tokens, and accepts only the latest access token */
+        var generation = new AtomicInteger();
+        var reused = new AtomicInteger();
+        var transport = new LoopbackTransport.Builder().withHandler(req -> {
+            if (req.path().equals("/oauth2/token")) {
+                var n = generation.get();
+                if (!req.form().get("refresh_token").equals("refresh-" + n)) {
+                    reused.incrementAndGet();
+                    return LoopbackTransport.Response.json(400, "{ \"error\": \"invalid_grant\" }");
+                }
+                n = generation.incrementAndGet();
+                return LoopbackTransport.Response.json(200, "{ \"access_token\": \"access-" + n
+                        + "\", \"token_type\": \"Bearer\", \"expires_in\": 3600, \"refresh_token\": \"refresh-" + n + "\" }");
+            }
+            if (req.path().equals("/api")) {
+                return req.header("Authorization").filter(("Bearer access-" + generation.get())::equals).isPresent()
+                        ? LoopbackTransport.Response.of(200, "text/plain", "ok")
+                        : LoopbackTransport.Response.of(401, "text/plain", "");
+            }
+            return LoopbackTransport.Response.of(404, "text/plain", "");
+        }).build();
+        Http http = new Http.Builder().withUri(URI.create("https://auth.example.com/")).withTransport(transport).build();
+
+        OAuth2Objects.BearerToken token = new OAuth2Objects.BearerToken(null, null, "revoked-token", 3600, null, "Bearer",
+                "refresh-0", System.currentTimeMillis() / 1000);
+        List<Http> ready = new ArrayList<>();
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withBearerToken(token)
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> ready.add(authenticatedHttp))
+                .build();
+        client.authorize();
+
+        /* The authenticated Http refreshes first */
+        assertEquals("ok", ready.get(0).get("/api"));
+        assertEquals(1, generation.get());
+
+        /* Then something holding the original token, such as a TokenManager */
+        assertEquals("access-2", client.refresh(token).access_token());
+
+        /* And the authenticated Http again, from the token the other refresh issued */
+        assertEquals("ok", ready.get(0).get("/api"));
+        assertEquals(3, generation.get());
+        assertEquals(0, reused.get());
+    }
+
+    @Test
+    public void testAuthorize_ExistingTokenIsRefreshedFromLatestRotation() throws Exception {
+        /* A server that rotates refresh tokens, issuing access tokens that are already expired */
+        var generation = new AtomicInteger();
+        var reused = new AtomicInteger();
+        var transport = new LoopbackTransport.Builder().withHandler(req -> {
+            if (req.path().equals("/oauth2/token")) {
+                var n = generation.get();
+                if (!req.form().get("refresh_token").equals("refresh-" + n)) {
+                    reused.incrementAndGet();
+                    return LoopbackTransport.Response.json(400, "{ \"error\": \"invalid_grant\" }");
+                }
+                n = generation.incrementAndGet();
+                return LoopbackTransport.Response.json(200, "{ \"access_token\": \"access-" + n
+                        + "\", \"token_type\": \"Bearer\", \"expires_in\": 0, \"refresh_token\": \"refresh-" + n + "\" }");
+            }
+            return LoopbackTransport.Response.of(404, "text/plain", "");
+        }).build();
+        Http http = new Http.Builder().withUri(URI.create("https://auth.example.com/")).withTransport(transport).build();
+
+        OAuth2Objects.BearerToken token = new OAuth2Objects.BearerToken(null, null, "expired-token", 0, null, "Bearer",
+                "refresh-0", System.currentTimeMillis() / 1000);
+        AtomicInteger issued = new AtomicInteger();
+        OAuthClient client = new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .withBearerToken(token)
+                .onPrompt(deviceCode -> promptCalled = true)
+                .onTokenReady((deviceCode, bearerToken, authenticatedHttp) -> {})
+                .onTokenIssued(bearerToken -> issued.incrementAndGet())
+                .build();
+
+        assertEquals("access-1", client.authorize().access_token());
+        assertEquals("access-2", client.authorize().access_token());
+        assertEquals(0, reused.get());
+        assertEquals(2, issued.get());
+        assertFalse(promptCalled, "Should not fall back to the device flow");
+    }
+}
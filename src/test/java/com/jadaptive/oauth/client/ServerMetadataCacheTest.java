@@ -0,0 +1,214 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.nio.file.Path;
+
+public class ServerMetadataCacheTest {
+
+    private final static String WELL_KNOWN = "/.well-known/oauth-authorization-server";
+
+    private WireMockServer wireMockServer;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private String issuer() {
+        return "http://localhost:" + wireMockServer.port();
+    }
+
+    private Http http() {
+        return new Http.Builder().withUri(URI.create(issuer() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+    }
+
+    private String metadata() {
+        return "{ \"issuer\": \"" + issuer() + "\", \"token_endpoint\": \"" + issuer() + "/custom/token\", "
+                + "\"device_authorization_endpoint\": \"" + issuer() + "/custom/device\" }";
+    }
+
+    @Test
+    public void testClientsUseDiscoveredEndpointAndShareDocument() throws Exception {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "max-age=3600")
+                        .withBody(metadata())));
+        stubFor(post(urlPathEqualTo("/custom/token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"service-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        var cache = new ServerMetadataCache.Builder().build();
+        for (int i = 0; i < 3; i++) {
+            var client = new ClientCredentialsClient.Builder()
+                    .withHttp(http())
+                    .withClientId("my-service")
+                    .withClientSecret("secret")
+                    .withMetadataCache(cache)
+                    .build();
+            assertEquals("service-token", client.token().access_token());
+        }
+
+        verify(1, getRequestedFor(urlPathEqualTo(WELL_KNOWN)));
+        verify(3, postRequestedFor(urlPathEqualTo("/custom/token")));
+        verify(0, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testDeviceFlowUsesDiscoveredEndpoints() throws Exception {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(metadata())));
+        stubFor(post(urlPathEqualTo("/custom/device"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"device_code\": \"dev\", \"user_code\": \"USER\", \"verification_uri\": \"https://example.com\", \"verification_uri_complete\": \"https://example.com?code=USER\", \"expires_in\": 60, \"interval\": 1 }")));
+        stubFor(post(urlPathEqualTo("/custom/token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"user-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        var client = new OAuthClient.Builder()
+                .withHttp(http())
+                .withScope("openid")
+                .withMetadataCache(new ServerMetadataCache.Builder().build())
+                .onPrompt(device -> {})
+                .onTokenReady((device, token, http) -> {})
+                .build();
+
+        assertEquals("user-token", client.authorize().access_token());
+        verify(1, postRequestedFor(urlPathEqualTo("/custom/device")));
+        verify(postRequestedFor(urlPathEqualTo("/custom/token"))
+                .withRequestBody(containing("device_code=dev")));
+    }
+
+    @Test
+    public void testRevalidatesWithETag() throws Exception {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .inScenario("revalidate")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "no-cache")
+                        .withHeader("ETag", "\"v1\"")
+                        .withBody(metadata()))
+                .willSetStateTo("fetched"));
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .inScenario("revalidate")
+                .whenScenarioStateIs("fetched")
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse().withStatus(304).withHeader("Cache-Control", "max-age=3600")));
+
+        var cache = new ServerMetadataCache.Builder().build();
+        var http = http();
+        assertEquals(URI.create(issuer() + "/custom/token"), cache.get(http).tokenEndpoint().get());
+        assertEquals(URI.create(issuer() + "/custom/token"), cache.get(http).tokenEndpoint().get());
+        assertEquals(URI.create(issuer() + "/custom/token"), cache.get(http).tokenEndpoint().get());
+
+        /* Second is a 304, third is fresh from the 304's max-age */
+        verify(2, getRequestedFor(urlPathEqualTo(WELL_KNOWN)));
+    }
+
+    @Test
+    public void testServerMaxAgeLongerThanDefaultIsHonoured() throws Exception {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "max-age=86400")
+                        .withBody(metadata())));
+
+        var cache = new ServerMetadataCache.Builder().withDefaultMaxAge(Duration.ofMillis(100)).build();
+        var http = http();
+        cache.get(http);
+        Thread.sleep(200);
+        cache.get(http);
+        verify(1, getRequestedFor(urlPathEqualTo(WELL_KNOWN)));
+    }
+
+    @Test
+    public void testDiskCacheSurvivesNewInstance() throws Exception {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "max-age=3600")
+                        .withBody(metadata())));
+
+        new ServerMetadataCache.Builder().withDirectory(tempDir).build().get(http());
+        var metadata = new ServerMetadataCache.Builder().withDirectory(tempDir).build().get(http());
+
+        assertEquals(issuer(), metadata.issuer());
+        verify(1, getRequestedFor(urlPathEqualTo(WELL_KNOWN)));
+    }
+
+    @Test
+    public void testFallsBackToOpenIdConfiguration() throws Exception {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN)).willReturn(aResponse().withStatus(404)));
+        stubFor(get(urlPathEqualTo("/.well-known/openid-configuration"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody(metadata())));
+
+        var metadata = new ServerMetadataCache.Builder().build().get(http());
+
+        assertEquals(URI.create(issuer() + "/custom/device"), metadata.deviceAuthorizationEndpoint().get());
+    }
+
+    @Test
+    public void testRejectsMetadataForAnotherIssuer() {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"issuer\": \"https://evil.example.com\", \"token_endpoint\": \"https://evil.example.com/token\" }")));
+
+        assertThrows(IOException.class, () -> new ServerMetadataCache.Builder().build().get(http()));
+    }
+
+    @Test
+    public void testKeepsPreviousDocumentWhenRevalidationFails() throws Exception {
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .inScenario("failure")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withHeader("Cache-Control", "no-cache")
+                        .withBody(metadata()))
+                .willSetStateTo("down"));
+        stubFor(get(urlPathEqualTo(WELL_KNOWN))
+                .inScenario("failure")
+                .whenScenarioStateIs("down")
+                .willReturn(aResponse().withStatus(503)));
+
+        var cache = new ServerMetadataCache.Builder().build();
+        var http = http();
+        cache.get(http);
+
+        assertEquals(issuer(), cache.get(http).issuer());
+        verify(2, getRequestedFor(urlPathEqualTo(WELL_KNOWN)));
+    }
+}
@@ -0,0 +1,117 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SharedTokenCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private WireMockServer wireMockServer;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private SharedTokenCache cache() throws Exception {
+        return new SharedTokenCache.Builder().withDirectory(dir).build();
+    }
+
+    private static BearerToken token(String accessToken, long expiresIn) {
+        return new BearerToken(null, null, accessToken, expiresIn, null, "Bearer", "refresh-" + accessToken,
+                System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Run in a separate JVM by {@link SharedTokenCacheTest#testTokenIsSharedBetweenProcesses()}.
+     */
+    public static void main(String[] args) throws Exception {
+        new SharedTokenCache.Builder().withDirectory(Path.of(args[0])).build().store(args[1], token(args[2], 3600));
+    }
+
+    @Test
+    public void testStoreAndRemove() throws Exception {
+        cache().store("a", token("token-a", 3600));
+        assertEquals("token-a", cache().load("a").get().access_token());
+        assertEquals("refresh-token-a", cache().load("a").get().refresh_token());
+
+        cache().remove("a");
+        assertTrue(cache().load("a").isEmpty());
+    }
+
+    @Test
+    public void testTokenIsSharedBetweenProcesses() throws Exception {
+        SharedTokenCache cache = cache();
+        cache.store("shared", token("from-parent", 3600));
+        assertEquals("from-parent", cache.load("shared").get().access_token());
+
+        Process process = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path") + File.pathSeparator + System.getProperty("jdk.module.path", ""),
+                SharedTokenCacheTest.class.getName(), dir.toString(), "shared", "from-child")
+                .inheritIO()
+                .start();
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue());
+
+        /* The mapped file changed underneath the cached copy */
+        assertEquals("from-child", cache.load("shared").get().access_token());
+    }
+
+    @Test
+    public void testConcurrentRefreshIsCoordinated() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .willReturn(aResponse()
+                        .withFixedDelay(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"refreshed-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600, \"refresh_token\": \"rotated\" }")));
+
+        BearerToken expired = new BearerToken(null, null, "expired-token", 3600, null, "Bearer", "original",
+                System.currentTimeMillis() / 1000 - 7200);
+        URI uri = URI.create("http://localhost:" + wireMockServer.port() + "/");
+
+        /* Separate clients and caches stand in for separate processes */
+        CompletableFuture<?>[] results = new CompletableFuture<?>[4];
+        for (int i = 0; i < results.length; i++) {
+            OAuthClient client = new OAuthClient.Builder()
+                    .withHttp(new Http.Builder().withUri(uri).withClient(java.net.http.HttpClient.newHttpClient()).build())
+                    .withScope("read")
+                    .withBearerToken(expired)
+                    .withTokenStore(cache())
+                    .onPrompt(deviceCode -> fail("Should not start a device flow"))
+                    .onTokenReady((deviceCode, token, authenticatedHttp) -> {})
+                    .build();
+            results[i] = client.authorizeAsync();
+        }
+
+        for (CompletableFuture<?> result : results) {
+            assertEquals("refreshed-token", ((BearerToken) result.get(10, TimeUnit.SECONDS)).access_token());
+        }
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+        assertEquals("rotated", cache().load(uri + " read").get().refresh_token());
+    }
+}
@@ -0,0 +1,208 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TokenManagerTest {
+
+    private WireMockServer wireMockServer;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private OAuthClient client() {
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+        return new OAuthClient.Builder()
+                .withHttp(http)
+                .withScope("read")
+                .onTokenReady((deviceCode, token, authenticatedHttp) -> {})
+                .build();
+    }
+
+    private BearerToken token(String accessToken, long expiresIn, long age) {
+        return new BearerToken(null, null, accessToken, expiresIn, null, "Bearer", "refresh-123",
+                (System.currentTimeMillis() / 1000) - age);
+    }
+
+    @Test
+    public void testConcurrentRefreshIsSingleFlight() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("grant_type=refresh_token"))
+                .willReturn(aResponse()
+                        .withFixedDelay(500)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"refreshed-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        try (var mgr = new TokenManager.Builder()
+                .withClient(client())
+                .withBearerToken(token("expired-token", 1, 3600))
+                .build()) {
+
+            var pool = Executors.newFixedThreadPool(16);
+            var start = new CountDownLatch(1);
+            var results = new ArrayList<CompletableFuture<BearerToken>>();
+            for (int i = 0; i < 32; i++) {
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                        return mgr.awaitToken();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, pool));
+            }
+            start.countDown();
+            for (var r : results) {
+                assertEquals("refreshed-token", r.get().access_token());
+            }
+            pool.shutdown();
+
+            /* The server did not rotate, so the original refresh token is kept */
+            assertEquals("refresh-123", mgr.currentToken().refresh_token());
+        }
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testCurrentTokenDoesNotBlockAndRefreshesAhead() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("grant_type=refresh_token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"refreshed-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        try (var mgr = new TokenManager.Builder()
+                .withClient(client())
+                .withBearerToken(token("current-token", 120, 100))
+                .withLeadTime(Duration.ofSeconds(30))
+                .withJitter(Duration.ZERO)
+                .build()) {
+
+            /* Token is still valid but inside the lead time, so is returned as is */
+            assertEquals("current-token", mgr.currentToken().access_token());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!mgr.currentToken().access_token().equals("refreshed-token") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals("refreshed-token", mgr.currentToken().access_token());
+        }
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testNonInteractiveSourceRenewsWithoutRefreshToken() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("grant_type=client_credentials"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"service-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        Http http = new Http.Builder().withUri(URI.create("http://localhost:" + wireMockServer.port() + "/")).withClient(java.net.http.HttpClient.newHttpClient()).build();
+        ClientCredentialsClient client = new ClientCredentialsClient.Builder()
+                .withHttp(http)
+                .withClientId("my-service")
+                .withClientSecret("secret")
+                .build();
+
+        BearerToken expiring = new BearerToken(null, null, "expiring-token", 120, null, "Bearer", null,
+                (System.currentTimeMillis() / 1000) - 100);
+        try (var mgr = new TokenManager.Builder()
+                .withClient(client)
+                .withBearerToken(expiring)
+                .withLeadTime(Duration.ofSeconds(30))
+                .withJitter(Duration.ZERO)
+                .build()) {
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!mgr.currentToken().access_token().equals("service-token") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals("service-token", mgr.currentToken().access_token());
+        }
+    }
+
+    @Test
+    public void testRejectedRefreshTokenFallsBackToAuthorize() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .withRequestBody(containing("grant_type=refresh_token"))
+                .willReturn(aResponse()
+                        .withStatus(400)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"error\": \"invalid_grant\" }")));
+        var client = client();
+        var authorized = new AtomicInteger();
+        var source = new TokenSource() {
+            @Override
+            public CompletableFuture<BearerToken> authorizeAsync() {
+                authorized.incrementAndGet();
+                return CompletableFuture.completedFuture(token("authorized-token", 3600, 0));
+            }
+
+            @Override
+            public CompletableFuture<BearerToken> refreshAsync(BearerToken token) {
+                return client.refreshAsync(token);
+            }
+        };
+
+        try (var mgr = new TokenManager.Builder()
+                .withClient(source)
+                .withBearerToken(token("expired-token", 1, 3600))
+                .build()) {
+            assertEquals("authorized-token", mgr.awaitToken().access_token());
+        }
+        assertEquals(1, authorized.get());
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+    }
+
+    @Test
+    public void testUnreachableServerIsNotAuthorizedAgain() throws Exception {
+        var authorized = new AtomicInteger();
+        var source = new TokenSource() {
+            @Override
+            public CompletableFuture<BearerToken> authorizeAsync() {
+                authorized.incrementAndGet();
+                return CompletableFuture.completedFuture(token("authorized-token", 3600, 0));
+            }
+
+            @Override
+            public CompletableFuture<BearerToken> refreshAsync(BearerToken token) {
+                return CompletableFuture.failedFuture(new IOException("Connection refused"));
+            }
+        };
+
+        try (var mgr = new TokenManager.Builder()
+                .withClient(source)
+                .withBearerToken(token("expired-token", 1, 3600))
+                .build()) {
+            assertThrows(IOException.class, () -> mgr.awaitToken());
+        }
+        assertEquals(0, authorized.get());
+    }
+}
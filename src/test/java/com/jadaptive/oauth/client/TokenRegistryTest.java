@@ -0,0 +1,171 @@
+package com.jadaptive.oauth.client;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.jadaptive.oauth.client.OAuth2Objects.BearerToken;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TokenRegistryTest {
+
+    private WireMockServer wireMockServer;
+
+    @BeforeEach
+    public void setup() {
+        wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+        wireMockServer.start();
+        configureFor("localhost", wireMockServer.port());
+    }
+
+    @AfterEach
+    public void teardown() {
+        wireMockServer.stop();
+    }
+
+    private static BearerToken token(String accessToken, long expiresIn, String refreshToken) {
+        return new BearerToken(null, null, accessToken, expiresIn, null, "Bearer", refreshToken,
+                System.currentTimeMillis() / 1000);
+    }
+
+    private TokenRegistry.Builder registry(Map<TokenRegistry.Key, Http> created) {
+        return new TokenRegistry.Builder()
+                .withClient(java.net.http.HttpClient.newHttpClient())
+                .withClientFactory((key, http) -> {
+                    created.put(key, http);
+                    return new OAuthClient.Builder()
+                            .withHttp(http)
+                            .withScope(key.scope())
+                            .onPrompt(deviceCode -> fail("Should not start a device flow"))
+                            .onTokenReady((deviceCode, token, authenticatedHttp) -> {})
+                            .build();
+                });
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        URI issuer = URI.create("https://auth.example.com/");
+        TokenRegistry.Key a = TokenRegistry.Key.of(issuer, "client", "a");
+        TokenRegistry.Key b = TokenRegistry.Key.of(issuer, "client", "b");
+        TokenRegistry.Key c = TokenRegistry.Key.of(issuer, "client", "c");
+        TokenRegistry registry = registry(new ConcurrentHashMap<>()).withMaxEntries(2).build();
+
+        registry.put(a, token("token-a", 3600, null));
+        registry.put(b, token("token-b", 3600, null));
+        assertEquals("token-a", registry.tokenAsync(a).join().access_token());
+        registry.put(c, token("token-c", 3600, null));
+
+        assertTrue(registry.peek(b).isEmpty());
+        assertTrue(registry.peek(a).isPresent());
+        assertEquals(new TokenRegistry.Stats(1, 0, 1, 2), registry.stats());
+    }
+
+    @Test
+    public void testExpiredTokenIsRefreshedOnce() throws Exception {
+        stubFor(post(urlPathEqualTo("/oauth2/token"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{ \"access_token\": \"refreshed-token\", \"token_type\": \"Bearer\", \"expires_in\": 3600 }")));
+
+        URI issuer = URI.create("http://localhost:" + wireMockServer.port() + "/");
+        TokenRegistry.Key key = TokenRegistry.Key.of(issuer, "client", "read");
+        TokenRegistry registry = registry(new ConcurrentHashMap<>()).build();
+        registry.put(key, token("expired-token", -1, "refresh"));
+
+        assertEquals("refreshed-token", registry.token(key).access_token());
+        assertEquals("refreshed-token", registry.token(key).access_token());
+
+        verify(1, postRequestedFor(urlPathEqualTo("/oauth2/token")));
+        assertEquals(new TokenRegistry.Stats(1, 1, 0, 1), registry.stats());
+    }
+
+    @Test
+    public void testHttpIsSharedPerIssuer() {
+        Map<TokenRegistry.Key, Http> created = new ConcurrentHashMap<>();
+        URI issuer1 = URI.create("https://auth1.example.com/");
+        URI issuer2 = URI.create("https://auth2.example.com/");
+        TokenRegistry registry = registry(created).build();
+
+        registry.put(TokenRegistry.Key.of(issuer1, "client-1", "read"), token("t1", 3600, null));
+        registry.put(TokenRegistry.Key.of(issuer1, "client-2", "read"), token("t2", 3600, null));
+        registry.put(TokenRegistry.Key.of(issuer2, "client-1", "read"), token("t3", 3600, null));
+
+        assertSame(created.get(TokenRegistry.Key.of(issuer1, "client-1", "read")),
+                created.get(TokenRegistry.Key.of(issuer1, "client-2", "read")));
+        assertNotSame(created.get(TokenRegistry.Key.of(issuer1, "client-1", "read")),
+                created.get(TokenRegistry.Key.of(issuer2, "client-1", "read")));
+        assertEquals(2, registry.issuers());
+
+        registry.invalidate(TokenRegistry.Key.of(issuer2, "client-1", "read"));
+        assertEquals(1, registry.issuers());
+    }
+
+    @Test
+    public void testIdleAndExpiredEntriesAreEvicted() throws Exception {
+        URI issuer = URI.create("https://auth.example.com/");
+        TokenRegistry registry = registry(new ConcurrentHashMap<>())
+                .withExpireAfterAccess(Duration.ofMillis(200))
+                .build();
+
+        registry.put(TokenRegistry.Key.of(issuer, "client", "idle"), token("idle", 3600, null));
+        registry.put(TokenRegistry.Key.of(issuer, "client", "dead"), token("dead", -1, null));
+        registry.put(TokenRegistry.Key.of(issuer, "client", "refreshable"), token("refreshable", -1, "refresh"));
+        registry.cleanUp();
+        assertEquals(2, registry.stats().size(), "Expired token without a refresh token should be evicted");
+
+        Thread.sleep(300);
+        registry.cleanUp();
+        assertEquals(0, registry.stats().size());
+        assertEquals(3, registry.stats().evictions());
+        assertEquals(0, registry.issuers());
+    }
+
+    @Test
+    public void testPeekKeepsIdleEntriesInOrder() throws Exception {
+        URI issuer = URI.create("https://auth.example.com/");
+        TokenRegistry.Key a = TokenRegistry.Key.of(issuer, "client", "a");
+        TokenRegistry.Key b = TokenRegistry.Key.of(issuer, "client", "b");
+        TokenRegistry registry = registry(new ConcurrentHashMap<>())
+                .withExpireAfterAccess(Duration.ofMillis(1000))
+                .build();
+
+        registry.put(a, token("token-a", 3600, null));
+        Thread.sleep(500);
+        registry.put(b, token("token-b", 3600, null));
+        Thread.sleep(250);
+        assertTrue(registry.peek(a).isPresent());
+        Thread.sleep(850);
+
+        /* b is now idle, a was used more recently */
+        registry.cleanUp();
+        assertEquals(1, registry.stats().size());
+        assertEquals("token-a", registry.peek(a).get().access_token());
+    }
+
+    @Test
+    public void testTokenCoveringScopeIsReused() throws Exception {
+        Map<TokenRegistry.Key, Http> created = new ConcurrentHashMap<>();
+        URI issuer = URI.create("https://auth.example.com/");
+        TokenRegistry registry = registry(created).build();
+
+        registry.put(TokenRegistry.Key.of(issuer, "client", "write  read"), token("broad", 3600, null));
+
+        assertEquals("broad", registry.token(TokenRegistry.Key.of(issuer, "client", "read")).access_token());
+        assertEquals("broad", registry.token(TokenRegistry.Key.of(issuer, "client", "read write")).access_token());
+        assertEquals(1, created.size(), "No client should be needed for a covered scope");
+        assertEquals(2, registry.stats().hits());
+
+        /* Another client's token is never shared */
+        assertTrue(registry.peek(TokenRegistry.Key.of(issuer, "other", "read")).isEmpty());
+        assertEquals("read write", TokenRegistry.Key.of(issuer, "client", " write read ").scope());
+    }
+}